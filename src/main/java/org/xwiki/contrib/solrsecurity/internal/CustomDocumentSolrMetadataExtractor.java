@@ -26,6 +26,7 @@ import javax.inject.Singleton;
 import org.apache.solr.common.SolrInputDocument;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.query.QueryException;
 import org.xwiki.search.solr.SolrEntityMetadataExtractor;
 import org.xwiki.search.solr.internal.metadata.DocumentSolrMetadataExtractor;
 
@@ -53,7 +54,7 @@ public class CustomDocumentSolrMetadataExtractor implements SolrEntityMetadataEx
     {
         try {
             this.indexer.index(entity.getDocumentReference(), solrDocument);
-        } catch (XWikiException e) {
+        } catch (XWikiException | QueryException e) {
             this.logger.error("Failed to index the right for document [{}]", entity.getDocumentReference(), e);
         }
 
@@ -0,0 +1,61 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+
+/**
+ * A {@link SolrSecurityJobCoordinator} only aware of the jobs running in the current JVM. It does not prevent two nodes
+ * of a cluster from handling the same scope, use {@link SolrSolrSecurityJobCoordinator} for that.
+ * 
+ * @version $Id$
+ */
+@Component
+@Named(LocalSolrSecurityJobCoordinator.HINT)
+@Singleton
+public class LocalSolrSecurityJobCoordinator implements SolrSecurityJobCoordinator
+{
+    /**
+     * The hint of the component.
+     */
+    public static final String HINT = "local";
+
+    private final Set<List<String>> running = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public boolean acquire(List<String> jobId)
+    {
+        return this.running.add(new ArrayList<>(jobId));
+    }
+
+    @Override
+    public void release(List<String> jobId)
+    {
+        this.running.remove(jobId);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+
+/**
+ * Suspend the indexing triggered by each right or group change during batch operations (like a XAR import), only
+ * recording the impacted scopes, and index the minimal set of scopes once all the batch operations are finished.
+ * <p>
+ * A batch operation only suspends the indexing of the changes made by the thread which started it, the changes made
+ * at the same time by other users or jobs are still indexed right away. A batch operation which did not end after
+ * {@link SolrSecurityConfiguration#getBulkTimeout()} is finished automatically, in case its end was never notified.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityBulkMode.class)
+@Singleton
+public class SolrSecurityBulkMode
+{
+    private static final class Session
+    {
+        private final long deadline;
+
+        private int level;
+
+        private final Set<WikiReference> groupWikis = new LinkedHashSet<>();
+
+        private final Set<DocumentReference> members = new LinkedHashSet<>();
+
+        private final Set<EntityReference> entities = new LinkedHashSet<>();
+
+        private final Set<DocumentReference> purgedGroups = new LinkedHashSet<>();
+
+        private Session(long timeout)
+        {
+            this.deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        }
+
+        private boolean isExpired(long now)
+        {
+            return now - this.deadline >= 0;
+        }
+    }
+
+    @Inject
+    private SolrSecurityDispatcher dispatcher;
+
+    @Inject
+    private SolrSecurityGroupManager groupManager;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<Thread, Session> sessions = new HashMap<>();
+
+    /**
+     * Start a batch operation in the current thread. Each call must be followed by a call to {@link #end()} (or
+     * {@link #abort()}) in the same thread.
+     */
+    public void begin()
+    {
+        expire();
+
+        synchronized (this) {
+            this.sessions.computeIfAbsent(Thread.currentThread(),
+                k -> new Session(this.configuration.getBulkTimeout())).level++;
+        }
+    }
+
+    /**
+     * Finish a batch operation started in the current thread and index the recorded scopes if it was the last one.
+     */
+    public void end()
+    {
+        Session session;
+        synchronized (this) {
+            session = this.sessions.get(Thread.currentThread());
+            if (session == null || --session.level > 0) {
+                return;
+            }
+
+            this.sessions.remove(Thread.currentThread());
+        }
+
+        flush(session);
+    }
+
+    /**
+     * Finish all the batch operations started in the current thread, for example because one of them failed, and
+     * index the recorded scopes.
+     */
+    public void abort()
+    {
+        Session session;
+        synchronized (this) {
+            session = this.sessions.remove(Thread.currentThread());
+        }
+
+        if (session != null) {
+            flush(session);
+        }
+    }
+
+    /**
+     * @return true if a batch operation is running in the current thread
+     */
+    public synchronized boolean isActive()
+    {
+        return this.sessions.containsKey(Thread.currentThread());
+    }
+
+    /**
+     * @param wiki the wiki in which groups were added or removed
+     * @return true if the change was recorded, false if it should be handled right away
+     */
+    public boolean recordGroupChange(WikiReference wiki)
+    {
+        return record(session -> session.groupWikis, wiki);
+    }
+
+    /**
+     * @param member the member added to or removed from a group
+     * @return true if the change was recorded, false if it should be handled right away
+     */
+    public boolean recordMember(DocumentReference member)
+    {
+        return record(session -> session.members, member);
+    }
+
+    /**
+     * @param entity the entity for which rights changed
+     * @return true if the change was recorded, false if it should be handled right away
+     */
+    public boolean recordEntity(EntityReference entity)
+    {
+        return record(session -> session.entities, entity);
+    }
+
+    /**
+     * @param group the deleted group
+     * @return true if the change was recorded, false if it should be handled right away
+     */
+    public boolean recordPurge(DocumentReference group)
+    {
+        return record(session -> session.purgedGroups, group);
+    }
+
+    private <T> boolean record(Function<Session, Set<T>> set, T element)
+    {
+        expire();
+
+        synchronized (this) {
+            Session session = this.sessions.get(Thread.currentThread());
+            if (session == null) {
+                return false;
+            }
+
+            set.apply(session).add(element);
+
+            return true;
+        }
+    }
+
+    private void expire()
+    {
+        List<Session> expired = new ArrayList<>();
+        synchronized (this) {
+            if (this.sessions.isEmpty()) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<Thread, Session>> it = this.sessions.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Thread, Session> entry = it.next();
+                if (entry.getValue().isExpired(now) || !entry.getKey().isAlive()) {
+                    this.logger.warn("Finishing the Solr security bulk mode started by thread [{}] which did not end"
+                        + " in time", entry.getKey().getName());
+
+                    expired.add(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        for (Session session : expired) {
+            flush(session);
+        }
+    }
+
+    private void flush(Session session)
+    {
+        List<WikiReference> wikis;
+        List<DocumentReference> memberReferences;
+        List<EntityReference> entityReferences;
+        List<DocumentReference> purgedGroupReferences;
+        synchronized (this) {
+            wikis = new ArrayList<>(session.groupWikis);
+            memberReferences = new ArrayList<>(session.members);
+            entityReferences = getMinimalEntities(session.entities);
+            purgedGroupReferences = new ArrayList<>(session.purgedGroups);
+        }
+
+        this.logger.debug("Bulk mode finished: indexing entities {} and group members {}", entityReferences,
+            memberReferences);
+
+        for (WikiReference wiki : wikis) {
+            this.groupManager.invalidate(wiki);
+        }
+
+        for (DocumentReference group : purgedGroupReferences) {
+            this.dispatcher.purgeGroup(group);
+        }
+
+        for (DocumentReference member : memberReferences) {
+            if (this.groupManager.isGroup(member)) {
+                this.dispatcher.indexGroup(member);
+            }
+        }
+
+        for (EntityReference entity : entityReferences) {
+            this.dispatcher.indexEntity(entity, true);
+        }
+    }
+
+    private List<EntityReference> getMinimalEntities(Set<EntityReference> entities)
+    {
+        // Indexing an entity also indexes all its children
+        List<EntityReference> minimal = new ArrayList<>(entities.size());
+        for (EntityReference entity : entities) {
+            EntityReference parent = entity.getParent();
+            while (parent != null && !entities.contains(parent)) {
+                parent = parent.getParent();
+            }
+
+            if (parent == null) {
+                minimal.add(entity);
+            }
+        }
+
+        return minimal;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.security.authorization.Right;
+
+/**
+ * The configuration of the Solr security module, read from xwiki.properties.
+ *
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityConfiguration.class)
+@Singleton
+public class SolrSecurityConfiguration
+{
+    private static final String PREFIX = "solrsecurity.";
+
+    private static final int DEFAULT_VERIFY_RATE = 500;
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final int DEFAULT_DATABASE_CONNECTIONS = 2;
+
+    private static final int DEFAULT_SOLR_CONNECTIONS = 2;
+
+    private static final long DEFAULT_COORDINATOR_TIMEOUT = 300L;
+
+    private static final long DEFAULT_BULK_TIMEOUT = 3600L;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /**
+     * @return the order in which wikis are indexed at startup
+     */
+    public SolrSecurityWarmup.Order getWarmupOrder()
+    {
+        String order = this.configuration.getProperty(PREFIX + "warmup.order", String.class);
+
+        if (order != null) {
+            return SolrSecurityWarmup.Order.valueOf(order.toUpperCase(Locale.ROOT));
+        }
+
+        return SolrSecurityWarmup.Order.ACTIVITY;
+    }
+
+    /**
+     * @return the maximum number of documents per second checked by the verify job, 0 or less for no limit
+     */
+    public int getVerifyRate()
+    {
+        return this.configuration.getProperty(PREFIX + "verify.rate", DEFAULT_VERIFY_RATE);
+    }
+
+    /**
+     * @return the number of hours between two verifications of the whole index, 0 or less to disable them
+     */
+    public long getVerifyInterval()
+    {
+        return this.configuration.getProperty(PREFIX + "verify.interval", 0L);
+    }
+
+    /**
+     * @return the number of threads evaluating the rights of the documents during indexing
+     */
+    public int getIndexingEvaluators()
+    {
+        int evaluators = this.configuration.getProperty(PREFIX + "indexing.evaluators",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+        return Math.max(1, evaluators);
+    }
+
+    /**
+     * @return the maximum number of documents waiting between two stages of the indexing
+     */
+    public int getIndexingQueueSize()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX + "indexing.queueSize", DEFAULT_QUEUE_SIZE));
+    }
+
+    /**
+     * @return the maximum number of documents sent to Solr in one request
+     */
+    public int getIndexingBatchSize()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX + "indexing.batchSize", DEFAULT_BATCH_SIZE));
+    }
+
+    /**
+     * @return true if the I/O bound indexing workers (database scans and Solr writers) should be virtual threads when
+     *         supported by the JVM
+     */
+    public boolean isIndexingVirtualThreads()
+    {
+        return this.configuration.getProperty(PREFIX + "indexing.virtualThreads", false);
+    }
+
+    /**
+     * @return the maximum number of database queries executed at the same time by the indexing
+     */
+    public int getIndexingDatabaseConnections()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX + "indexing.databaseConnections",
+            DEFAULT_DATABASE_CONNECTIONS));
+    }
+
+    /**
+     * @return the maximum number of update requests sent to Solr at the same time by the indexing
+     */
+    public int getIndexingSolrConnections()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX + "indexing.solrConnections",
+            DEFAULT_SOLR_CONNECTIONS));
+    }
+
+    /**
+     * @return the rights to index, {@link Right#VIEW} always being the first one
+     */
+    public List<Right> getRights()
+    {
+        List<Right> rights = new ArrayList<>();
+        rights.add(Right.VIEW);
+
+        List<String> names = this.configuration.getProperty(PREFIX + "rights", List.class);
+        if (names != null) {
+            for (String name : names) {
+                Right right = Right.toRight(StringUtils.trim(name));
+                if (right != Right.ILLEGAL && !rights.contains(right)) {
+                    rights.add(right);
+                }
+            }
+        }
+
+        return rights;
+    }
+
+    /**
+     * @return true if the users explicitly allowed to view a document should be indexed in addition to the groups
+     */
+    public boolean isIndexingUsers()
+    {
+        return this.configuration.getProperty(PREFIX + "users", false);
+    }
+
+    /**
+     * @return true if the groups should be stored once per rights owner and joined at search time instead of being
+     *         copied on each document
+     */
+    public boolean isJoinModel()
+    {
+        return this.configuration.getProperty(PREFIX + "join", false);
+    }
+
+    /**
+     * @return true if the search filter should be a {@link SolrSecurityPostFilter} resolving the groups of the user
+     *         instead of a query listing them
+     */
+    public boolean isPostFilter()
+    {
+        return this.configuration.getProperty(PREFIX + "filter.postFilter", false);
+    }
+
+    /**
+     * @return the maximum number of seconds during which the indexing of the changes made by a batch operation (XAR
+     *         import, extension install) is suspended, in case the end of the operation is never notified
+     */
+    public long getBulkTimeout()
+    {
+        return this.configuration.getProperty(PREFIX + "bulk.timeout", DEFAULT_BULK_TIMEOUT);
+    }
+
+    /**
+     * @return the hint of the {@link SolrSecurityJobCoordinator} to use
+     */
+    public String getCoordinator()
+    {
+        return this.configuration.getProperty(PREFIX + "coordinator", LocalSolrSecurityJobCoordinator.HINT);
+    }
+
+    /**
+     * @return the number of seconds after which a scope acquired by a cluster-wide {@link SolrSecurityJobCoordinator}
+     *         is considered abandoned if the node holding it did not renew it
+     */
+    public long getCoordinatorTimeout()
+    {
+        return this.configuration.getProperty(PREFIX + "coordinator.timeout", DEFAULT_COORDINATOR_TIMEOUT);
+    }
+
+    /**
+     * @return true if the Solr search core is shared by all the nodes of the cluster
+     */
+    public boolean isSharedIndex()
+    {
+        return this.configuration.getProperty(PREFIX + "cluster.sharedIndex", false);
+    }
+}
@@ -19,20 +19,31 @@
  */
 package org.xwiki.contrib.solrsecurity.internal;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.job.Job;
 import org.xwiki.job.JobException;
 import org.xwiki.job.JobExecutor;
 import org.xwiki.job.JobStatusStore;
 import org.xwiki.job.event.status.JobStatus;
 import org.xwiki.job.event.status.JobStatus.State;
+import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.QueryException;
 
 /**
  * Trigger various indexing jobs depending on input information.
@@ -49,9 +60,22 @@ public class SolrSecurityDispatcher
     @Inject
     private JobStatusStore jobsStore;
 
+    @Inject
+    private SolrSecurityHighWaterMarks marks;
+
+    @Inject
+    private SolrSecurityIndexer indexer;
+
+    @Inject
+    private SolrSecurityUpdateQueue queue;
+
     @Inject
     private Logger logger;
 
+    private int bulkJobs;
+
+    private final Set<EntityReference> overlapping = new LinkedHashSet<>();
+
     private boolean shouldIndex(List<String> id, boolean force)
     {
         if (force) {
@@ -67,11 +91,43 @@ public class SolrSecurityDispatcher
         return status == null || status.getState() != State.FINISHED;
     }
 
+    /**
+     * @param reference the reference of the entity
+     * @return true if the entity was never indexed (or its indexing did not finish) or some of its documents were
+     *         modified since the last indexing
+     */
+    public boolean needsIndexing(EntityReference reference)
+    {
+        List<String> id = SolrSecurityJobRequest.getIdForEntity(reference);
+
+        if (shouldIndex(id, false)) {
+            return true;
+        }
+
+        if (reference.getType() == EntityType.WIKI && this.jobs.getJob(id) == null) {
+            WikiReference wiki = new WikiReference(reference);
+            Date since = getHighWaterMark(wiki, id);
+
+            try {
+                return this.indexer.hasModifiedDocuments(wiki, since);
+            } catch (QueryException e) {
+                this.logger.warn("Failed to check if documents were modified in wiki [{}]: {}", wiki,
+                    ExceptionUtils.getRootCauseMessage(e));
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     /**
      * @param reference the reference of the entity for which associated rights might have changed
      * @param force true for force indexing
+     * @return the job in charge of the indexing or null if the entity does not need to be indexed or was added to the
+     *         {@link SolrSecurityUpdateQueue}
      */
-    public void indexEntity(EntityReference reference, boolean force)
+    public Job indexEntity(EntityReference reference, boolean force)
     {
         List<String> id = SolrSecurityJobRequest.getIdForEntity(reference);
 
@@ -82,8 +138,120 @@ public class SolrSecurityDispatcher
 
             request.setEntity(reference);
 
-            execute(request);
+            if (request.isUrgent()) {
+                remember(reference);
+
+                // Documents don't need the status and progress of a job
+                this.queue.add(reference);
+
+                return null;
+            }
+
+            // Make long indexing easier to follow
+            request.setVerbose(true);
+            // Nothing changed since the scope was last requested, the node already indexing it does the same work
+            request.setSkippable(!force);
+
+            return execute(request);
+        } else if (reference.getType() == EntityType.WIKI && this.jobs.getJob(id) == null) {
+            // The wiki was already indexed: only index the documents created or modified since then
+            return indexModified(new WikiReference(reference), id);
+        }
+
+        return null;
+    }
+
+    private Job indexModified(WikiReference wiki, List<String> wikiId)
+    {
+        List<String> id = SolrSecurityJobRequest.getIdForModified(wiki);
+
+        if (this.jobs.getJob(id) != null) {
+            return null;
+        }
+
+        SolrSecurityJobRequest request = new SolrSecurityJobRequest();
+
+        request.setId(id);
+
+        request.setEntity(wiki);
+        request.setSince(getHighWaterMark(wiki, wikiId));
+        request.setVerbose(true);
+        request.setSkippable(true);
+
+        return execute(request);
+    }
+
+    private Date getHighWaterMark(WikiReference wiki, List<String> wikiId)
+    {
+        Date since = this.marks.get(wiki.getName());
+
+        if (since == null) {
+            // The wiki was indexed before high-water marks were recorded
+            since = this.jobsStore.getJobStatus(wikiId).getStartDate();
+        }
+
+        return since;
+    }
+
+    private synchronized void remember(EntityReference reference)
+    {
+        // A running bulk job might have read the rights of the entity before they changed
+        if (this.bulkJobs > 0) {
+            this.overlapping.add(reference);
+        }
+    }
+
+    /**
+     * Indicate that a bulk indexing job started.
+     */
+    public synchronized void startBulk()
+    {
+        ++this.bulkJobs;
+    }
+
+    /**
+     * Indicate that a bulk indexing job finished and index again the urgent entities which were updated while it was
+     * running, since it might have overwritten them with outdated rights.
+     */
+    public void finishBulk()
+    {
+        List<EntityReference> references;
+        synchronized (this) {
+            if (--this.bulkJobs > 0 || this.overlapping.isEmpty()) {
+                return;
+            }
+
+            references = new ArrayList<>(this.overlapping);
+            this.overlapping.clear();
+        }
+
+        this.queue.addAll(references);
+    }
+
+    /**
+     * Index several entities in a single job.
+     * 
+     * @param references the references of the entities for which associated rights might have changed
+     * @return the job in charge of the indexing, null if the entities were added to the {@link SolrSecurityUpdateQueue}
+     */
+    public Job indexEntities(Collection<EntityReference> references)
+    {
+        SolrSecurityJobRequest request = new SolrSecurityJobRequest();
+
+        request.setId(SolrSecurityJobRequest.getIdForEntities());
+
+        request.setEntities(new ArrayList<>(references));
+
+        if (request.isUrgent()) {
+            references.forEach(this::remember);
+
+            // Documents don't need the status and progress of a job
+            this.queue.addAll(references);
+
+            return null;
         }
+
+        return execute(request);
     }
 
     /**
@@ -96,16 +264,122 @@ public class SolrSecurityDispatcher
         request.setId(SolrSecurityJobRequest.getIdForGroup(groupReference));
 
         request.setGroupReference(groupReference);
+        request.setVerbose(true);
 
         execute(request);
     }
 
-    private void execute(SolrSecurityJobRequest request)
+    /**
+     * @param groupReference the reference of the deleted group to remove from the documents which reference it
+     */
+    public void purgeGroup(DocumentReference groupReference)
+    {
+        List<String> id = SolrSecurityJobRequest.getIdForPurge(groupReference);
+
+        // Deleting a group deletes each of its member objects, the group only needs to be purged once
+        if (this.jobs.getJob(id) != null) {
+            return;
+        }
+
+        SolrSecurityJobRequest request = new SolrSecurityJobRequest();
+
+        request.setId(id);
+
+        request.setPurgedGroup(groupReference);
+
+        execute(request);
+    }
+
+    /**
+     * @param wiki the reference of the deleted wiki whose groups should be removed from the documents of the other
+     *            wikis
+     */
+    public void purgeWiki(WikiReference wiki)
+    {
+        SolrSecurityJobRequest request = new SolrSecurityJobRequest();
+
+        request.setId(SolrSecurityJobRequest.getIdForPurge(wiki));
+
+        request.setPurgedWiki(wiki);
+
+        execute(request);
+    }
+
+    /**
+     * Compare the allowed groups stored in the index with the current rights and fix the documents which differ.
+     * 
+     * @param wiki the reference of the wiki to verify or null for the whole farm
+     * @return the job in charge of the verification, null if it could not be started
+     */
+    public Job verify(WikiReference wiki)
+    {
+        List<String> id = SolrSecurityJobRequest.getIdForVerify(wiki);
+
+        // Don't queue a second verification of the same scope (for example from the scheduler on a slow index)
+        Job job = this.jobs.getJob(id);
+        if (job != null) {
+            return job;
+        }
+
+        SolrSecurityJobRequest request = new SolrSecurityJobRequest();
+
+        request.setId(id);
+
+        request.setEntity(wiki);
+
+        return execute(SolrSecurityVerifyJob.JOBTYPE, request);
+    }
+
+    /**
+     * Write the allowed groups stored in the index to a compressed file.
+     * 
+     * @param wiki the reference of the wiki to export or null for the whole farm
+     * @param file the file to write
+     * @return the job in charge of the export
+     */
+    public Job exportSnapshot(WikiReference wiki, File file)
+    {
+        SolrSecurityJobRequest request = new SolrSecurityJobRequest();
+
+        request.setId(SolrSecurityJobRequest.getIdForSnapshot("export", wiki));
+
+        request.setEntity(wiki);
+        request.setFile(file);
+
+        return execute(SolrSecurityExportJob.JOBTYPE, request);
+    }
+
+    /**
+     * Restore the allowed groups stored in a file produced by {@link #exportSnapshot(WikiReference, File)}, without
+     * evaluating any right.
+     * 
+     * @param file the file to read
+     * @return the job in charge of the import
+     */
+    public Job importSnapshot(File file)
+    {
+        SolrSecurityJobRequest request = new SolrSecurityJobRequest();
+
+        request.setId(SolrSecurityJobRequest.getIdForSnapshot("import", null));
+
+        request.setFile(file);
+
+        return execute(SolrSecurityImportJob.JOBTYPE, request);
+    }
+
+    private Job execute(SolrSecurityJobRequest request)
+    {
+        return execute(SolrSecurityJob.JOBTYPE, request);
+    }
+
+    private Job execute(String jobType, SolrSecurityJobRequest request)
     {
         try {
-            this.jobs.execute(SolrSecurityJob.JOBTYPE, request);
+            return this.jobs.execute(jobType, request);
         } catch (JobException e) {
             this.logger.error("Failed to start the job for request [{}]", request, e);
         }
+
+        return null;
     }
 }
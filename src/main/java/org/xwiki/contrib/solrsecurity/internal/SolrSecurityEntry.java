@@ -0,0 +1,159 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import org.xwiki.security.authorization.Right;
+
+/**
+ * The result of the evaluation of the rights of a document, waiting to be written in the Solr index.
+ * 
+ * @version $Id$
+ */
+public class SolrSecurityEntry
+{
+    private final String document;
+
+    private final List<String> locales;
+
+    private final SolrSecurityGroupTable groups;
+
+    private final List<Right> rights;
+
+    private final BitSet[] allowed;
+
+    private final Collection<String> allowedUsers;
+
+    private final String owner;
+
+    /**
+     * @param document the serialized reference of the document
+     * @param locales the locales of the document
+     * @param groups the evaluated groups
+     * @param rights the evaluated rights
+     * @param allowed for each evaluated right, the indexes in the group table of the groups having this right
+     */
+    public SolrSecurityEntry(String document, List<String> locales, SolrSecurityGroupTable groups, List<Right> rights,
+        BitSet[] allowed)
+    {
+        this(document, locales, groups, rights, allowed, null);
+    }
+
+    /**
+     * @param document the serialized reference of the document
+     * @param locales the locales of the document
+     * @param groups the evaluated groups
+     * @param rights the evaluated rights
+     * @param allowed for each evaluated right, the indexes in the group table of the groups having this right
+     * @param allowedUsers the serialized references of the users explicitly allowed to view the document, null if
+     *            users are not indexed
+     */
+    public SolrSecurityEntry(String document, List<String> locales, SolrSecurityGroupTable groups, List<Right> rights,
+        BitSet[] allowed, Collection<String> allowedUsers)
+    {
+        this(document, locales, groups, rights, allowed, allowedUsers, null);
+    }
+
+    /**
+     * @param document the serialized reference of the document
+     * @param locales the locales of the document
+     * @param groups the evaluated groups
+     * @param rights the evaluated rights
+     * @param allowed for each evaluated right, the indexes in the group table of the groups having this right
+     * @param allowedUsers the serialized references of the users explicitly allowed to view the document, null if
+     *            users are not indexed
+     * @param owner the identifier of the Solr document holding the groups of the rights owner of the document, null
+     *            if the groups are stored on the document itself
+     */
+    public SolrSecurityEntry(String document, List<String> locales, SolrSecurityGroupTable groups, List<Right> rights,
+        BitSet[] allowed, Collection<String> allowedUsers, String owner)
+    {
+        this.document = document;
+        this.locales = locales;
+        this.groups = groups;
+        this.rights = rights;
+        this.allowed = allowed;
+        this.allowedUsers = allowedUsers;
+        this.owner = owner;
+    }
+
+    /**
+     * @return the serialized reference of the document
+     */
+    public String getDocument()
+    {
+        return this.document;
+    }
+
+    /**
+     * @return the locales of the document
+     */
+    public List<String> getLocales()
+    {
+        return this.locales;
+    }
+
+    /**
+     * @return the evaluated rights
+     */
+    public List<Right> getRights()
+    {
+        return this.rights;
+    }
+
+    /**
+     * @param right the index of the right in {@link #getRights()}
+     * @return the groups having this right on the document
+     */
+    public Collection<String> getAllowedGroups(int right)
+    {
+        return this.groups.getAllowed(this.allowed[right]);
+    }
+
+    /**
+     * @param right the index of the right in {@link #getRights()}
+     * @return the groups not having this right on the document
+     */
+    public Collection<String> getDeniedGroups(int right)
+    {
+        return this.groups.getDenied(this.allowed[right]);
+    }
+
+    /**
+     * @return the serialized references of the users explicitly allowed to view the document, null if users are not
+     *         indexed
+     */
+    public Collection<String> getAllowedUsers()
+    {
+        return this.allowedUsers;
+    }
+
+    /**
+     * @return the identifier of the Solr document holding the groups of the rights owner of the document, null if the
+     *         groups are stored on the document itself
+     */
+    public String getOwner()
+    {
+        return this.owner;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+import org.xwiki.job.Request;
+import org.xwiki.model.EntityType;
+import org.xwiki.search.solr.internal.api.FieldUtils;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+/**
+ * A job in charge of writing the allowed groups of all the documents stored in the Solr index to a snapshot file.
+ * 
+ * @version $Id$
+ */
+@Component
+@Named(SolrSecurityExportJob.JOBTYPE)
+public class SolrSecurityExportJob
+    extends AbstractJob<SolrSecurityJobRequest, DefaultJobStatus<SolrSecurityJobRequest>> implements GroupedJob
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOBTYPE = "solrsecurity.export";
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Inject
+    private WikiDescriptorManager wikis;
+
+    @Inject
+    private SolrSecurityStore solrStore;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Override
+    protected SolrSecurityJobRequest castRequest(Request request)
+    {
+        SolrSecurityJobRequest indexerRequest;
+        if (request instanceof SolrSecurityJobRequest) {
+            indexerRequest = (SolrSecurityJobRequest) request;
+        } else {
+            indexerRequest = new SolrSecurityJobRequest(request);
+        }
+
+        return indexerRequest;
+    }
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        // Don't export the index while it's being modified by another job
+        return SolrSecurityJob.GROUP_PATH;
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        Collection<String> wikiIds;
+        if (getRequest().getEntity() != null) {
+            wikiIds = Collections.singletonList(getRequest().getEntity().extractReference(EntityType.WIKI).getName());
+        } else {
+            wikiIds = this.wikis.getAllIds();
+        }
+
+        List<String> fields = new ArrayList<>();
+        for (Right right : this.configuration.getRights()) {
+            fields.add(SolrSecurityStore.getField(right));
+        }
+        if (this.configuration.isIndexingUsers()) {
+            fields.add(SolrSecurityStore.USERS_FIELD);
+        }
+        if (this.configuration.isJoinModel()) {
+            fields.add(SolrSecurityStore.OWNER_FIELD);
+        }
+
+        long exported = 0;
+
+        this.progressManager.pushLevelProgress(wikiIds.size(), this);
+
+        try (SolrSecuritySnapshot.Writer writer = new SolrSecuritySnapshot.Writer(getRequest().getFile(), fields)) {
+            for (String wiki : wikiIds) {
+                this.progressManager.startStep(this);
+
+                exported += export(wiki, fields, writer);
+
+                this.progressManager.endStep(this);
+            }
+        } finally {
+            this.progressManager.popLevelProgress(this);
+        }
+
+        this.logger.info("Exported the allowed groups of [{}] Solr documents to [{}]", exported,
+            getRequest().getFile());
+    }
+
+    private long export(String wiki, List<String> fields, SolrSecuritySnapshot.Writer writer) throws Exception
+    {
+        SolrQuery query = new SolrQuery("*:*");
+        if (this.configuration.isJoinModel()) {
+            // The groups are stored in the Solr documents of the rights owners
+            query.addFilterQuery(FieldUtils.TYPE + ':' + EntityType.DOCUMENT.name() + " OR " + FieldUtils.ID + ':'
+                + ClientUtils.escapeQueryChars(SolrSecurityRightsOwners.ID_PREFIX) + '*');
+        } else {
+            query.addFilterQuery(FieldUtils.TYPE + ':' + EntityType.DOCUMENT.name());
+        }
+        query.addFilterQuery(FieldUtils.WIKI + ':' + ClientUtils.escapeQueryChars(wiki));
+        query.setFields(FieldUtils.ID);
+        for (String field : fields) {
+            query.addField(field);
+        }
+        query.setRows(BATCH_SIZE);
+        query.setSort(FieldUtils.ID, SolrQuery.ORDER.asc);
+
+        long exported = 0;
+
+        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        while (true) {
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+
+            QueryResponse response = this.solrStore.query(query);
+
+            for (SolrDocument solrDocument : response.getResults()) {
+                List<List<String>> values = new ArrayList<>(fields.size());
+                for (String field : fields) {
+                    List<String> fieldValues = new ArrayList<>();
+                    Collection<Object> storedValues = solrDocument.getFieldValues(field);
+                    if (storedValues != null) {
+                        for (Object storedValue : storedValues) {
+                            fieldValues.add((String) storedValue);
+                        }
+                    }
+                    values.add(fieldValues);
+                }
+
+                writer.write((String) solrDocument.getFieldValue(FieldUtils.ID), values);
+
+                ++exported;
+            }
+
+            String nextCursorMark = response.getNextCursorMark();
+            if (cursorMark.equals(nextCursorMark)) {
+                break;
+            }
+            cursorMark = nextCursorMark;
+        }
+
+        return exported;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.core.SolrCore;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.search.solr.Solr;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.user.group.GroupException;
+import org.xwiki.user.group.GroupManager;
+import org.xwiki.user.group.WikiTarget;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+/**
+ * Build the Solr filter query restricting search results to the documents a user is allowed to see.
+ * <p>
+ * The filter relies on the {@code terms} query parser which is much cheaper to parse than a boolean query when the
+ * user is member of hundreds of groups. Group names are sorted so that users with the same groups share the same
+ * entry in the Solr filter cache (unless users are indexed too). When the groups are stored per rights owner, the
+ * filter joins the documents with the Solr documents of their rights owners.
+ * <p>
+ * For users member of hundreds of groups, the filter can instead be a {@link SolrSecurityPostFilter} only carrying the
+ * reference of the user, when enabled and supported by the search core.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityFilterQueryBuilder.class)
+@Singleton
+public class SolrSecurityFilterQueryBuilder
+{
+    private static final char SEPARATOR = ',';
+
+    private static final int CACHE_SIZE = 1000;
+
+    private final Map<DocumentReference, Map<Right, String>> cache = createCache();
+
+    private final Map<String, Set<String>> groupCache = createCache();
+
+    @Inject
+    private GroupManager groupManager;
+
+    @Inject
+    private DocumentReferenceResolver<String> documentResolver;
+
+    @Inject
+    private Solr solr;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private WikiDescriptorManager wikis;
+
+    @Inject
+    private Provider<SolrSecurityWarmup> warmupProvider;
+
+    private final SolrSecurityPostFilter postFilter = new SolrSecurityPostFilter(this::getUserGroups);
+
+    /**
+     * The cores on which the post filter was checked, a reloaded core is a new instance without the query parser.
+     */
+    private final Map<SolrCore, Boolean> postFilterCores = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private volatile boolean postFilterWarned;
+
+    private static <K, V> Map<K, V> createCache()
+    {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75F, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+            {
+                return size() > CACHE_SIZE;
+            }
+        });
+    }
+
+    /**
+     * Forget the filters computed so far.
+     */
+    public void invalidate()
+    {
+        this.cache.clear();
+        this.groupCache.clear();
+    }
+
+    /**
+     * @param user the user searching, null for guest
+     * @param right the right to check
+     * @return the filter query matching the documents on which a group of the user has the passed right
+     * @throws GroupException when failing to resolve the groups of the user
+     */
+    public String getFilterQuery(DocumentReference user, Right right) throws GroupException
+    {
+        // Someone is searching in the current wiki: index it first if it's still waiting to be indexed
+        this.warmupProvider.get().prioritize(new WikiReference(this.wikis.getCurrentWikiId()));
+
+        String field = SolrSecurityStore.getField(right);
+        boolean users = right == Right.VIEW && this.configuration.isIndexingUsers();
+
+        if (isPostFilter()) {
+            // The groups are resolved by the post filter itself
+            return SolrSecurityPostFilter.getFilterQuery(field, user != null ? this.serializer.serialize(user) : null,
+                users ? SolrSecurityStore.USERS_FIELD : null);
+        }
+
+        if (user == null) {
+            // The index only contains groups and guest is not member of any group
+            return build(field, new TreeSet<>());
+        }
+
+        Map<Right, String> filters = this.cache.computeIfAbsent(user, k -> new ConcurrentHashMap<>());
+
+        String filter = filters.get(right);
+        if (filter == null) {
+            filter = build(field, getGroups(user));
+
+            if (users) {
+                // Also match the documents on which the user is explicitly allowed
+                filter = "_query_:\"" + StringUtils.replaceEach(filter, new String[] {"\\", "\""},
+                    new String[] {"\\\\", "\\\""}) + "\" OR " + SolrSecurityStore.USERS_FIELD + ':'
+                    + ClientUtils.escapeQueryChars(this.serializer.serialize(user));
+            }
+
+            filters.put(right, filter);
+        }
+
+        return filter;
+    }
+
+    private Set<String> getGroups(DocumentReference user) throws GroupException
+    {
+        return serialize(this.groupManager.getGroups(user, WikiTarget.ALL, true));
+    }
+
+    private Collection<String> getUserGroups(String user)
+    {
+        // Don't hold the cache lock while resolving the groups
+        Set<String> groups = this.groupCache.get(user);
+        if (groups == null) {
+            try {
+                groups = getGroups(this.documentResolver.resolve(user));
+            } catch (GroupException e) {
+                this.logger.error("Failed to resolve the groups of user [{}]", user, e);
+
+                // Only match the documents on which the user is explicitly allowed
+                return Collections.emptySet();
+            }
+
+            this.groupCache.put(user, groups);
+        }
+
+        return groups;
+    }
+
+    private boolean isPostFilter()
+    {
+        if (!this.configuration.isPostFilter() || this.configuration.isJoinModel()) {
+            return false;
+        }
+
+        try {
+            SolrClient client = this.solr.getClient("search");
+            if (client instanceof EmbeddedSolrServer) {
+                boolean registered = false;
+                for (SolrCore core : ((EmbeddedSolrServer) client).getCoreContainer().getCores()) {
+                    registered |= this.postFilterCores.computeIfAbsent(core, this::registerPostFilter);
+                }
+
+                if (registered) {
+                    this.postFilterWarned = false;
+
+                    return true;
+                }
+            }
+
+            if (!this.postFilterWarned) {
+                this.postFilterWarned = true;
+
+                this.logger.warn("The Solr security post filter requires an embedded search core with doc values on"
+                    + " the allowed fields, falling back on a standard filter query");
+            }
+        } catch (Exception e) {
+            this.logger.warn("Failed to get the Solr search core, falling back on a standard filter query: {}",
+                ExceptionUtils.getRootCauseMessage(e));
+        }
+
+        return false;
+    }
+
+    private boolean registerPostFilter(SolrCore core)
+    {
+        // Every field read by the post filter must have doc values
+        List<String> fields = new ArrayList<>();
+        for (Right right : this.configuration.getRights()) {
+            fields.add(SolrSecurityStore.getField(right));
+        }
+        if (this.configuration.isIndexingUsers()) {
+            fields.add(SolrSecurityStore.USERS_FIELD);
+        }
+
+        try {
+            return this.postFilter.register(core, fields.toArray(new String[0]));
+        } catch (Exception e) {
+            this.logger.warn("Failed to register the Solr security post filter in core [{}]: {}", core.getName(),
+                ExceptionUtils.getRootCauseMessage(e));
+
+            return false;
+        }
+    }
+
+    private Set<String> serialize(Collection<DocumentReference> groups)
+    {
+        Set<String> names = new TreeSet<>();
+        for (DocumentReference group : groups) {
+            names.add(this.serializer.serialize(group));
+        }
+
+        return names;
+    }
+
+    private String build(String field, Set<String> names)
+    {
+        String filter;
+        if (names.stream().noneMatch(name -> name.indexOf(SEPARATOR) >= 0)) {
+            filter = "{!terms f=" + field + '}' + StringUtils.join(names, SEPARATOR);
+        } else {
+            // The terms query parser does not support escaping the separator
+            filter = field + ":("
+                + names.stream().map(ClientUtils::escapeQueryChars).collect(Collectors.joining(" OR ")) + ')';
+        }
+
+        if (this.configuration.isJoinModel()) {
+            // Match the documents whose rights owner is allowed
+            filter = "{!join from=" + SolrSecurityStore.ID + " to=" + SolrSecurityStore.OWNER_FIELD + " v='"
+                + StringUtils.replaceEach(filter, new String[] {"\\", "'"}, new String[] {"\\\\", "\\'"}) + "'}";
+        }
+
+        return filter;
+    }
+}
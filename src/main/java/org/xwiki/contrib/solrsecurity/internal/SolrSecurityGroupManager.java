@@ -21,11 +21,14 @@ package org.xwiki.contrib.solrsecurity.internal;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -53,7 +56,8 @@ import com.xpn.xwiki.user.api.XWikiGroupService;
 @Singleton
 public class SolrSecurityGroupManager
 {
-    private final Map<WikiReference, Set<DocumentReference>> cachedGroups = new ConcurrentHashMap<>();
+    private final ConcurrentMap<WikiReference, FutureTask<Set<DocumentReference>>> cachedGroups =
+        new ConcurrentHashMap<>();
 
     @Inject
     private WikiDescriptorManager wikis;
@@ -77,8 +81,13 @@ public class SolrSecurityGroupManager
      */
     public void invalidate(WikiReference wiki)
     {
-        this.cachedGroups.remove(wiki);
-        this.cachedGroups.remove(new WikiReference(this.wikis.getMainWikiId()));
+        if (this.wikis.getMainWikiId().equals(wiki.getName())) {
+            // The groups of all the wikis are built on top of the main wiki groups
+            this.cachedGroups.clear();
+        } else {
+            this.cachedGroups.remove(wiki);
+            this.cachedGroups.remove(new WikiReference(this.wikis.getMainWikiId()));
+        }
     }
 
     /**
@@ -135,22 +144,48 @@ public class SolrSecurityGroupManager
      */
     public Set<DocumentReference> getGroups(WikiReference wiki) throws XWikiException
     {
-        Set<DocumentReference> groups = this.cachedGroups.get(wiki);
-
-        if (groups != null) {
-            return groups;
+        FutureTask<Set<DocumentReference>> task = this.cachedGroups.get(wiki);
+
+        if (task == null) {
+            // Make sure the groups of a wiki are loaded only once when requested by several threads
+            FutureTask<Set<DocumentReference>> newTask = new FutureTask<>(() -> createGroups(wiki));
+            task = this.cachedGroups.putIfAbsent(this.factory.getReference(wiki), newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
         }
 
-        groups = new HashSet<>();
-        if (!this.wikis.getMainWikiId().equals(wiki.getName())) {
-            groups.addAll(getGroups(new WikiReference(this.wikis.getMainWikiId())));
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_UNKNOWN,
+                "Interrupted while waiting for the groups of wiki [" + wiki.getName() + "]", e);
+        } catch (ExecutionException e) {
+            // Don't cache the failure
+            this.cachedGroups.remove(wiki, task);
+
+            if (e.getCause() instanceof XWikiException) {
+                throw (XWikiException) e.getCause();
+            }
+
+            throw new XWikiException(XWikiException.MODULE_XWIKI_USER, XWikiException.ERROR_XWIKI_UNKNOWN,
+                "Failed to load the groups of wiki [" + wiki.getName() + "]", e.getCause());
         }
+    }
 
-        groups.addAll(loadGroups(wiki));
+    private Set<DocumentReference> createGroups(WikiReference wiki) throws XWikiException
+    {
+        Collection<DocumentReference> groups = loadGroups(wiki);
 
-        this.cachedGroups.put(this.factory.getReference(wiki), groups);
+        if (this.wikis.getMainWikiId().equals(wiki.getName())) {
+            return Collections.unmodifiableSet(new HashSet<>(groups));
+        }
 
-        return groups;
+        // Reference the main wiki groups instead of copying them in each wiki
+        return new SolrSecurityLayeredGroupSet(getGroups(new WikiReference(this.wikis.getMainWikiId())), groups);
     }
 
     private Collection<DocumentReference> loadGroups(WikiReference wiki) throws XWikiException
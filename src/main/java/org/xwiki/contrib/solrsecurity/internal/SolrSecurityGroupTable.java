@@ -0,0 +1,168 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.AbstractCollection;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+/**
+ * An immutable indexed list of groups, serialized once, used to represent the allowed groups of a document as a
+ * {@link BitSet} instead of lists of strings.
+ * 
+ * @version $Id$
+ */
+public class SolrSecurityGroupTable
+{
+    private final Collection<DocumentReference> source;
+
+    private final DocumentReference[] groups;
+
+    private final String[] names;
+
+    /**
+     * @param groups the groups
+     * @param serializer the serializer used to generate the names of the groups stored in the index
+     */
+    public SolrSecurityGroupTable(Collection<DocumentReference> groups, EntityReferenceSerializer<String> serializer)
+    {
+        this.source = groups;
+        this.groups = groups.toArray(new DocumentReference[0]);
+        this.names = new String[this.groups.length];
+
+        for (int i = 0; i < this.groups.length; ++i) {
+            this.names[i] = serializer.serialize(this.groups[i]);
+        }
+    }
+
+    /**
+     * @return the collection from which this table was created
+     */
+    public Collection<DocumentReference> getSource()
+    {
+        return this.source;
+    }
+
+    /**
+     * @return the number of groups
+     */
+    public int size()
+    {
+        return this.groups.length;
+    }
+
+    /**
+     * @param index the index of the group
+     * @return the reference of the group
+     */
+    public DocumentReference getGroup(int index)
+    {
+        return this.groups[index];
+    }
+
+    /**
+     * @param index the index of the group
+     * @return the name of the group stored in the index
+     */
+    public String getName(int index)
+    {
+        return this.names[index];
+    }
+
+    /**
+     * @param allowed the indexes of the allowed groups
+     * @return a view on the names of the allowed groups
+     */
+    public Collection<String> getAllowed(BitSet allowed)
+    {
+        return new GroupNames(allowed, true);
+    }
+
+    /**
+     * @param allowed the indexes of the allowed groups
+     * @return a view on the names of the groups which are not allowed
+     */
+    public Collection<String> getDenied(BitSet allowed)
+    {
+        return new GroupNames(allowed, false);
+    }
+
+    private final class GroupNames extends AbstractCollection<String>
+    {
+        private final BitSet bits;
+
+        private final boolean set;
+
+        private GroupNames(BitSet bits, boolean set)
+        {
+            this.bits = bits;
+            this.set = set;
+        }
+
+        private int nextIndex(int from)
+        {
+            int index = this.set ? this.bits.nextSetBit(from) : this.bits.nextClearBit(from);
+
+            return index >= 0 && index < names.length ? index : -1;
+        }
+
+        @Override
+        public int size()
+        {
+            int cardinality = this.bits.cardinality();
+
+            return this.set ? cardinality : names.length - cardinality;
+        }
+
+        @Override
+        public Iterator<String> iterator()
+        {
+            return new Iterator<String>()
+            {
+                private int index = nextIndex(0);
+
+                @Override
+                public boolean hasNext()
+                {
+                    return this.index >= 0;
+                }
+
+                @Override
+                public String next()
+                {
+                    if (this.index < 0) {
+                        throw new NoSuchElementException();
+                    }
+
+                    String name = names[this.index];
+
+                    this.index = nextIndex(this.index + 1);
+
+                    return name;
+                }
+            };
+        }
+    }
+}
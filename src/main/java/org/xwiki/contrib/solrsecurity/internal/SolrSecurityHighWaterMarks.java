@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+
+/**
+ * Remember, for each wiki, the start date of the last successful indexing of all its documents. Documents modified
+ * after that date are the only ones which might not be indexed.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityHighWaterMarks.class)
+@Singleton
+public class SolrSecurityHighWaterMarks implements Initializable
+{
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Logger logger;
+
+    private File file;
+
+    private final Properties marks = new Properties();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.file = new File(this.environment.getPermanentDirectory(), "solrsecurity/marks.properties");
+
+        if (this.file.exists()) {
+            try (InputStream stream = Files.newInputStream(this.file.toPath())) {
+                this.marks.load(stream);
+            } catch (IOException e) {
+                throw new InitializationException("Failed to load the Solr security high-water marks", e);
+            }
+        }
+    }
+
+    /**
+     * @param wiki the identifier of the wiki
+     * @return the start date of the last successful indexing of the wiki, or null if unknown
+     */
+    public synchronized Date get(String wiki)
+    {
+        String mark = this.marks.getProperty(wiki);
+
+        return mark != null ? new Date(Long.parseLong(mark)) : null;
+    }
+
+    /**
+     * @param wiki the identifier of the wiki
+     * @param date the start date of a successful indexing of all the documents modified in the wiki
+     */
+    public synchronized void set(String wiki, Date date)
+    {
+        Date current = get(wiki);
+
+        // Never go back in time
+        if (current == null || current.before(date)) {
+            this.marks.setProperty(wiki, String.valueOf(date.getTime()));
+
+            save();
+        }
+    }
+
+    /**
+     * @param wiki the identifier of the wiki to forget
+     */
+    public synchronized void remove(String wiki)
+    {
+        if (this.marks.remove(wiki) != null) {
+            save();
+        }
+    }
+
+    private void save()
+    {
+        try {
+            Files.createDirectories(this.file.getParentFile().toPath());
+
+            // Write the whole file then replace the previous one to never end up with a partial file
+            File tmpFile = new File(this.file.getParentFile(), this.file.getName() + ".tmp");
+            try (OutputStream stream = Files.newOutputStream(tmpFile.toPath())) {
+                this.marks.store(stream, null);
+            }
+            Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.logger.error("Failed to save the Solr security high-water marks", e);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.JobGroupPath;
+import org.xwiki.job.Request;
+import org.xwiki.search.solr.internal.api.FieldUtils;
+
+/**
+ * A job in charge of restoring the allowed groups of the documents stored in the Solr index from a snapshot file.
+ * Documents which are not (or not anymore) in the index are skipped.
+ * 
+ * @version $Id$
+ */
+@Component
+@Named(SolrSecurityImportJob.JOBTYPE)
+public class SolrSecurityImportJob
+    extends AbstractJob<SolrSecurityJobRequest, DefaultJobStatus<SolrSecurityJobRequest>> implements GroupedJob
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOBTYPE = "solrsecurity.import";
+
+    private static final int MAX_CLAUSES = 500;
+
+    private static final char SEPARATOR = ',';
+
+    @Inject
+    private SolrSecurityStore solrStore;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Override
+    protected SolrSecurityJobRequest castRequest(Request request)
+    {
+        SolrSecurityJobRequest indexerRequest;
+        if (request instanceof SolrSecurityJobRequest) {
+            indexerRequest = (SolrSecurityJobRequest) request;
+        } else {
+            indexerRequest = new SolrSecurityJobRequest(request);
+        }
+
+        return indexerRequest;
+    }
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        // Don't restore the index while it's being modified by another job
+        return SolrSecurityJob.GROUP_PATH;
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        int batchSize = this.configuration.getIndexingBatchSize();
+
+        long imported = 0;
+        long total = 0;
+
+        try (SolrSecuritySnapshot.Reader reader = new SolrSecuritySnapshot.Reader(getRequest().getFile())) {
+            List<String> fields = reader.getFields();
+
+            List<SolrSecuritySnapshot.Record> batch = new ArrayList<>(batchSize);
+            for (SolrSecuritySnapshot.Record snapshotRecord = reader.read(); snapshotRecord != null;
+                snapshotRecord = reader.read()) {
+                batch.add(snapshotRecord);
+
+                if (batch.size() >= batchSize) {
+                    imported += flush(fields, batch);
+                    total += batch.size();
+                    batch.clear();
+                }
+            }
+            imported += flush(fields, batch);
+            total += batch.size();
+        } finally {
+            this.solrStore.commit();
+        }
+
+        this.logger.info("Imported the allowed groups of [{}] Solr documents from [{}] ([{}] unknown documents)",
+            imported, getRequest().getFile(), total - imported);
+    }
+
+    private int flush(List<String> fields, List<SolrSecuritySnapshot.Record> batch) throws Exception
+    {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        // An atomic update on a missing document would create a document containing only the allowed groups
+        Set<String> existing = getExisting(batch);
+
+        // The Solr documents of the rights owners only exist for the extension and are created if needed
+        List<SolrSecuritySnapshot.Record> records = batch.stream()
+            .filter(r -> existing.contains(r.getId()) || r.getId().startsWith(SolrSecurityRightsOwners.ID_PREFIX))
+            .collect(Collectors.toList());
+
+        this.solrStore.replace(fields, records);
+
+        return records.size();
+    }
+
+    private Set<String> getExisting(List<SolrSecuritySnapshot.Record> batch) throws Exception
+    {
+        Set<String> existing = new HashSet<>(batch.size());
+
+        // Stay far from the maximum number of clauses of a boolean query
+        for (int i = 0; i < batch.size(); i += MAX_CLAUSES) {
+            List<String> ids = batch.subList(i, Math.min(i + MAX_CLAUSES, batch.size())).stream()
+                .map(SolrSecuritySnapshot.Record::getId).collect(Collectors.toList());
+
+            SolrQuery query = new SolrQuery("*:*");
+            if (ids.stream().noneMatch(id -> id.indexOf(SEPARATOR) >= 0)) {
+                // Not limited by the maximum number of clauses and much cheaper to parse
+                query.addFilterQuery("{!terms f=" + FieldUtils.ID + '}' + StringUtils.join(ids, SEPARATOR));
+            } else {
+                // The terms query parser does not support escaping the separator
+                query.addFilterQuery(FieldUtils.ID + ":("
+                    + ids.stream().map(ClientUtils::escapeQueryChars).collect(Collectors.joining(" OR ")) + ')');
+            }
+            query.setFields(FieldUtils.ID);
+            query.setRows(ids.size());
+
+            for (SolrDocument solrDocument : this.solrStore.query(query).getResults()) {
+                existing.add((String) solrDocument.getFieldValue(FieldUtils.ID));
+            }
+        }
+
+        return existing;
+    }
+}
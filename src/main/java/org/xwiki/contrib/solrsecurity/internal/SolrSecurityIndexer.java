@@ -20,25 +20,51 @@
 package org.xwiki.contrib.solrsecurity.internal;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobContext;
+import org.xwiki.job.event.status.JobProgressManager;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReferenceResolver;
 import org.xwiki.model.reference.WikiReference;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
@@ -55,8 +81,16 @@ import com.xpn.xwiki.XWikiException;
  */
 @Component(roles = SolrSecurityIndexer.class)
 @Singleton
-public class SolrSecurityIndexer
+public class SolrSecurityIndexer implements Initializable, Disposable
 {
+    private static final int SCAN_SIZE = 1000;
+
+    private static final int CHUNK_ATTEMPTS = 3;
+
+    private static final String SPACE_PREFERENCES = "WebPreferences";
+
+    private static final String WIKI_PREFERENCES = "XWiki.XWikiPreferences";
+
     @Inject
     private DocumentReferenceResolver<String> documentResolver;
 
@@ -79,13 +113,79 @@ public class SolrSecurityIndexer
     @Inject
     private EntityReferenceSerializer<String> serializer;
 
-    private final class DocumentRow
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private SolrSecurityLocaleResolver localeResolver;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private JobProgressManager progressManager;
+
+    @Inject
+    private Provider<SolrSecurityUpdateQueue> queueProvider;
+
+    @Inject
+    private JobContext jobContext;
+
+    @Inject
+    private SolrSecurityPlanner planner;
+
+    @Inject
+    private SolrSecurityUserResolver userResolver;
+
+    @Inject
+    private SolrSecurityRightsOwners rightsOwners;
+
+    @Inject
+    private SpaceReferenceResolver<String> spaceResolver;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<WikiReference, SolrSecurityGroupTable> groupTables = new ConcurrentHashMap<>();
+
+    private SolrSecurityThreadFactory threadFactory;
+
+    private ExecutorService workers;
+
+    private ExecutorService ioWorkers;
+
+    /**
+     * Limit the number of database queries executed at the same time by the scans.
+     */
+    private Semaphore databasePermits;
+
+    /**
+     * Limit the number of update requests sent to Solr at the same time by the writers.
+     */
+    private Semaphore solrPermits;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.databasePermits = new Semaphore(this.configuration.getIndexingDatabaseConnections());
+        this.solrPermits = new Semaphore(this.configuration.getIndexingSolrConnections());
+    }
+
+    private static final class DocumentRow
     {
         private DocumentReference documentReference;
 
-        private String documentString;
+        private final String documentString;
 
-        private List<String> languages = new ArrayList<>();
+        private final List<String> languages = new ArrayList<>();
+
+        private DocumentRow(String documentString)
+        {
+            this.documentString = documentString;
+        }
     }
 
     /**
@@ -93,45 +193,291 @@ public class SolrSecurityIndexer
      * @param groups the groups to index
      * @throws XWikiException when failing to use the XWiki API
      * @throws QueryException when failing to use execute database request
+     * @throws InterruptedException when interrupted while waiting for the documents to be indexed
      */
     public void index(EntityReference entity, Collection<DocumentReference> groups)
-        throws XWikiException, QueryException
+        throws XWikiException, QueryException, InterruptedException
     {
-        WikiReference wiki = new WikiReference(entity.extractReference(EntityType.WIKI));
+        index(Collections.singletonList(entity), groups, null);
+    }
 
-        Collection<DocumentReference> finalGroups = groups;
+    /**
+     * @param entities the entities to index
+     * @param groups the groups to index, null for all the groups of each entity's wiki
+     * @param localeCache the locales of the documents already resolved during the current job, null if none
+     * @throws XWikiException when failing to use the XWiki API
+     * @throws QueryException when failing to use execute database request
+     * @throws InterruptedException when interrupted while waiting for the documents to be indexed
+     */
+    public void index(Collection<? extends EntityReference> entities, Collection<DocumentReference> groups,
+        Map<DocumentReference, List<String>> localeCache) throws XWikiException, QueryException, InterruptedException
+    {
+        index(entities, groups, localeCache, getCurrentStatus());
+    }
 
-        if (finalGroups == null) {
-            finalGroups = this.groupManager.getGroups(wiki);
+    /**
+     * @param entities the entities to index
+     * @param groups the groups to index, null for all the groups of each entity's wiki
+     * @param localeCache the locales of the documents already resolved during the current job, null if none
+     * @param status the status in which to count the indexed Solr documents, null if none
+     * @throws XWikiException when failing to use the XWiki API
+     * @throws QueryException when failing to use execute database request
+     * @throws InterruptedException when interrupted while waiting for the documents to be indexed
+     */
+    public void index(Collection<? extends EntityReference> entities, Collection<DocumentReference> groups,
+        Map<DocumentReference, List<String>> localeCache, SolrSecurityJobStatus status)
+        throws XWikiException, QueryException, InterruptedException
+    {
+        invalidateMemberships(groups);
+
+        try {
+            indexEntities(entities, groups, localeCache, status);
+        } finally {
+            invalidateMemberships(groups);
+        }
+    }
+
+    private void indexEntities(Collection<? extends EntityReference> entities, Collection<DocumentReference> groups,
+        Map<DocumentReference, List<String>> localeCache, SolrSecurityJobStatus status)
+        throws XWikiException, QueryException, InterruptedException
+    {
+        List<DocumentReference> documents = new ArrayList<>();
+
+        for (EntityReference entity : entities) {
+            if (entity.getType() == EntityType.WIKI) {
+                index(new WikiReference(entity), groups, status);
+            } else if (entity.getType() == EntityType.SPACE) {
+                indexSpace(entity, groups, status);
+            } else if (entity instanceof DocumentReference) {
+                documents.add((DocumentReference) entity);
+            } else if (entity.getType() == EntityType.DOCUMENT) {
+                documents.add(new DocumentReference(entity));
+            }
         }
 
-        if (entity.getType() == EntityType.SPACE) {
-            index(this.localSerializer.serialize(entity), wiki, finalGroups);
-        } else if (entity instanceof DocumentReference) {
-            index((DocumentReference) entity, finalGroups);
-        } else if (entity.getType() == EntityType.DOCUMENT) {
-            index(new DocumentReference(entity), finalGroups);
+        // Documents are indexed together to resolve all their locales at once
+        if (!documents.isEmpty()) {
+            indexDocuments(documents, groups, localeCache, status);
         }
     }
 
-    /**
-     * @param document the document to index
-     * @param groups the groups to index
-     * @throws QueryException when failing to use execute database request
-     */
-    private void index(DocumentReference document, Collection<DocumentReference> groups) throws QueryException
+    private void indexSpace(EntityReference space, Collection<DocumentReference> groups,
+        SolrSecurityJobStatus status) throws XWikiException, QueryException, InterruptedException
     {
-        DocumentReference referenceWithoutLocale;
-        List<String> locales;
-        if (document.getLocale() == null) {
-            referenceWithoutLocale = document;
-            locales = getLocales(document);
+        WikiReference wiki = new WikiReference(space.extractReference(EntityType.WIKI));
+
+        SolrSecurityGroupTable table = getGroupTable(wiki, groups);
+
+        if (this.configuration.isJoinModel()) {
+            indexOwners(space, table, status);
+
+            return;
+        }
+
+        SolrSecurityPlanner.Plan plan = this.planner.plan(space, table.size(), this.configuration.getRights().size());
+
+        try (SolrSecurityPipeline<DocumentRow, SolrSecurityEntry> pipeline = createPipeline(table, plan, status)) {
+            // The space and its sub spaces are scanned next to each other
+            for (String spaceString : getSpaceTree(space, wiki)) {
+                pipeline.scan(() -> indexDocuments(spaceString, wiki, pipeline));
+            }
+            pipeline.close();
+
+            log(space, pipeline);
+        }
+    }
+
+    private void indexOwners(EntityReference parent, SolrSecurityGroupTable table, SolrSecurityJobStatus status)
+        throws QueryException, InterruptedException
+    {
+        WikiReference wiki = new WikiReference(parent.extractReference(EntityType.WIKI));
+
+        // The rights owners of the documents don't change, only the Solr documents of the rights owners are updated
+        List<EntityReference> owners = new ArrayList<>();
+        if (parent.getType() == EntityType.WIKI) {
+            for (String space : getAllSpaces(wiki.getName())) {
+                owners.add(this.spaceResolver.resolve(space, wiki));
+            }
         } else {
-            referenceWithoutLocale = new DocumentReference(document, (Locale) null);
-            locales = Arrays.asList(document.getLocale().toString());
+            for (String space : getSpaceTree(parent, wiki)) {
+                owners.add(this.spaceResolver.resolve(space, wiki));
+            }
         }
+        owners.addAll(this.rightsOwners.getRightsDocuments(parent));
+
+        // Only the rights owners are updated, not the documents counted when the indexing started
+        if (status != null) {
+            status.addTotalDocuments(owners.size());
+        }
+
+        List<Right> rights = this.configuration.getRights();
+        int batchSize = this.configuration.getIndexingBatchSize();
+        List<SolrSecurityEntry> entries = new ArrayList<>(Math.min(owners.size(), batchSize));
+        for (EntityReference owner : owners) {
+            entries.add(createOwnerEntry(owner, table, rights));
 
-        index(referenceWithoutLocale, this.serializer.serialize(referenceWithoutLocale), locales, groups);
+            if (entries.size() >= batchSize) {
+                update(entries, status);
+                entries.clear();
+            }
+        }
+        update(entries, status);
+
+        this.logger.info("Indexed [{}] rights owners in [{}]", owners.size(), parent);
+    }
+
+    private SolrSecurityEntry createOwnerEntry(EntityReference owner, SolrSecurityGroupTable groups,
+        List<Right> rights)
+    {
+        String id = this.rightsOwners.getId(owner);
+
+        return new SolrSecurityEntry(id, Collections.emptyList(), groups, rights,
+            evaluateGroups(owner, groups, rights), null, id);
+    }
+
+    private void indexDocuments(List<DocumentReference> documents, Collection<DocumentReference> groups,
+        Map<DocumentReference, List<String>> localeCache, SolrSecurityJobStatus status)
+        throws XWikiException, QueryException, InterruptedException
+    {
+        List<DocumentReference> documentsWithoutLocale = new ArrayList<>(documents.size());
+        for (DocumentReference document : documents) {
+            if (document.getLocale() == null) {
+                documentsWithoutLocale.add(document);
+            }
+        }
+        Map<DocumentReference, List<String>> locales;
+        this.databasePermits.acquire();
+        try {
+            locales = this.localeResolver.getLocales(documentsWithoutLocale, localeCache);
+        } finally {
+            this.databasePermits.release();
+        }
+
+        // The documents of each wiki are evaluated against the same groups
+        Map<WikiReference, List<DocumentRow>> wikiRows = new LinkedHashMap<>();
+        List<DocumentReference> deleted = new ArrayList<>();
+        for (DocumentReference document : documents) {
+            DocumentRow row;
+            if (document.getLocale() == null && locales.get(document).isEmpty()) {
+                // The document does not exist (anymore), there's nothing to evaluate
+                deleted.add(document);
+
+                continue;
+            } else if (document.getLocale() == null) {
+                row = new DocumentRow(this.serializer.serialize(document));
+                row.documentReference = document;
+                row.languages.addAll(locales.get(document));
+            } else {
+                DocumentReference referenceWithoutLocale = new DocumentReference(document, (Locale) null);
+                row = new DocumentRow(this.serializer.serialize(referenceWithoutLocale));
+                row.documentReference = referenceWithoutLocale;
+                row.languages.add(document.getLocale().toString());
+            }
+
+            wikiRows.computeIfAbsent(document.getWikiReference(), k -> new ArrayList<>()).add(row);
+        }
+
+        List<Right> rights = this.configuration.getRights();
+        int batchSize = this.configuration.getIndexingBatchSize();
+        // The table of the passed groups is shared by all the documents
+        SolrSecurityGroupTable groupsTable = groups != null ? createGroupTable(groups) : null;
+        List<SolrSecurityEntry> entries = new ArrayList<>(Math.min(documents.size(), batchSize));
+        for (Map.Entry<WikiReference, List<DocumentRow>> entry : wikiRows.entrySet()) {
+            SolrSecurityGroupTable table = groupsTable != null ? groupsTable : getGroupTable(entry.getKey());
+            Function<DocumentRow, SolrSecurityEntry> evaluator =
+                createEvaluator(table, rights, plan(entry.getKey(), entry.getValue(), table));
+
+            for (DocumentRow row : entry.getValue()) {
+                SolrSecurityEntry documentEntry = evaluator.apply(row);
+                if (documentEntry != null) {
+                    entries.add(documentEntry);
+
+                    if (entries.size() >= batchSize) {
+                        update(entries, status);
+                        entries.clear();
+                    }
+                }
+            }
+        }
+
+        update(entries, status);
+
+        if (!deleted.isEmpty() && this.configuration.isJoinModel()) {
+            deleteOwners(deleted);
+        }
+    }
+
+    private void deleteOwners(List<DocumentReference> deleted) throws QueryException
+    {
+        // A deleted document is not its own rights owner anymore, and its space might be empty now
+        Set<String> ids = new LinkedHashSet<>();
+        Set<EntityReference> spaces = new HashSet<>();
+        for (DocumentReference document : deleted) {
+            ids.add(this.rightsOwners.getId(document));
+
+            EntityReference space = document.getParent();
+            if (spaces.add(space) && !hasDocuments(space)) {
+                ids.add(this.rightsOwners.getId(space));
+            }
+        }
+
+        this.solrStore.delete(ids);
+    }
+
+    private boolean hasDocuments(EntityReference space) throws QueryException
+    {
+        Query query = this.queryManager.createQuery("select doc.fullName from Document doc where doc.space = :space",
+            Query.XWQL);
+        query.bindValue("space", this.localSerializer.serialize(space));
+        query.setWiki(space.extractReference(EntityType.WIKI).getName());
+        query.setLimit(1);
+
+        return !query.execute().isEmpty();
+    }
+
+    private SolrSecurityPlanner.Plan plan(WikiReference wiki, List<DocumentRow> rows, SolrSecurityGroupTable groups)
+    {
+        if (this.configuration.isJoinModel()) {
+            return SolrSecurityPlanner.direct();
+        }
+
+        List<String> documents = new ArrayList<>(rows.size());
+        Set<EntityReference> spaces = new HashSet<>();
+        for (DocumentRow row : rows) {
+            documents.add(row.documentString);
+            spaces.add(row.documentReference.getParent());
+        }
+
+        return this.planner.plan(wiki, documents, spaces.size(), groups.size(), this.configuration.getRights().size());
+    }
+
+    private void update(List<SolrSecurityEntry> entries, SolrSecurityJobStatus status)
+    {
+        try {
+            this.solrPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("Interrupted while waiting to send updates to Solr", e);
+        }
+
+        try {
+            this.solrStore.update(entries);
+        } finally {
+            this.solrPermits.release();
+        }
+
+        if (status != null) {
+            status.indexed(entries.size());
+        }
+    }
+
+    private SolrSecurityJobStatus getCurrentStatus()
+    {
+        Job job = this.jobContext.getCurrentJob();
+
+        return job != null && job.getStatus() instanceof SolrSecurityJobStatus
+            ? (SolrSecurityJobStatus) job.getStatus() : null;
     }
 
     /**
@@ -139,138 +485,568 @@ public class SolrSecurityIndexer
      * @param groups the groups to index
      * @throws XWikiException when failing to use the XWiki API
      * @throws QueryException when failing to use execute database request
+     * @throws InterruptedException when interrupted while waiting for the documents to be indexed
      */
-    public void index(WikiReference wiki, Collection<DocumentReference> groups) throws QueryException, XWikiException
+    public void index(WikiReference wiki, Collection<DocumentReference> groups)
+        throws QueryException, XWikiException, InterruptedException
+    {
+        invalidateMemberships(groups);
+
+        try {
+            index(wiki, groups, getCurrentStatus());
+        } finally {
+            invalidateMemberships(groups);
+        }
+    }
+
+    private void invalidateMemberships(Collection<DocumentReference> groups)
+    {
+        // Documents indexed for all their groups reflect the current parent groups of every group (before and after
+        // so that a group indexing running at the same time does not remember older ones)
+        if (groups == null) {
+            this.planner.invalidateMemberships();
+        }
+    }
+
+    private void index(WikiReference wiki, Collection<DocumentReference> groups, SolrSecurityJobStatus status)
+        throws QueryException, XWikiException, InterruptedException
+    {
+        SolrSecurityGroupTable table = getGroupTable(wiki, groups);
+
+        // With the join model, the rights owners of the documents don't change when only some groups are indexed
+        if (groups != null && this.configuration.isJoinModel()) {
+            indexOwners(wiki, table, status);
+
+            return;
+        }
+
+        // The wiki is indexed one space (without its sub spaces) at a time
+        List<String> spaces = getAllSpaces(wiki.getName());
+
+        SolrSecurityPlanner.Plan plan = plan(wiki, countDocuments(wiki), table);
+
+        this.progressManager.pushLevelProgress(spaces.size(), this);
+
+        try (SolrSecurityPipeline<DocumentRow, SolrSecurityEntry> pipeline = createPipeline(table, plan, status)) {
+            for (String space : spaces) {
+                this.progressManager.startStep(this);
+
+                yieldToUrgent();
+
+                // The spaces are scanned next to each other, up to the number of allowed database connections
+                pipeline.scan(() -> indexChunk(space, wiki, pipeline));
+
+                this.progressManager.endStep(this);
+            }
+            pipeline.close();
+
+            log(wiki, pipeline);
+        } finally {
+            this.progressManager.popLevelProgress(this);
+        }
+    }
+
+    private SolrSecurityPlanner.Plan plan(WikiReference wiki, long documents, SolrSecurityGroupTable groups)
     {
-        Collection<DocumentReference> finalGroups = groups;
+        // The join model always evaluates the rights once per rights owner
+        if (this.configuration.isJoinModel()) {
+            return SolrSecurityPlanner.direct();
+        }
+
+        return this.planner.plan(wiki, documents, groups.size(), this.configuration.getRights().size());
+    }
+
+    private void yieldToUrgent() throws InterruptedException
+    {
+        // Let a running document indexing finish before loading more documents
+        this.queueProvider.get().yieldTo();
+    }
 
-        if (finalGroups == null) {
-            finalGroups = this.groupManager.getGroups(wiki);
+    private void indexChunk(String space, WikiReference wiki,
+        SolrSecurityPipeline<DocumentRow, SolrSecurityEntry> pipeline) throws InterruptedException
+    {
+        // Submitting the same document several times is harmless since the update of its fields is atomic
+        for (int attempt = 1;; ++attempt) {
+            try {
+                indexDocuments(space, wiki, pipeline);
+
+                return;
+            } catch (QueryException e) {
+                if (attempt >= CHUNK_ATTEMPTS) {
+                    this.logger.error("Failed to index the documents of space [{}] in wiki [{}]", space,
+                        wiki.getName(), e);
+
+                    return;
+                }
+
+                this.logger.warn("Failed to index the documents of space [{}] in wiki [{}], retrying: {}", space,
+                    wiki.getName(), ExceptionUtils.getRootCauseMessage(e));
+            }
         }
+    }
+
+    private SolrSecurityPipeline<DocumentRow, SolrSecurityEntry> createPipeline(SolrSecurityGroupTable table,
+        SolrSecurityPlanner.Plan plan, SolrSecurityJobStatus status)
+    {
+        List<Right> rights = this.configuration.getRights();
+
+        initializeWorkers();
+
+        // The number of scans and writers match the number of connections they're allowed to use at the same time
+        return new SolrSecurityPipeline<>(createEvaluator(table, rights, plan), entries -> update(entries, status),
+            this.workers, this.ioWorkers, this.threadFactory::withContext, this.configuration.getIndexingEvaluators(),
+            this.configuration.getIndexingSolrConnections(), this.configuration.getIndexingDatabaseConnections(),
+            this.configuration.getIndexingQueueSize(), this.configuration.getIndexingBatchSize());
+    }
 
-        for (String childSpace : getSpaces(wiki.getName())) {
-            index(childSpace, wiki, finalGroups);
+    private synchronized void initializeWorkers()
+    {
+        // The same threads are reused by all the pipelines, idle threads are stopped after a while
+        if (this.workers == null) {
+            // The evaluation is CPU bound, it's always done by platform threads
+            this.threadFactory =
+                new SolrSecurityThreadFactory("solrsecurity-indexer", this.contextManager, this.execution);
+            this.workers = Executors.newCachedThreadPool(this.threadFactory);
+
+            // The scans and the writers mostly wait for the database and Solr
+            if (this.configuration.isIndexingVirtualThreads() && SolrSecurityThreadFactory.isVirtualSupported()) {
+                this.ioWorkers = Executors.newCachedThreadPool(new SolrSecurityThreadFactory("solrsecurity-indexer-io",
+                    this.contextManager, this.execution, true));
+            } else {
+                this.ioWorkers = this.workers;
+            }
         }
     }
 
-    private void index(String space, WikiReference wiki, Collection<DocumentReference> groups) throws QueryException
+    @Override
+    public synchronized void dispose() throws ComponentLifecycleException
     {
-        // Index documents
-        indexDocuments(space, wiki, groups);
+        if (this.workers != null) {
+            this.workers.shutdownNow();
+            this.ioWorkers.shutdownNow();
+        }
+    }
+
+    private Function<DocumentRow, SolrSecurityEntry> createEvaluator(SolrSecurityGroupTable table, List<Right> rights,
+        SolrSecurityPlanner.Plan plan)
+    {
+        if (this.configuration.isJoinModel()) {
+            Map<EntityReference, FutureTask<BitSet[]>> owners = new ConcurrentHashMap<>();
+
+            return row -> evaluateOwner(row, table, rights, owners);
+        }
+
+        if (plan.getStrategy() == SolrSecurityPlanner.Strategy.OWNER) {
+            Map<EntityReference, FutureTask<BitSet[]>> spaces = new ConcurrentHashMap<>();
 
-        // Index sub spaces
-        for (String childSpace : getSpaces(space, wiki.getName())) {
-            index(childSpace, wiki, groups);
+            return row -> evaluate(row, table, rights, plan, spaces);
         }
+
+        return row -> evaluate(row, table, rights);
     }
 
-    private List<String> getSpaces(String space, String wiki) throws QueryException
+    private void log(EntityReference entity, SolrSecurityPipeline<?, ?> pipeline)
+    {
+        if (pipeline.getWriteStage().getFailures() > 0) {
+            this.logger.warn("Failed to write [{}] documents of [{}]", pipeline.getWriteStage().getFailures(), entity);
+        }
+
+        this.logger.info("Indexed [{}] documents in [{}] ({}, {}, {})", pipeline.getWriteStage().getItems(), entity,
+            pipeline.getScanStage(), pipeline.getEvaluationStage(), pipeline.getWriteStage());
+    }
+
+    private List<String> getSpaceTree(EntityReference space, WikiReference wiki)
+        throws QueryException, InterruptedException
+    {
+        // The space and all its sub spaces in a single query
+        Query query = this.queryManager.createQuery("select space.reference from Space space"
+            + " where space.reference = :space or space.reference like :children order by space.reference", Query.XWQL);
+        String spaceString = this.localSerializer.serialize(space);
+        query.bindValue("space", spaceString);
+        query.bindValue("children").literal(spaceString + '.').anyChars();
+        query.setWiki(wiki.getName());
+
+        return execute(query);
+    }
+
+    private List<String> getAllSpaces(String wiki) throws QueryException, InterruptedException
     {
-        // Get the spaces
         Query query = this.queryManager
-            .createQuery("select distinct space.reference from Space space where space.parent = :parent", Query.XWQL);
-        query.bindValue("parent", space);
+            .createQuery("select space.reference from Space space order by space.reference", Query.XWQL);
         query.setWiki(wiki);
 
-        return query.execute();
+        return execute(query);
     }
 
-    private List<String> getSpaces(String wiki) throws QueryException
+    private <T> List<T> execute(Query query) throws QueryException, InterruptedException
     {
-        Query query = this.queryManager.getNamedQuery("getSpaces");
-        query.setWiki(wiki);
+        this.databasePermits.acquire();
+
+        try {
+            return query.execute();
+        } finally {
+            this.databasePermits.release();
+        }
+    }
+
+    private void indexDocuments(String space, WikiReference wiki,
+        SolrSecurityPipeline<DocumentRow, SolrSecurityEntry> pipeline) throws QueryException, InterruptedException
+    {
+        Query query = this.queryManager.createQuery("select doc.fullName, doc.language, doc.defaultLanguage"
+            + " from Document doc where doc.space = :space order by doc.fullName", Query.XWQL);
+        query.bindValue("space", space);
+
+        scan(query, wiki, pipeline);
+    }
+
+    /**
+     * @param wiki the wiki to index
+     * @param since the date after which documents were created or modified
+     * @param groups the groups to index
+     * @throws XWikiException when failing to use the XWiki API
+     * @throws QueryException when failing to use execute database request
+     * @throws InterruptedException when interrupted while waiting for the documents to be indexed
+     */
+    public void indexModified(WikiReference wiki, Date since, Collection<DocumentReference> groups)
+        throws QueryException, XWikiException, InterruptedException
+    {
+        invalidateMemberships(groups);
+
+        try {
+            indexModified(wiki, since, groups, getCurrentStatus());
+        } finally {
+            invalidateMemberships(groups);
+        }
+    }
+
+    private void indexModified(WikiReference wiki, Date since, Collection<DocumentReference> groups,
+        SolrSecurityJobStatus status) throws QueryException, XWikiException, InterruptedException
+    {
+        // Like for live events, a modified preferences document can change the rights of its whole space or wiki
+        List<String> preferences = getModifiedPreferences(wiki, since);
+        if (preferences.contains(WIKI_PREFERENCES)) {
+            index(wiki, groups, status);
+
+            return;
+        }
+
+        SolrSecurityGroupTable table = getGroupTable(wiki, groups);
+
+        SolrSecurityPlanner.Plan plan = plan(wiki, countModifiedDocuments(wiki, since), table);
+
+        // The writer is executed in another thread
+        try (SolrSecurityPipeline<DocumentRow, SolrSecurityEntry> pipeline = createPipeline(table, plan, status)) {
+            Query query = createModifiedQuery("select doc.fullName, doc.language, doc.defaultLanguage", since,
+                " order by doc.fullName");
+            pipeline.scan(() -> scan(query, wiki, pipeline));
+            pipeline.close();
+
+            log(wiki, pipeline);
+        }
+
+        for (String preference : preferences) {
+            indexSpace(this.documentResolver.resolve(preference, wiki).getLastSpaceReference(), groups, status);
+        }
+    }
+
+    private List<String> getModifiedPreferences(WikiReference wiki, Date since) throws QueryException
+    {
+        Query query = this.queryManager.createQuery("select doc.fullName from Document doc"
+            + " where (doc.name = :space or doc.fullName = :wiki) and (doc.date > :since or doc.creationDate > :since)"
+            + " order by doc.fullName", Query.XWQL);
+        query.bindValue("space", SPACE_PREFERENCES);
+        query.bindValue("wiki", WIKI_PREFERENCES);
+        query.bindValue("since", since);
+        query.setWiki(wiki.getName());
 
         return query.execute();
     }
 
-    private void indexDocuments(String space, WikiReference wiki, Collection<DocumentReference> groups)
-        throws QueryException
+    /**
+     * @param wiki the wiki
+     * @param since the date after which documents were created or modified
+     * @return true if at least one document was created or modified in the wiki after the passed date
+     * @throws QueryException when failing to use execute database request
+     */
+    public boolean hasModifiedDocuments(WikiReference wiki, Date since) throws QueryException
     {
-        Query query = this.queryManager.createQuery(
-            "select doc.fullName, doc.language, doc.defaultLanguage from Document doc where doc.space = :space",
+        Query query = createModifiedQuery("select doc.fullName", since, "");
+        query.setWiki(wiki.getName());
+        query.setLimit(1);
+
+        return !query.execute().isEmpty();
+    }
+
+    /**
+     * @param wiki the wiki
+     * @return the number of documents (not counting their locales) in the wiki
+     * @throws QueryException when failing to use execute database request
+     */
+    public long countDocuments(WikiReference wiki) throws QueryException
+    {
+        Query query = this.queryManager.createQuery("select count(distinct doc.fullName) from Document doc",
             Query.XWQL);
-        query.bindValue("space", space);
         query.setWiki(wiki.getName());
 
-        List<Object[]> rows = query.execute();
+        return ((Number) query.execute().get(0)).longValue();
+    }
+
+    /**
+     * @param wiki the wiki
+     * @param since the date after which documents were created or modified
+     * @return the number of documents (not counting their locales) created or modified in the wiki after the passed
+     *         date
+     * @throws QueryException when failing to use execute database request
+     */
+    public long countModifiedDocuments(WikiReference wiki, Date since) throws QueryException
+    {
+        Query query = createModifiedQuery("select count(distinct doc.fullName)", since, "");
+        query.setWiki(wiki.getName());
+
+        return ((Number) query.execute().get(0)).longValue();
+    }
+
+    private Query createModifiedQuery(String select, Date since, String orderBy) throws QueryException
+    {
+        Query query = this.queryManager.createQuery(
+            select + " from Document doc where doc.date > :since or doc.creationDate > :since" + orderBy, Query.XWQL);
+        query.bindValue("since", since);
+
+        return query;
+    }
+
+    private void scan(Query query, WikiReference wiki, SolrSecurityPipeline<DocumentRow, SolrSecurityEntry> pipeline)
+        throws QueryException, InterruptedException
+    {
+        // Rows are sorted so that all the locales of a document are consecutive, even across pages
+        query.setWiki(wiki.getName());
+        query.setLimit(SCAN_SIZE);
+
+        DocumentRow document = null;
+        for (int offset = 0;; offset += SCAN_SIZE) {
+            query.setOffset(offset);
 
-        Map<DocumentReference, DocumentRow> documents = new HashMap<>(rows.size());
-        for (Object[] row : rows) {
-            String documentString = wiki.getName() + ':' + (String) row[0];
-            DocumentReference documentReference = this.documentResolver.resolve(documentString);
+            List<Object[]> rows = execute(query);
 
-            DocumentRow documentRow = documents.get(documentReference);
+            for (Object[] row : rows) {
+                String documentString = wiki.getName() + ':' + (String) row[0];
 
-            if (documentRow == null) {
-                documentRow = new DocumentRow();
-                documentRow.documentString = documentString;
-                documentRow.documentReference = documentReference;
+                if (document == null || !document.documentString.equals(documentString)) {
+                    if (document != null) {
+                        pipeline.submit(document);
+                    }
 
-                documents.put(documentReference, documentRow);
+                    document = new DocumentRow(documentString);
+                }
+
+                document.languages.add(StringUtils.defaultIfEmpty((String) row[1], (String) row[2]));
             }
 
-            documentRow.languages.add(StringUtils.defaultIfEmpty((String) row[1], (String) row[2]));
+            if (rows.size() < SCAN_SIZE) {
+                break;
+            }
         }
 
-        for (DocumentRow document : documents.values()) {
-            index(document.documentReference, document.documentString, document.languages, groups);
+        if (document != null) {
+            pipeline.submit(document);
         }
     }
 
-    private void index(DocumentReference document, String documentString, List<String> locales,
-        Collection<DocumentReference> groups)
+    private SolrSecurityEntry evaluate(DocumentRow document, SolrSecurityGroupTable groups, List<Right> rights,
+        SolrSecurityPlanner.Plan plan, Map<EntityReference, FutureTask<BitSet[]>> spaces)
     {
-        List<String> allowedGroups = new ArrayList<>(groups.size());
-        List<String> deniedGroups = new ArrayList<>(groups.size());
+        if (plan.hasRights(document.documentString)) {
+            return evaluate(document, groups, rights);
+        }
 
-        for (DocumentReference group : groups) {
-            if (this.authorization.hasAccess(Right.VIEW, group, document)) {
-                allowedGroups.add(this.serializer.serialize(group));
-            } else {
-                deniedGroups.add(this.serializer.serialize(group));
+        try {
+            DocumentReference documentReference = resolve(document);
+
+            // A document without its own rights has the same rights as the other such documents of its space
+            BitSet[] allowed = evaluateOnce(spaces, documentReference.getParent(),
+                () -> evaluateGroups(documentReference, groups, rights));
+
+            return new SolrSecurityEntry(document.documentString, document.languages, groups, rights, allowed,
+                getAllowedUsers(documentReference));
+        } catch (Exception e) {
+            this.logger.error("Failed to evaluate the rights of document [{}]", document.documentString, e);
+
+            return null;
+        }
+    }
+
+    private SolrSecurityEntry evaluateOwner(DocumentRow document, SolrSecurityGroupTable groups, List<Right> rights,
+        Map<EntityReference, FutureTask<BitSet[]>> owners)
+    {
+        try {
+            DocumentReference documentReference = resolve(document);
+
+            // The groups are stored in the Solr document of the rights owner, evaluated only once
+            EntityReference owner = this.rightsOwners.getOwner(documentReference);
+            BitSet[] allowed = evaluateOnce(owners, owner, () -> evaluateGroups(owner, groups, rights));
+
+            return new SolrSecurityEntry(document.documentString, document.languages, groups, rights, allowed,
+                getAllowedUsers(documentReference), this.rightsOwners.getId(owner));
+        } catch (Exception e) {
+            this.logger.error("Failed to evaluate the rights of document [{}]", document.documentString, e);
+
+            return null;
+        }
+    }
+
+    private BitSet[] evaluateOnce(Map<EntityReference, FutureTask<BitSet[]>> results, EntityReference key,
+        Callable<BitSet[]> evaluation) throws InterruptedException, ExecutionException
+    {
+        // Evaluate outside of the map so that the workers evaluating other keys are not blocked, only the workers
+        // needing the same key wait for the first evaluation
+        FutureTask<BitSet[]> task = new FutureTask<>(evaluation);
+        FutureTask<BitSet[]> existing = results.putIfAbsent(key, task);
+        if (existing == null) {
+            task.run();
+            existing = task;
+        }
+
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw e;
+        }
+    }
+
+    private DocumentReference resolve(DocumentRow document)
+    {
+        DocumentReference documentReference = document.documentReference;
+        if (documentReference == null) {
+            documentReference = this.documentResolver.resolve(document.documentString);
+        }
+
+        return documentReference;
+    }
+
+    private SolrSecurityEntry evaluate(DocumentRow document, SolrSecurityGroupTable groups, List<Right> rights)
+    {
+        try {
+            DocumentReference documentReference = resolve(document);
+
+            return new SolrSecurityEntry(document.documentString, document.languages, groups, rights,
+                evaluateGroups(documentReference, groups, rights), getAllowedUsers(documentReference));
+        } catch (Exception e) {
+            this.logger.error("Failed to evaluate the rights of document [{}]", document.documentString, e);
+
+            return null;
+        }
+    }
+
+    private BitSet[] evaluateGroups(EntityReference entity, SolrSecurityGroupTable groups, List<Right> rights)
+    {
+        BitSet[] allowed = new BitSet[rights.size()];
+        for (int i = 0; i < allowed.length; ++i) {
+            allowed[i] = new BitSet(groups.size());
+        }
+
+        // Evaluate all the rights of a group together while its security cache entries are hot
+        for (int i = 0; i < groups.size(); ++i) {
+            DocumentReference group = groups.getGroup(i);
+
+            for (int j = 0; j < allowed.length; ++j) {
+                if (this.authorization.hasAccess(rights.get(j), group, entity)) {
+                    allowed[j].set(i);
+                }
             }
         }
 
-        this.solrStore.update(documentString, locales, allowedGroups, deniedGroups);
+        return allowed;
+    }
+
+    private SolrSecurityGroupTable getGroupTable(WikiReference wiki, Collection<DocumentReference> groups)
+        throws XWikiException
+    {
+        // The table of explicitly passed groups is only used by the current indexing
+        return groups != null ? createGroupTable(groups) : getGroupTable(wiki);
+    }
+
+    private SolrSecurityGroupTable getGroupTable(WikiReference wiki) throws XWikiException
+    {
+        Collection<DocumentReference> groups = this.groupManager.getGroups(wiki);
+
+        // The group manager return the same collection as long as the groups of the wiki don't change
+        SolrSecurityGroupTable table = this.groupTables.get(wiki);
+        if (table == null || table.getSource() != groups) {
+            table = new SolrSecurityGroupTable(groups, this.serializer);
+            this.groupTables.put(wiki, table);
+        }
+
+        return table;
+    }
+
+    /**
+     * @param groups the groups
+     * @return the table of the passed groups, to reuse for all the documents evaluated against the same groups
+     */
+    public SolrSecurityGroupTable createGroupTable(Collection<DocumentReference> groups)
+    {
+        return new SolrSecurityGroupTable(groups, this.serializer);
     }
 
     /**
      * @param document the reference of the document to index
      * @param solrDocument the {@link SolrInputDocument} in which to insert the result
      * @throws XWikiException when failing to gather the groups to index
+     * @throws QueryException when failing to find the rights owner of the document
      */
-    public void index(DocumentReference document, SolrInputDocument solrDocument) throws XWikiException
+    public void index(DocumentReference document, SolrInputDocument solrDocument)
+        throws XWikiException, QueryException
     {
-        index(document, this.groupManager.getGroups(document.getWikiReference()), solrDocument);
-    }
+        if (this.configuration.isJoinModel()) {
+            // The Solr document of the rights owner is written by the update queue (when the document is created or
+            // its rights change), not each time the document is saved
+            EntityReference owner = this.rightsOwners.getOwner(document);
 
-    private void index(DocumentReference document, Collection<DocumentReference> groups, SolrInputDocument solrDocument)
-    {
-        List<String> allowedGroups = new ArrayList<>(groups.size());
+            solrDocument.setField(SolrSecurityStore.OWNER_FIELD, this.rightsOwners.getId(owner));
+        } else {
+            List<Right> rights = this.configuration.getRights();
+            SolrSecurityGroupTable table = getGroupTable(document.getWikiReference());
+            // The document reflects the current parent groups of every group
+            this.planner.invalidateMemberships();
+            BitSet[] allowed = evaluateGroups(document, table, rights);
+            this.planner.invalidateMemberships();
 
-        for (DocumentReference group : groups) {
-            if (this.authorization.hasAccess(Right.VIEW, group, document)) {
-                allowedGroups.add(this.serializer.serialize(group));
+            for (int i = 0; i < allowed.length; ++i) {
+                solrDocument.setField(SolrSecurityStore.getField(rights.get(i)),
+                    new ArrayList<>(table.getAllowed(allowed[i])));
             }
         }
 
-        solrDocument.setField(SolrSecurityStore.SOLR_FIELD, allowedGroups);
+        List<String> users = getAllowedUsers(document);
+        if (users != null) {
+            solrDocument.setField(SolrSecurityStore.USERS_FIELD, users);
+        }
     }
 
-    private List<String> getLocales(DocumentReference documentReference) throws QueryException
+    private List<String> getAllowedUsers(DocumentReference document)
     {
-        Query query = this.queryManager.createQuery(
-            "select doc.language, doc.defaultLanguage from Document doc where doc.fullName = :fullName", Query.XWQL);
-        query.bindValue("fullName", this.localSerializer.serialize(documentReference));
-        query.setWiki(documentReference.getWikiReference().getName());
+        // Only the users explicitly named in rights objects are indexed, the others are covered by their groups
+        return this.configuration.isIndexingUsers() ? this.userResolver.getAllowedUsers(document) : null;
+    }
 
-        List<Object[]> rows = query.execute();
+    /**
+     * @param document the reference of the document
+     * @param table the groups to check, created with {@link #createGroupTable(Collection)}
+     * @param rights the rights to check
+     * @return for each passed right, the serialized references of the passed groups which have it on the document
+     */
+    public List<List<String>> getAllowedGroups(DocumentReference document, SolrSecurityGroupTable table,
+        List<Right> rights)
+    {
+        BitSet[] allowed = evaluateGroups(document, table, rights);
 
-        List<String> locales = new ArrayList<>(rows.size());
-        for (Object[] row : rows) {
-            locales.add(StringUtils.defaultIfEmpty((String) row[0], (String) row[1]));
+        List<List<String>> allowedGroups = new ArrayList<>(allowed.length);
+        for (BitSet rightAllowed : allowed) {
+            allowedGroups.add(new ArrayList<>(table.getAllowed(rightAllowed)));
         }
 
-        return locales;
+        return allowedGroups;
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+/**
+ * Measure the cost of an indexing, based on the activity of the {@link SolrSecurityStore}. Since the store is shared,
+ * the work done by other indexing running at the same time is included.
+ * 
+ * @version $Id$
+ */
+public class SolrSecurityIndexingMetrics
+{
+    private static final double SECOND = 1000D;
+
+    private final SolrSecurityStore store;
+
+    private final long startTime;
+
+    private final long startDocuments;
+
+    private final long startRequests;
+
+    private final long startCommits;
+
+    private final long startSpooled;
+
+    private final long startLost;
+
+    /**
+     * Start measuring.
+     * 
+     * @param store the store to measure
+     */
+    public SolrSecurityIndexingMetrics(SolrSecurityStore store)
+    {
+        this.store = store;
+
+        this.startTime = System.currentTimeMillis();
+        this.startDocuments = store.getSentDocuments();
+        this.startRequests = store.getSentRequests();
+        this.startCommits = store.getCommits();
+        this.startSpooled = store.getSpooledDocuments();
+        this.startLost = store.getLostDocuments();
+    }
+
+    /**
+     * @return the time elapsed since the start, in milliseconds
+     */
+    public long getDuration()
+    {
+        return System.currentTimeMillis() - this.startTime;
+    }
+
+    /**
+     * @return the number of documents sent to Solr since the start
+     */
+    public long getDocuments()
+    {
+        return this.store.getSentDocuments() - this.startDocuments;
+    }
+
+    /**
+     * @return the number of documents sent to Solr per second since the start
+     */
+    public double getDocumentsPerSecond()
+    {
+        long duration = getDuration();
+
+        return duration > 0 ? getDocuments() * SECOND / duration : 0;
+    }
+
+    /**
+     * @return the number of update requests sent to Solr since the start
+     */
+    public long getRequests()
+    {
+        return this.store.getSentRequests() - this.startRequests;
+    }
+
+    /**
+     * @return the number of commits of the Solr search core since the start
+     */
+    public long getCommits()
+    {
+        return this.store.getCommits() - this.startCommits;
+    }
+
+    /**
+     * @return the number of documents which could not be sent to Solr and were spooled since the start
+     */
+    public long getSpooledDocuments()
+    {
+        return this.store.getSpooledDocuments() - this.startSpooled;
+    }
+
+    /**
+     * @return the number of documents which could neither be sent to Solr nor spooled since the start
+     */
+    public long getLostDocuments()
+    {
+        return this.store.getLostDocuments() - this.startLost;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(
+            "%d documents in %d ms (%.1f documents/s), %d Solr requests, %d commits, %d spooled, %d lost",
+            getDocuments(), getDuration(), getDocumentsPerSecond(), getRequests(), getCommits(),
+            getSpooledDocuments(), getLostDocuments());
+    }
+}
@@ -19,19 +19,31 @@
  */
 package org.xwiki.contrib.solrsecurity.internal;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.job.AbstractJob;
-import org.xwiki.job.DefaultJobStatus;
 import org.xwiki.job.GroupedJob;
+import org.xwiki.job.Job;
 import org.xwiki.job.JobGroupPath;
 import org.xwiki.job.Request;
+import org.xwiki.job.event.status.JobStatus;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.model.reference.WikiReference;
 import org.xwiki.query.QueryException;
@@ -48,15 +60,21 @@ import com.xpn.xwiki.XWikiException;
  */
 @Component
 @Named(SolrSecurityJob.JOBTYPE)
-public class SolrSecurityJob extends AbstractJob<SolrSecurityJobRequest, DefaultJobStatus<SolrSecurityJobRequest>>
-    implements GroupedJob
+public class SolrSecurityJob extends AbstractJob<SolrSecurityJobRequest, SolrSecurityJobStatus> implements GroupedJob
 {
     /**
      * The type of the job.
      */
     public static final String JOBTYPE = "solrsecurity";
 
-    private static final JobGroupPath GROUP_PATH = new JobGroupPath(JOBTYPE, null);
+    /**
+     * The group shared by all the bulk jobs modifying the allowed groups in the index.
+     */
+    static final JobGroupPath GROUP_PATH = new JobGroupPath(JOBTYPE, null);
+
+    private static final int PURGE_BATCH_SIZE = 100;
+
+    private static final long ACQUIRE_RETRY_DELAY = 10000L;
 
     @Inject
     private WikiDescriptorManager wikis;
@@ -65,6 +83,9 @@ public class SolrSecurityJob extends AbstractJob<SolrSecurityJobRequest, Default
     @Named("local")
     private EntityReferenceSerializer<String> localSerializer;
 
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
     @Inject
     private SolrSecurityGroupManager groupManager;
 
@@ -74,6 +95,25 @@ public class SolrSecurityJob extends AbstractJob<SolrSecurityJobRequest, Default
     @Inject
     private SolrSecurityIndexer indexer;
 
+    @Inject
+    private SolrSecurityLocaleResolver localeResolver;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private SolrSecurityHighWaterMarks marks;
+
+    @Inject
+    private SolrSecurityDispatcher dispatcher;
+
+    @Inject
+    private SolrSecurityPlanner planner;
+
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
     @Override
     protected SolrSecurityJobRequest castRequest(Request request)
     {
@@ -87,6 +127,15 @@ public class SolrSecurityJob extends AbstractJob<SolrSecurityJobRequest, Default
         return indexerRequest;
     }
 
+    @Override
+    protected SolrSecurityJobStatus createNewStatus(SolrSecurityJobRequest request)
+    {
+        Job currentJob = this.jobContext.getCurrentJob();
+        JobStatus currentJobStatus = currentJob != null ? currentJob.getStatus() : null;
+
+        return new SolrSecurityJobStatus(request, currentJobStatus, this.observationManager, this.loggerManager);
+    }
+
     @Override
     public String getType()
     {
@@ -96,54 +145,269 @@ public class SolrSecurityJob extends AbstractJob<SolrSecurityJobRequest, Default
     @Override
     public JobGroupPath getGroupPath()
     {
-        // We don't want to execute several of those jobs at the same time
+        // We don't want to execute several of those jobs at the same time, small updates go through the
+        // SolrSecurityUpdateQueue instead of a job so that they don't wait for bulk indexing to finish
         return GROUP_PATH;
     }
 
     @Override
     protected void runInternal() throws Exception
     {
+        List<String> id = getRequest().getId();
+        SolrSecurityJobCoordinator coordinator = getCoordinator();
+
+        // Several nodes sharing the same Solr index should not do the same work
+        if (!coordinator.acquire(id)) {
+            if (getRequest().isSkippable()) {
+                this.logger.info("Skipping security indexing [{}] since it's already handled elsewhere", id);
+
+                getStatus().setSkipped(true);
+
+                return;
+            }
+
+            // The other node might have read the rights before they changed
+            this.logger.info("Waiting for security indexing [{}] to be finished elsewhere", id);
+
+            do {
+                Thread.sleep(ACQUIRE_RETRY_DELAY);
+            } while (!coordinator.acquire(id));
+        }
+
+        boolean urgent = getRequest().isUrgent();
+        if (!urgent) {
+            this.dispatcher.startBulk();
+        }
+
+        SolrSecurityIndexingMetrics metrics = new SolrSecurityIndexingMetrics(this.solrStore);
+
         Thread currentThread = Thread.currentThread();
         int currentPriority = currentThread.getPriority();
 
         try {
-            // Use a lower priority for the thread to not impact the rest of the farm
-            currentThread.setPriority(Thread.NORM_PRIORITY - 1);
+            // Use a lower priority for the thread of bulk jobs to not impact the rest of the farm
+            if (!urgent) {
+                currentThread.setPriority(Thread.NORM_PRIORITY - 1);
+            }
 
             index();
         } finally {
-            this.solrStore.commit();
+            try {
+                this.solrStore.commit();
+            } catch (Exception e) {
+                // The updates are committed by the next commit, the scope and the bulk mode must be released anyway
+                this.logger.error("Failed to commit the Solr search core after security indexing [{}]", id, e);
+            } finally {
+                currentThread.setPriority(currentPriority);
 
-            currentThread.setPriority(currentPriority);
+                coordinator.release(id);
+
+                if (!urgent) {
+                    this.logger.info("Security indexing [{}] done: {}", id, metrics);
+
+                    this.dispatcher.finishBulk();
+                }
+            }
         }
     }
 
-    private void index() throws QueryException, XWikiException, WikiManagerException, GroupException
+    private SolrSecurityJobCoordinator getCoordinator() throws ComponentLookupException
+    {
+        return this.componentManagerProvider.get().getInstance(SolrSecurityJobCoordinator.class,
+            this.configuration.getCoordinator());
+    }
+
+    private void index() throws QueryException, XWikiException, WikiManagerException, GroupException,
+        InterruptedException, SolrServerException, IOException
     {
+        if (getRequest().getPurgedGroup() != null) {
+            purge(getRequest().getPurgedGroup());
+
+            return;
+        }
+        if (getRequest().getPurgedWiki() != null) {
+            purge(getRequest().getPurgedWiki());
+
+            return;
+        }
+
         // Resolve groups to index
         Collection<DocumentReference> groups;
+        SolrSecurityPlanner.GroupDiff groupDiff = null;
         if (getRequest().getGroupReference() != null) {
-            groups = this.groupManager.getGroups(getRequest().getGroupReference());
+            // Only the groups whose parent groups changed have different rights
+            groupDiff = this.planner.diff(this.groupManager.getGroups(getRequest().getGroupReference()));
+            if (groupDiff.getGroups().isEmpty()) {
+                return;
+            }
+
+            groups = groupDiff.getGroups();
         } else {
             // The groups should be resolved later depending on the document's wiki
             groups = null;
         }
 
+        // Documents modified during the indexing will be indexed again by the next incremental indexing
+        Date start = new Date();
+
         // Index entities
+        List<EntityReference> entities = new ArrayList<>();
         if (getRequest().getEntity() != null) {
-            if (getRequest().getEntity().getType() == EntityType.WIKI) {
-                this.indexer.index(new WikiReference(getRequest().getEntity()), groups);
-            } else {
-                this.indexer.index(getRequest().getEntity(), groups);
+            entities.add(getRequest().getEntity());
+        }
+        if (getRequest().getEntities() != null) {
+            entities.addAll(getRequest().getEntities());
+        }
+
+        getStatus().setTotalDocuments(count(entities));
+
+        if (getRequest().getSince() != null) {
+            WikiReference wiki = new WikiReference(getRequest().getEntity().extractReference(EntityType.WIKI));
+
+            this.indexer.indexModified(wiki, getRequest().getSince(), groups);
+
+            this.marks.set(wiki.getName(), start);
+        } else if (!entities.isEmpty()) {
+            index(entities, groups, start);
+        } else if (!index(groups, start)) {
+            // Some groups might still have their previous rights in the failed wikis
+            return;
+        }
+
+        if (groupDiff != null) {
+            this.planner.commit(groupDiff);
+        }
+    }
+
+    private void purge(DocumentReference group) throws SolrServerException, IOException
+    {
+        // The group might have been created again in the meantime
+        if (this.groupManager.isGroup(group)) {
+            return;
+        }
+
+        long purged = this.solrStore.purge(Collections.singletonList(this.serializer.serialize(group)));
+
+        this.logger.info("Removed deleted group [{}] from [{}] Solr documents", group, purged);
+    }
+
+    private void purge(WikiReference wiki) throws SolrServerException, IOException
+    {
+        // The Solr documents of the rights owners are not removed with the documents of the wiki
+        this.solrStore.deleteOwners(wiki);
+
+        // The wiki does not exist anymore so its groups are found in the index
+        List<String> groups =
+            new ArrayList<>(this.solrStore.findGroups(this.serializer.serialize(wiki) + ':', wiki.getName()));
+
+        long purged = 0;
+        for (int i = 0; i < groups.size(); i += PURGE_BATCH_SIZE) {
+            purged += this.solrStore.purge(groups.subList(i, Math.min(i + PURGE_BATCH_SIZE, groups.size())));
+        }
+
+        this.logger.info("Removed [{}] groups of deleted wiki [{}] from [{}] Solr documents", groups.size(),
+            wiki.getName(), purged);
+    }
+
+    private long count(List<EntityReference> entities)
+    {
+        // Cheap count of the documents to index, only used to estimate the remaining time
+        try {
+            if (getRequest().getSince() != null) {
+                return this.indexer.countModifiedDocuments(
+                    new WikiReference(getRequest().getEntity().extractReference(EntityType.WIKI)),
+                    getRequest().getSince());
             }
-        } else {
-            for (String wiki : this.wikis.getAllIds()) {
+
+            if (entities.isEmpty()) {
+                if (isOwnersOnly(new WikiReference(this.wikis.getMainWikiId()))) {
+                    return 0;
+                }
+
+                long count = 0;
+                for (String wiki : this.wikis.getAllIds()) {
+                    count += this.indexer.countDocuments(new WikiReference(wiki));
+                }
+
+                return count;
+            }
+
+            long count = 0;
+            for (EntityReference entity : entities) {
+                if (isOwnersOnly(entity)) {
+                    // The rights owners to update are added to the total by the indexer once listed
+                    continue;
+                } else if (entity.getType() == EntityType.WIKI) {
+                    count += this.indexer.countDocuments(new WikiReference(entity));
+                } else if (entity.getType() == EntityType.DOCUMENT) {
+                    ++count;
+                } else {
+                    return -1;
+                }
+            }
+
+            return count;
+        } catch (Exception e) {
+            this.logger.warn("Failed to count the documents to index: {}", ExceptionUtils.getRootCauseMessage(e));
+
+            return -1;
+        }
+    }
+
+    private boolean isOwnersOnly(EntityReference entity)
+    {
+        // With the join model only the Solr documents of the rights owners are updated when indexing a space or some
+        // groups of a wiki
+        return this.configuration.isJoinModel()
+            && (entity.getType() == EntityType.SPACE
+                || (entity.getType() == EntityType.WIKI && getRequest().getGroupReference() != null));
+    }
+
+    private void index(List<EntityReference> entities, Collection<DocumentReference> groups, Date start)
+        throws QueryException, XWikiException, InterruptedException
+    {
+        // The locales of the documents are only needed for the duration of the job
+        this.indexer.index(entities, groups, this.localeResolver.createCache());
+
+        if (groups == null) {
+            for (EntityReference entity : entities) {
+                if (entity.getType() == EntityType.WIKI) {
+                    this.marks.set(entity.getName(), start);
+                }
+            }
+        }
+    }
+
+    private boolean index(Collection<DocumentReference> groups, Date start) throws WikiManagerException
+    {
+        Collection<String> wikiIds = this.wikis.getAllIds();
+
+        boolean indexed = true;
+
+        this.progressManager.pushLevelProgress(wikiIds.size(), this);
+
+        try {
+            for (String wiki : wikiIds) {
+                this.progressManager.startStep(this);
+
                 try {
                     this.indexer.index(new WikiReference(wiki), groups);
+
+                    if (groups == null) {
+                        this.marks.set(wiki, start);
+                    }
                 } catch (Exception e) {
                     this.logger.error("Failed to index entities in wiki [{}]", wiki, e);
+
+                    indexed = false;
                 }
+
+                this.progressManager.endStep(this);
             }
+        } finally {
+            this.progressManager.popLevelProgress(this);
         }
+
+        return indexed;
     }
 }
@@ -0,0 +1,45 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.List;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Make sure a given security indexing scope is handled by a single node (or thread) at a time. The implementation is
+ * selected with the {@code solrsecurity.coordinator} configuration property.
+ * 
+ * @version $Id$
+ */
+@Role
+public interface SolrSecurityJobCoordinator
+{
+    /**
+     * @param jobId the identifier of the job (which also identifies its scope)
+     * @return true if the caller is now in charge of the job, false if it's already handled elsewhere
+     */
+    boolean acquire(List<String> jobId);
+
+    /**
+     * @param jobId the identifier of the job previously acquired with {@link #acquire(List)}
+     */
+    void release(List<String> jobId);
+}
@@ -19,13 +19,19 @@
  */
 package org.xwiki.contrib.solrsecurity.internal;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.UUID;
 
 import org.xwiki.job.AbstractRequest;
 import org.xwiki.job.Request;
+import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.WikiReference;
 
 /**
  * The request used as input of the {@link SolrSecurityJob}.
@@ -43,8 +49,20 @@ public class SolrSecurityJobRequest extends AbstractRequest
 
     private EntityReference entity;
 
+    private Collection<EntityReference> entities;
+
     private DocumentReference groupReference;
 
+    private Date since;
+
+    private File file;
+
+    private DocumentReference purgedGroup;
+
+    private WikiReference purgedWiki;
+
+    private boolean skippable;
+
     /**
      * The default constructor.
      */
@@ -98,6 +116,97 @@ public class SolrSecurityJobRequest extends AbstractRequest
         return list;
     }
 
+    /**
+     * @param wiki the wiki to index
+     * @return the id corresponding to the indexing of the documents modified in the wiki since the last indexing
+     */
+    public static List<String> getIdForModified(EntityReference wiki)
+    {
+        List<String> list = new ArrayList<>();
+
+        list.add(ID_PREFIX);
+        list.add("modified");
+
+        for (EntityReference element : wiki.getReversedReferenceChain()) {
+            list.add(element.getName());
+        }
+
+        return list;
+    }
+
+    /**
+     * @return a new unique id for a job indexing several entities
+     */
+    public static List<String> getIdForEntities()
+    {
+        List<String> list = new ArrayList<>();
+
+        list.add(ID_PREFIX);
+        list.add("entities");
+        list.add(UUID.randomUUID().toString());
+
+        return list;
+    }
+
+    /**
+     * @param entity the entity to verify or null for the whole farm
+     * @return the id corresponding to the entity to verify
+     */
+    public static List<String> getIdForVerify(EntityReference entity)
+    {
+        List<String> list = new ArrayList<>();
+
+        list.add(ID_PREFIX);
+        list.add("verify");
+
+        if (entity != null) {
+            for (EntityReference element : entity.getReversedReferenceChain()) {
+                list.add(element.getName());
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * @param entity the deleted group or wiki
+     * @return the id corresponding to the removal of the group (or of the groups of the wiki) from the index
+     */
+    public static List<String> getIdForPurge(EntityReference entity)
+    {
+        List<String> list = new ArrayList<>();
+
+        list.add(ID_PREFIX);
+        list.add("purge");
+
+        for (EntityReference element : entity.getReversedReferenceChain()) {
+            list.add(element.getName());
+        }
+
+        return list;
+    }
+
+    /**
+     * @param action the snapshot action ("export" or "import")
+     * @param entity the entity to export or null for the whole farm
+     * @return the id corresponding to the snapshot action
+     */
+    public static List<String> getIdForSnapshot(String action, EntityReference entity)
+    {
+        List<String> list = new ArrayList<>();
+
+        list.add(ID_PREFIX);
+        list.add(action);
+
+        if (entity != null) {
+            for (EntityReference element : entity.getReversedReferenceChain()) {
+                list.add(element.getName());
+            }
+        }
+
+        return list;
+    }
+
     /**
      * @return the entity (and its children) to index.
      */
@@ -114,6 +223,22 @@ public class SolrSecurityJobRequest extends AbstractRequest
         this.entity = entity;
     }
 
+    /**
+     * @return the entities (and their children) to index in addition to {@link #getEntity()}.
+     */
+    public Collection<EntityReference> getEntities()
+    {
+        return this.entities;
+    }
+
+    /**
+     * @param entities the entities (and their children) to index in addition to {@link #getEntity()}.
+     */
+    public void setEntities(Collection<EntityReference> entities)
+    {
+        this.entities = entities;
+    }
+
     /**
      * @return the group (and its children) to index.
      */
@@ -129,4 +254,107 @@ public class SolrSecurityJobRequest extends AbstractRequest
     {
         this.groupReference = groupReference;
     }
+
+    /**
+     * @return the deleted group to remove from the index
+     */
+    public DocumentReference getPurgedGroup()
+    {
+        return this.purgedGroup;
+    }
+
+    /**
+     * @param purgedGroup the deleted group to remove from the index
+     */
+    public void setPurgedGroup(DocumentReference purgedGroup)
+    {
+        this.purgedGroup = purgedGroup;
+    }
+
+    /**
+     * @return the deleted wiki whose groups should be removed from the index
+     */
+    public WikiReference getPurgedWiki()
+    {
+        return this.purgedWiki;
+    }
+
+    /**
+     * @param purgedWiki the deleted wiki whose groups should be removed from the index
+     */
+    public void setPurgedWiki(WikiReference purgedWiki)
+    {
+        this.purgedWiki = purgedWiki;
+    }
+
+    /**
+     * @return true if the request only targets a few documents and should not wait for bulk indexing to finish
+     */
+    public boolean isUrgent()
+    {
+        if (this.groupReference != null || this.since != null || this.purgedGroup != null
+            || this.purgedWiki != null) {
+            return false;
+        }
+
+        List<EntityReference> all = new ArrayList<>();
+        if (this.entity != null) {
+            all.add(this.entity);
+        }
+        if (this.entities != null) {
+            all.addAll(this.entities);
+        }
+
+        // A space can contain any number of documents, it's indexed by a job like a wiki
+        return !all.isEmpty() && all.stream().allMatch(e -> e.getType() == EntityType.DOCUMENT);
+    }
+
+    /**
+     * @return if not null, only the documents created or modified after this date are indexed
+     */
+    public Date getSince()
+    {
+        return this.since;
+    }
+
+    /**
+     * @param since if not null, only the documents created or modified after this date are indexed
+     */
+    public void setSince(Date since)
+    {
+        this.since = since;
+    }
+
+    /**
+     * @return the snapshot file to write or read
+     */
+    public File getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * @param file the snapshot file to write or read
+     */
+    public void setFile(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * @return true if the job can be skipped when its scope is already being indexed by another node, false if it
+     *         should wait for it to be released (for example when the rights changed since the other node started)
+     */
+    public boolean isSkippable()
+    {
+        return this.skippable;
+    }
+
+    /**
+     * @param skippable true if the job can be skipped when its scope is already being indexed by another node
+     */
+    public void setSkippable(boolean skippable)
+    {
+        this.skippable = skippable;
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.logging.LoggerManager;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * The status of the {@link SolrSecurityJob}, exposing the number of indexed documents, the throughput and the
+ * estimated remaining time.
+ * 
+ * @version $Id$
+ */
+public class SolrSecurityJobStatus extends DefaultJobStatus<SolrSecurityJobRequest>
+{
+    private static final double SECOND = 1000D;
+
+    private volatile long totalDocuments = -1;
+
+    private final AtomicLong indexedDocuments = new AtomicLong();
+
+    private volatile boolean skipped;
+
+    /**
+     * @param request the request provided when started the job
+     * @param parentJobStatus the status of the parent job (i.e. the status of the job that started this one); pass
+     *            {@code null} if this job hasn't been started by another job (i.e. if this is not a sub-job)
+     * @param observationManager the observation manager component
+     * @param loggerManager the logger manager component
+     */
+    public SolrSecurityJobStatus(SolrSecurityJobRequest request, JobStatus parentJobStatus,
+        ObservationManager observationManager, LoggerManager loggerManager)
+    {
+        super(SolrSecurityJob.JOBTYPE, request, parentJobStatus, observationManager, loggerManager);
+    }
+
+    /**
+     * @return the number of documents to index, -1 if unknown
+     */
+    public long getTotalDocuments()
+    {
+        return this.totalDocuments;
+    }
+
+    /**
+     * @param totalDocuments the number of documents to index, -1 if unknown
+     */
+    void setTotalDocuments(long totalDocuments)
+    {
+        this.totalDocuments = totalDocuments;
+    }
+
+    /**
+     * @param documents the number of Solr documents to index discovered during the indexing, only called by the thread
+     *            running the job
+     */
+    void addTotalDocuments(long documents)
+    {
+        if (this.totalDocuments >= 0) {
+            this.totalDocuments += documents;
+        }
+    }
+
+    /**
+     * @return true if the job did nothing because its scope was already handled by another node or thread
+     */
+    public boolean isSkipped()
+    {
+        return this.skipped;
+    }
+
+    /**
+     * @param skipped true if the job did nothing because its scope was already handled elsewhere
+     */
+    void setSkipped(boolean skipped)
+    {
+        this.skipped = skipped;
+    }
+
+    /**
+     * @return the number of documents indexed so far
+     */
+    public long getIndexedDocuments()
+    {
+        return this.indexedDocuments.get();
+    }
+
+    /**
+     * @param documents the number of documents which have just been indexed
+     */
+    void indexed(int documents)
+    {
+        this.indexedDocuments.addAndGet(documents);
+    }
+
+    /**
+     * @return the number of documents indexed per second since the job started
+     */
+    public double getDocumentsPerSecond()
+    {
+        if (getStartDate() == null) {
+            return 0;
+        }
+
+        long duration = (getEndDate() != null ? getEndDate().getTime() : System.currentTimeMillis())
+            - getStartDate().getTime();
+
+        return duration > 0 ? getIndexedDocuments() * SECOND / duration : 0;
+    }
+
+    /**
+     * @return the estimated time needed to index the remaining documents, in milliseconds, -1 if unknown
+     */
+    public long getEstimatedRemainingTime()
+    {
+        double rate = getDocumentsPerSecond();
+
+        if (this.totalDocuments < 0 || rate <= 0) {
+            return -1;
+        }
+
+        return (long) (Math.max(0, this.totalDocuments - getIndexedDocuments()) * SECOND / rate);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * An immutable set of groups made of the groups of a wiki on top of the shared (and not copied) groups of the main
+ * wiki.
+ * 
+ * @version $Id$
+ */
+public class SolrSecurityLayeredGroupSet extends AbstractSet<DocumentReference>
+{
+    private final Set<DocumentReference> parent;
+
+    private final Set<DocumentReference> local;
+
+    /**
+     * @param parent the groups shared with other sets
+     * @param groups the groups specific to this set
+     */
+    public SolrSecurityLayeredGroupSet(Set<DocumentReference> parent, Collection<DocumentReference> groups)
+    {
+        this.parent = parent;
+
+        Set<DocumentReference> localGroups = new HashSet<>(groups.size());
+        for (DocumentReference group : groups) {
+            if (!parent.contains(group)) {
+                localGroups.add(group);
+            }
+        }
+        this.local = localGroups.isEmpty() ? Collections.emptySet() : localGroups;
+    }
+
+    @Override
+    public boolean contains(Object o)
+    {
+        return this.local.contains(o) || this.parent.contains(o);
+    }
+
+    @Override
+    public int size()
+    {
+        return this.parent.size() + this.local.size();
+    }
+
+    @Override
+    public Iterator<DocumentReference> iterator()
+    {
+        return new Iterator<DocumentReference>()
+        {
+            private final Iterator<DocumentReference> parentIterator = parent.iterator();
+
+            private final Iterator<DocumentReference> localIterator = local.iterator();
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.parentIterator.hasNext() || this.localIterator.hasNext();
+            }
+
+            @Override
+            public DocumentReference next()
+            {
+                if (this.parentIterator.hasNext()) {
+                    return this.parentIterator.next();
+                }
+
+                if (this.localIterator.hasNext()) {
+                    return this.localIterator.next();
+                }
+
+                throw new NoSuchElementException();
+            }
+        };
+    }
+}
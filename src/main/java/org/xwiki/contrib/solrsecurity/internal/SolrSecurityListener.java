@@ -19,26 +19,36 @@
  */
 package org.xwiki.contrib.solrsecurity.internal;
 
+import java.util.Set;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
 import org.xwiki.bridge.event.WikiDeletedEvent;
 import org.xwiki.bridge.event.WikiEvent;
 import org.xwiki.bridge.event.WikiReadyEvent;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.job.event.JobFinishedEvent;
+import org.xwiki.job.event.JobStartedEvent;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.LocalDocumentReference;
 import org.xwiki.model.reference.RegexEntityReference;
 import org.xwiki.model.reference.WikiReference;
 import org.xwiki.observation.AbstractEventListener;
 import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.internal.event.XARImportedEvent;
+import com.xpn.xwiki.internal.event.XARImportingEvent;
 import com.xpn.xwiki.internal.event.XObjectAddedEvent;
 import com.xpn.xwiki.internal.event.XObjectDeletedEvent;
 import com.xpn.xwiki.internal.event.XObjectEvent;
@@ -81,6 +91,8 @@ public class SolrSecurityListener extends AbstractEventListener
 
     private static final String GROUP_MEMBER = "member";
 
+    private static final Set<String> BULK_JOBTYPES = Set.of("install", "uninstall");
+
     @Inject
     private DocumentReferenceResolver<String> documentResolver;
 
@@ -90,12 +102,49 @@ public class SolrSecurityListener extends AbstractEventListener
     @Inject
     private SolrSecurityDispatcher dispatcher;
 
+    @Inject
+    private SolrSecurityWarmup warmup;
+
+    @Inject
+    private RemoteObservationManagerContext remoteContext;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private SolrSecurityHighWaterMarks marks;
+
+    @Inject
+    private SolrSecurityFilterQueryBuilder filterQueryBuilder;
+
+    @Inject
+    private SolrSecurityBulkMode bulkMode;
+
+    @Inject
+    private SolrSecurityUserResolver userResolver;
+
+    @Inject
+    private SolrSecurityRightsOwners rightsOwners;
+
+    @Inject
+    private SolrSecurityVerifyScheduler verifyScheduler;
+
+    @Inject
+    private SolrSecurityUpdateQueue queue;
+
     /**
      * The default constructor.
      */
     public SolrSecurityListener()
     {
         super(NAME, new ApplicationReadyEvent(), new WikiReadyEvent(), new WikiDeletedEvent(),
+            // Wikis are indexed at startup one after the other
+            new JobFinishedEvent(),
+            // Right changes are indexed once at the end of XAR imports and extension (un)installs
+            new JobStartedEvent(), new XARImportingEvent(), new XARImportedEvent(),
+            // The rights owner of a new document might not be indexed yet, the one of a deleted document might not be
+            // needed anymore
+            new DocumentCreatedEvent(), new DocumentDeletedEvent(),
             // A group has been add/deleted or a member has been added/deleted: need to update add or remove this group
             // in the index and the new/old member if it's a group
             new XObjectAddedEvent(GROUP_REFERENCE), new XObjectDeletedEvent(GROUP_REFERENCE),
@@ -114,9 +163,52 @@ public class SolrSecurityListener extends AbstractEventListener
         if (event instanceof WikiDeletedEvent) {
             // Invalidate the group cache for the deleted wiki
             this.groupManager.invalidate(new WikiReference(((WikiEvent) event).getWikiId()));
+            this.marks.remove(((WikiEvent) event).getWikiId());
+            this.filterQueryBuilder.invalidate();
+            this.userResolver.invalidate(new WikiReference(((WikiEvent) event).getWikiId()));
+            this.rightsOwners.invalidate(new WikiReference(((WikiEvent) event).getWikiId()));
+
+            // Remove the groups of the deleted wiki from the documents of the other wikis
+            if (!isHandledRemotely()) {
+                this.dispatcher.purgeWiki(new WikiReference(((WikiEvent) event).getWikiId()));
+            }
         } else if (event instanceof ApplicationReadyEvent || event instanceof WikiReadyEvent) {
             // Make sure the wiki is indexed at startup
-            this.dispatcher.indexEntity(((XWikiContext) data).getWikiReference(), false);
+            this.warmup.schedule(((XWikiContext) data).getWikiReference());
+
+            if (event instanceof ApplicationReadyEvent) {
+                this.verifyScheduler.start();
+
+                this.queue.restore();
+            }
+        } else if (event instanceof JobStartedEvent) {
+            if (BULK_JOBTYPES.contains(((JobStartedEvent) event).getJobType())) {
+                this.bulkMode.begin();
+            }
+        } else if (event instanceof JobFinishedEvent) {
+            if (SolrSecurityJob.JOBTYPE.equals(((JobFinishedEvent) event).getJobType())) {
+                this.warmup.onJobFinished(((JobFinishedEvent) event).getJobID());
+            } else if (BULK_JOBTYPES.contains(((JobFinishedEvent) event).getJobType())) {
+                if (data instanceof Throwable) {
+                    // Don't leave the bulk mode enabled if the job failed before the end of a nested operation
+                    this.bulkMode.abort();
+                } else {
+                    this.bulkMode.end();
+                }
+            }
+        } else if (event instanceof XARImportingEvent) {
+            if (!this.remoteContext.isRemoteState()) {
+                this.bulkMode.begin();
+            }
+        } else if (event instanceof XARImportedEvent) {
+            if (!this.remoteContext.isRemoteState()) {
+                this.bulkMode.end();
+            }
+        } else if (event instanceof DocumentCreatedEvent || event instanceof DocumentDeletedEvent) {
+            // Only the join model stores Solr documents for the rights owners
+            if (this.configuration.isJoinModel() && !isHandledRemotely()) {
+                indexEntity(((XWikiDocument) source).getDocumentReference());
+            }
         } else if (event instanceof XObjectEvent) {
             BaseObjectReference objectReference = (BaseObjectReference) ((XObjectEvent) event).getReference();
 
@@ -125,14 +217,40 @@ public class SolrSecurityListener extends AbstractEventListener
             BaseObject newXobject = document.getXObject(objectReference);
             BaseObject oldXobject = oldDocument != null ? oldDocument.getXObject(objectReference) : null;
 
+            if (!GROUP_REFERENCE.equals(objectReference)) {
+                // The users named in the rights of the wiki might have changed
+                this.userResolver.invalidate(document.getDocumentReference().getWikiReference());
+            }
+            if (RIGHT_REFERENCE.equals(objectReference)) {
+                // The document might have got or lost its own rights
+                this.rightsOwners.invalidate(document.getDocumentReference().getWikiReference());
+            }
+
             if (GROUP_REFERENCE.equals(objectReference)) {
                 // It's a group member change
 
+                // The groups of the users changed
+                this.filterQueryBuilder.invalidate();
+                this.userResolver.invalidateAllowedUsers();
+
                 // Invalidate the groups cache in the wiki if the group is new or deleted
-                if ((event instanceof XObjectAddedEvent && document.getXObjects(LOCAL_GROUP_REFERENCE).size() == 1)
-                    || (event instanceof XObjectDeletedEvent
-                        && document.getXObjects(LOCAL_GROUP_REFERENCE).isEmpty())) {
-                    this.groupManager.invalidate(document.getDocumentReference().getWikiReference());
+                int members = countGroupObjects(document);
+                if ((event instanceof XObjectAddedEvent && members == 1)
+                    || (event instanceof XObjectDeletedEvent && members == 0)) {
+                    WikiReference wiki = document.getDocumentReference().getWikiReference();
+                    if (!this.bulkMode.recordGroupChange(wiki)) {
+                        this.groupManager.invalidate(wiki);
+                    }
+                }
+
+                if (isHandledRemotely()) {
+                    return;
+                }
+
+                // Remove the deleted group from the index
+                if (event instanceof XObjectDeletedEvent && members == 0
+                    && !this.bulkMode.recordPurge(document.getDocumentReference())) {
+                    this.dispatcher.purgeGroup(document.getDocumentReference());
                 }
 
                 // Check previous member
@@ -144,28 +262,56 @@ public class SolrSecurityListener extends AbstractEventListener
                 if (newXobject != null) {
                     checkGroupMember(newXobject.getStringValue(GROUP_MEMBER), document.getDocumentReference());
                 }
+            } else if (isHandledRemotely()) {
+                return;
             } else if (RIGHT_REFERENCE.equals(objectReference)) {
                 // It's a local right change
                 // We don't indicate a specific locale since the right change affect all locales of the document
-                this.dispatcher.indexEntity(document.getDocumentReference(), true);
+                indexEntity(document.getDocumentReference());
             } else if (GLOBALRIGHT_REFERENCE.equals(objectReference)) {
                 // It's a global right change
                 if (document.getDocumentReference().getName().equals(SPACEPREFERENCE_NAME)) {
                     // It's a global space right change
-                    this.dispatcher.indexEntity(document.getDocumentReference().getLastSpaceReference(), true);
+                    indexEntity(document.getDocumentReference().getLastSpaceReference());
                 } else if (document.getDocumentReference().getLocalDocumentReference()
                     .equals(WIKIPREFERENCE_REFERENCE)) {
                     // It's a global wiki right change
-                    this.dispatcher.indexEntity(document.getDocumentReference().getWikiReference(), true);
+                    indexEntity(document.getDocumentReference().getWikiReference());
                 }
             }
         }
     }
 
+    private int countGroupObjects(XWikiDocument document)
+    {
+        // Removed objects leave a null entry in the list
+        int count = 0;
+        for (BaseObject xobject : document.getXObjects(LOCAL_GROUP_REFERENCE)) {
+            if (xobject != null) {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    private boolean isHandledRemotely()
+    {
+        // When the index is shared, the cluster node which produced the event is in charge of updating it
+        return this.remoteContext.isRemoteState() && this.configuration.isSharedIndex();
+    }
+
+    private void indexEntity(EntityReference reference)
+    {
+        if (!this.bulkMode.recordEntity(reference)) {
+            this.dispatcher.indexEntity(reference, true);
+        }
+    }
+
     private void checkGroupMember(String member, DocumentReference groupReference)
     {
         DocumentReference memberReference = this.documentResolver.resolve(member, groupReference);
-        if (this.groupManager.isGroup(memberReference)) {
+        if (!this.bulkMode.recordMember(memberReference) && this.groupManager.isGroup(memberReference)) {
             this.dispatcher.indexGroup(memberReference);
         }
     }
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+/**
+ * Find the locales of documents, several documents at a time.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityLocaleResolver.class)
+@Singleton
+public class SolrSecurityLocaleResolver
+{
+    private static final int BATCH_SIZE = 500;
+
+    private static final int CACHE_SIZE = 10000;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private QueryManager queryManager;
+
+    /**
+     * @return a new cache of locales, meant to be used for the duration of a job
+     */
+    public Map<DocumentReference, List<String>> createCache()
+    {
+        return Collections.synchronizedMap(new LinkedHashMap<DocumentReference, List<String>>(16, 0.75F, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DocumentReference, List<String>> eldest)
+            {
+                return size() > CACHE_SIZE;
+            }
+        });
+    }
+
+    /**
+     * @param document the reference of the document, without locale
+     * @return the locales of the document
+     * @throws QueryException when failing to use execute database request
+     */
+    public List<String> getLocales(DocumentReference document) throws QueryException
+    {
+        return getLocales(Collections.singletonList(document), null).get(document);
+    }
+
+    /**
+     * @param documents the references of the documents, without locale
+     * @param cache the locales already known, updated with the new ones, null if no cache should be used
+     * @return the locales of each passed document
+     * @throws QueryException when failing to use execute database request
+     */
+    public Map<DocumentReference, List<String>> getLocales(Collection<DocumentReference> documents,
+        Map<DocumentReference, List<String>> cache) throws QueryException
+    {
+        Map<DocumentReference, List<String>> locales = new HashMap<>(documents.size());
+
+        // Group the unknown documents by wiki
+        Map<WikiReference, Map<String, DocumentReference>> missing = new HashMap<>();
+        for (DocumentReference document : documents) {
+            List<String> documentLocales = cache != null ? cache.get(document) : null;
+
+            if (documentLocales != null) {
+                locales.put(document, documentLocales);
+            } else {
+                // Documents without any row in the database don't have any locale
+                locales.put(document, new ArrayList<>());
+
+                missing.computeIfAbsent(document.getWikiReference(), k -> new HashMap<>())
+                    .put(this.localSerializer.serialize(document), document);
+            }
+        }
+
+        for (Map.Entry<WikiReference, Map<String, DocumentReference>> entry : missing.entrySet()) {
+            List<String> fullNames = new ArrayList<>(entry.getValue().keySet());
+
+            for (int i = 0; i < fullNames.size(); i += BATCH_SIZE) {
+                load(fullNames.subList(i, Math.min(i + BATCH_SIZE, fullNames.size())), entry.getKey(),
+                    entry.getValue(), locales);
+            }
+        }
+
+        if (cache != null) {
+            for (Map<String, DocumentReference> wikiDocuments : missing.values()) {
+                for (DocumentReference document : wikiDocuments.values()) {
+                    cache.put(document, locales.get(document));
+                }
+            }
+        }
+
+        return locales;
+    }
+
+    private void load(List<String> fullNames, WikiReference wiki, Map<String, DocumentReference> documents,
+        Map<DocumentReference, List<String>> locales) throws QueryException
+    {
+        Query query = this.queryManager.createQuery("select doc.fullName, doc.language, doc.defaultLanguage"
+            + " from Document doc where doc.fullName in (:fullNames)", Query.XWQL);
+        query.bindValue("fullNames", fullNames);
+        query.setWiki(wiki.getName());
+
+        List<Object[]> rows = query.execute();
+
+        for (Object[] row : rows) {
+            DocumentReference document = documents.get(row[0]);
+
+            if (document != null) {
+                locales.get(document).add(StringUtils.defaultIfEmpty((String) row[1], (String) row[2]));
+            }
+        }
+    }
+}
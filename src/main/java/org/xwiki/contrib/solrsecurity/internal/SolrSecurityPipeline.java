@@ -0,0 +1,574 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * A three stages pipeline: scanners submit the items to index to a pool of evaluation workers which themselves feed
+ * batching writers. The stages are joined by bounded queues so that a slow stage slows down the previous ones instead
+ * of accumulating items in memory.
+ * <p>
+ * The scans (see {@link #scan(Scanner)}) and the writers are I/O bound and run on their own executor (for example
+ * virtual threads), while the CPU bound evaluation workers run on the main executor. Items can also be submitted
+ * directly by the caller with {@link #submit(Object)}.
+ * <p>
+ * When a worker fails (or can't even start) the pipeline is cancelled: the other workers are interrupted and the
+ * scanner gets an {@link IllegalStateException} instead of waiting forever for a stage which is dead.
+ * 
+ * @param <T> the type of the scanned items
+ * @param <R> the type of the evaluated items
+ * @version $Id$
+ */
+public class SolrSecurityPipeline<T, R> implements AutoCloseable
+{
+    private static final Object END = new Object();
+
+    private static final long WAIT_STEP = 100;
+
+    /**
+     * A task listing items to index and passing them to {@link SolrSecurityPipeline#submit(Object)}.
+     * 
+     * @version $Id$
+     */
+    @FunctionalInterface
+    public interface Scanner
+    {
+        /**
+         * @throws Exception when failing to scan the items, which fails the pipeline
+         */
+        void scan() throws Exception;
+    }
+
+    /**
+     * The statistics of a stage of the pipeline.
+     * 
+     * @version $Id$
+     */
+    public static final class Stage
+    {
+        private final String name;
+
+        private final AtomicLong items = new AtomicLong();
+
+        private final AtomicLong busy = new AtomicLong();
+
+        private final AtomicLong waiting = new AtomicLong();
+
+        private final AtomicLong failures = new AtomicLong();
+
+        private Stage(String name)
+        {
+            this.name = name;
+        }
+
+        private void worked(long nanos)
+        {
+            worked(1, nanos);
+        }
+
+        private void worked(long count, long nanos)
+        {
+            this.items.addAndGet(count);
+            this.busy.addAndGet(nanos);
+        }
+
+        private void waited(long nanos)
+        {
+            this.waiting.addAndGet(nanos);
+        }
+
+        private void failed(long count)
+        {
+            this.failures.addAndGet(count);
+        }
+
+        /**
+         * @return the number of items which went through the stage successfully
+         */
+        public long getItems()
+        {
+            return this.items.get();
+        }
+
+        /**
+         * @return the number of items which failed in the stage
+         */
+        public long getFailures()
+        {
+            return this.failures.get();
+        }
+
+        /**
+         * @return the cumulated time (in milliseconds) spent by the stage threads working on items
+         */
+        public long getBusyTime()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(Math.max(this.busy.get(), 0));
+        }
+
+        /**
+         * @return the cumulated time (in milliseconds) spent by the stage threads waiting for the other stages
+         */
+        public long getWaitingTime()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(this.waiting.get());
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.name + ": " + getItems() + " items, " + getBusyTime() + "ms busy, " + getWaitingTime()
+                + "ms waiting, " + getFailures() + " failures";
+        }
+    }
+
+    private final Function<T, R> evaluator;
+
+    private final Consumer<List<R>> writer;
+
+    private final Executor ioExecutor;
+
+    private final UnaryOperator<Runnable> wrapper;
+
+    private final int evaluators;
+
+    private final int writers;
+
+    private final int scanners;
+
+    private final int batchSize;
+
+    private final BlockingQueue<Object> evaluationQueue;
+
+    private final BlockingQueue<Object> writeQueue;
+
+    private final CountDownLatch evaluationDone;
+
+    private final CountDownLatch writeDone;
+
+    /**
+     * The scans which can still be started, all the permits are available once the running scans are finished.
+     */
+    private final Semaphore scanSlots;
+
+    private final Set<Thread> workers = new HashSet<>();
+
+    private final Set<Thread> scanning = new HashSet<>();
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final Stage scanStage = new Stage("scan");
+
+    private final Stage evaluationStage = new Stage("evaluation");
+
+    private final Stage writeStage = new Stage("write");
+
+    private long lastSubmit = System.nanoTime();
+
+    private boolean closed;
+
+    /**
+     * @param evaluator the function called by the evaluation workers, items for which it return null are skipped
+     * @param writer the function called by the writer with batches of evaluated items
+     * @param executor the executor running the evaluation workers and the writer, it must be able to run all of them
+     *            at the same time
+     * @param wrapper wraps each worker with what it needs to run (for example an execution context), a failure of the
+     *            wrapper fails the pipeline
+     * @param evaluators the number of evaluation workers
+     * @param queueSize the maximum number of items waiting in each queue
+     * @param batchSize the maximum number of items passed to the writer in one call
+     */
+    public SolrSecurityPipeline(Function<T, R> evaluator, Consumer<List<R>> writer, Executor executor,
+        UnaryOperator<Runnable> wrapper, int evaluators, int queueSize, int batchSize)
+    {
+        this(evaluator, writer, executor, executor, wrapper, evaluators, 1, 1, queueSize, batchSize);
+    }
+
+    /**
+     * @param evaluator the function called by the evaluation workers, items for which it return null are skipped
+     * @param writer the function called by the writers with batches of evaluated items, concurrently when there are
+     *            several writers
+     * @param executor the executor running the evaluation workers, it must be able to run all of them at the same time
+     * @param ioExecutor the executor running the scans and the writers, it must be able to run all of them at the same
+     *            time
+     * @param wrapper wraps each worker and scan with what it needs to run (for example an execution context), a failure
+     *            of the wrapper fails the pipeline
+     * @param evaluators the number of evaluation workers
+     * @param writers the number of writers
+     * @param scanners the maximum number of scans running at the same time
+     * @param queueSize the maximum number of items waiting in each queue
+     * @param batchSize the maximum number of items passed to a writer in one call
+     */
+    public SolrSecurityPipeline(Function<T, R> evaluator, Consumer<List<R>> writer, Executor executor,
+        Executor ioExecutor, UnaryOperator<Runnable> wrapper, int evaluators, int writers, int scanners, int queueSize,
+        int batchSize)
+    {
+        this.evaluator = evaluator;
+        this.writer = writer;
+        this.ioExecutor = ioExecutor;
+        this.wrapper = wrapper;
+        this.evaluators = evaluators;
+        this.writers = writers;
+        this.scanners = scanners;
+        this.batchSize = batchSize;
+
+        this.evaluationQueue = new ArrayBlockingQueue<>(queueSize);
+        this.writeQueue = new ArrayBlockingQueue<>(queueSize);
+
+        this.evaluationDone = new CountDownLatch(evaluators);
+        this.writeDone = new CountDownLatch(writers);
+        this.scanSlots = new Semaphore(scanners);
+
+        try {
+            for (int i = 0; i < evaluators; ++i) {
+                start(executor, wrapper.apply(this::evaluate), this.evaluationDone::countDown);
+            }
+            for (int i = 0; i < writers; ++i) {
+                start(ioExecutor, wrapper.apply(this::write), this.writeDone::countDown);
+            }
+        } catch (RejectedExecutionException e) {
+            // Stop the workers which already started
+            fail(e);
+
+            throw e;
+        }
+    }
+
+    private void start(Executor executor, Runnable worker, Runnable done)
+    {
+        executor.execute(() -> {
+            synchronized (this.workers) {
+                this.workers.add(Thread.currentThread());
+            }
+
+            try {
+                worker.run();
+            } catch (RuntimeException | Error e) {
+                fail(e);
+            } finally {
+                // Make sure the thread is not interrupted anymore once it's running another task
+                synchronized (this.workers) {
+                    this.workers.remove(Thread.currentThread());
+                }
+
+                done.run();
+            }
+        });
+    }
+
+    private void fail(Throwable cause)
+    {
+        if (this.failure.compareAndSet(null, cause)) {
+            // Unblock all the stages: the workers stop and the scanner fails when submitting its next item
+            synchronized (this.workers) {
+                for (Thread worker : this.workers) {
+                    worker.interrupt();
+                }
+            }
+
+            this.evaluationQueue.clear();
+            this.writeQueue.clear();
+        }
+    }
+
+    private void checkFailure()
+    {
+        Throwable cause = this.failure.get();
+
+        if (cause != null) {
+            throw new IllegalStateException("The indexing pipeline failed", cause);
+        }
+    }
+
+    /**
+     * Run a scan on the I/O executor, next to the scans already running. Blocks while the maximum number of scans are
+     * running.
+     * 
+     * @param scanner the scan to run
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if a worker of the pipeline failed
+     */
+    public void scan(Scanner scanner) throws InterruptedException
+    {
+        acquire(this.scanSlots, 1);
+
+        try {
+            start(this.ioExecutor, this.wrapper.apply(() -> runScan(scanner)), this.scanSlots::release);
+        } catch (RejectedExecutionException e) {
+            this.scanSlots.release();
+
+            fail(e);
+
+            throw e;
+        }
+    }
+
+    private void runScan(Scanner scanner)
+    {
+        Thread thread = Thread.currentThread();
+        synchronized (this.scanning) {
+            this.scanning.add(thread);
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            scanner.scan();
+        } catch (InterruptedException e) {
+            fail(e);
+
+            thread.interrupt();
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            // The time spent waiting in submit() is removed from the busy time by submit() itself
+            this.scanStage.busy.addAndGet(System.nanoTime() - start);
+
+            synchronized (this.scanning) {
+                this.scanning.remove(thread);
+            }
+        }
+    }
+
+    /**
+     * Add an item to evaluate, blocks if the evaluation queue is full. It can be called concurrently by the scans
+     * started with {@link #scan(Scanner)}, and by a single other thread.
+     * 
+     * @param item the item to evaluate
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if a worker of the pipeline failed
+     */
+    public void submit(T item) throws InterruptedException
+    {
+        boolean scan;
+        synchronized (this.scanning) {
+            scan = this.scanning.contains(Thread.currentThread());
+        }
+
+        long start = System.nanoTime();
+        if (!scan) {
+            this.scanStage.busy.addAndGet(start - this.lastSubmit);
+        }
+
+        put(this.evaluationQueue, item);
+
+        long end = System.nanoTime();
+        this.scanStage.items.incrementAndGet();
+        this.scanStage.waited(end - start);
+        if (scan) {
+            this.scanStage.busy.addAndGet(start - end);
+        } else {
+            this.lastSubmit = end;
+        }
+    }
+
+    private void put(BlockingQueue<Object> queue, Object item) throws InterruptedException
+    {
+        // Don't wait forever for a stage which might be dead
+        do {
+            checkFailure();
+        } while (!queue.offer(item, WAIT_STEP, TimeUnit.MILLISECONDS));
+    }
+
+    private void acquire(Semaphore semaphore, int permits) throws InterruptedException
+    {
+        do {
+            checkFailure();
+        } while (!semaphore.tryAcquire(permits, WAIT_STEP, TimeUnit.MILLISECONDS));
+    }
+
+    private void await(CountDownLatch latch) throws InterruptedException
+    {
+        while (!latch.await(WAIT_STEP, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+        }
+    }
+
+    private void evaluate()
+    {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                Object item = this.evaluationQueue.take();
+                long taken = System.nanoTime();
+                this.evaluationStage.waited(taken - start);
+
+                if (item == END) {
+                    return;
+                }
+
+                R result;
+                try {
+                    result = this.evaluator.apply((T) item);
+                } catch (RuntimeException e) {
+                    // Don't kill the worker, the evaluator is in charge of reporting its own errors
+                    this.evaluationStage.failed(1);
+                    result = null;
+                }
+                long evaluated = System.nanoTime();
+                this.evaluationStage.worked(evaluated - taken);
+
+                if (result != null) {
+                    this.writeQueue.put(result);
+                    this.evaluationStage.waited(System.nanoTime() - evaluated);
+                }
+            }
+        } catch (InterruptedException e) {
+            // The items of this worker would be lost
+            fail(e);
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write()
+    {
+        List<R> batch = new ArrayList<>(this.batchSize);
+
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                Object item = this.writeQueue.take();
+                this.writeStage.waited(System.nanoTime() - start);
+
+                if (item == END) {
+                    flush(batch);
+
+                    return;
+                }
+
+                batch.add((R) item);
+
+                if (batch.size() >= this.batchSize) {
+                    flush(batch);
+                }
+            }
+        } catch (InterruptedException e) {
+            // The items waiting to be written would be lost
+            fail(e);
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(List<R> batch)
+    {
+        if (!batch.isEmpty()) {
+            long start = System.nanoTime();
+
+            boolean written;
+            try {
+                this.writer.accept(batch);
+
+                written = true;
+            } catch (RuntimeException e) {
+                // Don't kill the writer, it's in charge of reporting its own errors
+                written = false;
+            }
+
+            // Only the items actually written are counted as processed
+            long nanos = System.nanoTime() - start;
+            if (written) {
+                this.writeStage.worked(batch.size(), nanos);
+            } else {
+                this.writeStage.failed(batch.size());
+                this.writeStage.busy.addAndGet(nanos);
+            }
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * @return the statistics of the scan stage
+     */
+    public Stage getScanStage()
+    {
+        return this.scanStage;
+    }
+
+    /**
+     * @return the statistics of the evaluation stage
+     */
+    public Stage getEvaluationStage()
+    {
+        return this.evaluationStage;
+    }
+
+    /**
+     * @return the statistics of the write stage
+     */
+    public Stage getWriteStage()
+    {
+        return this.writeStage;
+    }
+
+    /**
+     * Wait for all the scans to finish and all the submitted items to be evaluated and written and stop the workers.
+     * Calling it several times has no effect.
+     * 
+     * @throws IllegalStateException if a worker of the pipeline failed
+     */
+    @Override
+    public void close()
+    {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        try {
+            acquire(this.scanSlots, this.scanners);
+
+            for (int i = 0; i < this.evaluators; ++i) {
+                put(this.evaluationQueue, END);
+            }
+            await(this.evaluationDone);
+
+            // All the evaluated items are in the write queue
+            for (int i = 0; i < this.writers; ++i) {
+                put(this.writeQueue, END);
+            }
+            await(this.writeDone);
+        } catch (InterruptedException e) {
+            fail(e);
+
+            Thread.currentThread().interrupt();
+        }
+
+        checkFailure();
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.user.group.GroupException;
+import org.xwiki.user.group.GroupManager;
+import org.xwiki.user.group.WikiTarget;
+
+/**
+ * Choose how to evaluate the rights of the documents of a wiki, a space or a list of documents depending on the
+ * estimated cost of each strategy.
+ * <p>
+ * The costs are expressed in rights evaluations (one group checked for one right, usually a lookup in the security
+ * cache). Finding the rights owners requires database queries which are much more expensive than an evaluation, so
+ * they are only executed when the evaluations they could save are worth it. The documents containing rights objects
+ * are cached per wiki so that they are only loaded once.
+ * <p>
+ * When the membership of a group changes, only the groups whose parent groups (as a bit set) differ from the last time
+ * they were indexed get different rights, the other groups are not evaluated again.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityPlanner.class)
+@Singleton
+public class SolrSecurityPlanner
+{
+    /**
+     * The way the rights of the documents are evaluated.
+     * 
+     * @version $Id$
+     */
+    public enum Strategy
+    {
+        /**
+         * Evaluate the rights of each document.
+         */
+        DIRECT,
+
+        /**
+         * Evaluate the rights once per rights owner: documents without their own rights share the result of the first
+         * evaluated document of their space.
+         */
+        OWNER
+    }
+
+    /**
+     * The chosen strategy and what it needs.
+     * 
+     * @version $Id$
+     */
+    public static final class Plan
+    {
+        private final Strategy strategy;
+
+        private final Set<String> rightsDocuments;
+
+        private Plan(Strategy strategy, Set<String> rightsDocuments)
+        {
+            this.strategy = strategy;
+            this.rightsDocuments = rightsDocuments;
+        }
+
+        /**
+         * @return the strategy to use
+         */
+        public Strategy getStrategy()
+        {
+            return this.strategy;
+        }
+
+        /**
+         * @param document the serialized reference of the document
+         * @return true if the document contains its own rights
+         */
+        public boolean hasRights(String document)
+        {
+            return this.rightsDocuments.contains(document);
+        }
+    }
+
+    /**
+     * The groups to evaluate again after a membership change.
+     * 
+     * @version $Id$
+     */
+    public static final class GroupDiff
+    {
+        private final long generation;
+
+        private final Map<DocumentReference, BitSet> memberships;
+
+        private GroupDiff(long generation, Map<DocumentReference, BitSet> memberships)
+        {
+            this.generation = generation;
+            this.memberships = memberships;
+        }
+
+        /**
+         * @return the groups whose parent groups changed since they were last indexed
+         */
+        public Collection<DocumentReference> getGroups()
+        {
+            return this.memberships.keySet();
+        }
+    }
+
+    private static final Plan DIRECT = new Plan(Strategy.DIRECT, Collections.emptySet());
+
+    /**
+     * The estimated cost of a database query, in rights evaluations.
+     */
+    static final long QUERY_COST = 1000;
+
+    /**
+     * The estimated cost of loading a document containing rights objects, in rights evaluations.
+     */
+    static final long ROW_COST = 10;
+
+    private static final char SPACE_SEPARATOR = '.';
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private GroupManager groupManager;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<String, Set<String>> rightsDocuments = new ConcurrentHashMap<>();
+
+    /**
+     * The bit of each group in the parent groups bit sets.
+     */
+    private final Map<DocumentReference, Integer> groupBits = new ConcurrentHashMap<>();
+
+    private final AtomicInteger nextGroupBit = new AtomicInteger();
+
+    /**
+     * The parent groups of each group when its rights were last written by a group indexing.
+     */
+    private final Map<DocumentReference, BitSet> memberships = new HashMap<>();
+
+    private long membershipsGeneration;
+
+    /**
+     * @return a plan evaluating the rights of each document
+     */
+    public static Plan direct()
+    {
+        return DIRECT;
+    }
+
+    /**
+     * @param wiki the wiki containing the documents to index
+     * @param documents the number of documents to index, -1 if unknown
+     * @param groups the number of groups to evaluate
+     * @param rights the number of rights to evaluate
+     * @return the plan to use
+     */
+    public Plan plan(WikiReference wiki, long documents, int groups, int rights)
+    {
+        if (documents < 0) {
+            return DIRECT;
+        }
+
+        long evaluations = (long) groups * rights;
+
+        try {
+            // Counting the spaces and finding the rights documents can't cost more than what they could save
+            long planning = QUERY_COST + getRightsDocumentsCost(wiki);
+            if (!isWorth(documents, 1, evaluations, planning)) {
+                return direct(wiki, documents, evaluations);
+            }
+
+            long spaces = countSpaces(wiki);
+            if (!isWorth(documents, spaces, evaluations, planning)) {
+                return direct(wiki, documents, evaluations);
+            }
+
+            Set<String> wikiRightsDocuments = getRightsDocuments(wiki);
+
+            return plan(wiki, documents, spaces + wikiRightsDocuments.size(), evaluations, planning,
+                wikiRightsDocuments);
+        } catch (QueryException e) {
+            return fallback(wiki, e);
+        }
+    }
+
+    /**
+     * @param space the space containing the documents to index (including its sub spaces)
+     * @param groups the number of groups to evaluate
+     * @param rights the number of rights to evaluate
+     * @return the plan to use
+     */
+    public Plan plan(EntityReference space, int groups, int rights)
+    {
+        long evaluations = (long) groups * rights;
+
+        try {
+            WikiReference wiki = new WikiReference(space.extractReference(EntityType.WIKI));
+
+            // The documents and spaces are counted with the same query
+            long planning = QUERY_COST + getRightsDocumentsCost(wiki);
+            Object[] counts = countDocuments(space);
+            long documents = ((Number) counts[0]).longValue();
+            long spaces = ((Number) counts[1]).longValue();
+            if (!isWorth(documents, spaces, evaluations, planning)) {
+                return direct(space, documents, evaluations);
+            }
+
+            Set<String> wikiRightsDocuments = getRightsDocuments(wiki);
+
+            // Only the rights documents located in the space are rights owners, the others are never checked
+            String prefix = this.serializer.serialize(space) + SPACE_SEPARATOR;
+            long owners = spaces;
+            for (String document : wikiRightsDocuments) {
+                if (document.startsWith(prefix)) {
+                    ++owners;
+                }
+            }
+
+            return plan(space, documents, owners, evaluations, planning, wikiRightsDocuments);
+        } catch (QueryException e) {
+            return fallback(space, e);
+        }
+    }
+
+    /**
+     * @param wiki the wiki containing the documents to index
+     * @param documents the serialized references of the documents to index
+     * @param spaces the number of distinct spaces containing the documents
+     * @param groups the number of groups to evaluate
+     * @param rights the number of rights to evaluate
+     * @return the plan to use
+     */
+    public Plan plan(WikiReference wiki, Collection<String> documents, long spaces, int groups, int rights)
+    {
+        long evaluations = (long) groups * rights;
+
+        try {
+            // Nothing to save for a single document or for documents which are all in different spaces
+            long planning = getRightsDocumentsCost(wiki);
+            if (!isWorth(documents.size(), spaces, evaluations, planning)) {
+                return DIRECT;
+            }
+
+            Set<String> wikiRightsDocuments = getRightsDocuments(wiki);
+
+            long owners = spaces;
+            for (String document : documents) {
+                if (wikiRightsDocuments.contains(document)) {
+                    ++owners;
+                }
+            }
+
+            return plan(wiki, documents.size(), owners, evaluations, planning, wikiRightsDocuments);
+        } catch (QueryException e) {
+            return fallback(wiki, e);
+        }
+    }
+
+    private boolean isWorth(long documents, long minOwners, long evaluations, long planning)
+    {
+        // The best case for the rights owners: the documents only share the rights of their spaces
+        return (documents - Math.min(documents, minOwners)) * evaluations > planning;
+    }
+
+    private Plan plan(EntityReference scope, long documents, long owners, long evaluations, long planning,
+        Set<String> wikiRightsDocuments)
+    {
+        long directCost = documents * evaluations;
+        long ownerCost = planning + Math.min(documents, owners) * evaluations;
+
+        Plan plan = ownerCost < directCost ? new Plan(Strategy.OWNER, wikiRightsDocuments) : DIRECT;
+
+        this.logger.info("Indexing [{}] documents x [{}] evaluations with [{}] rights owners in [{}]: strategy [{}]"
+            + " (estimated cost [{}] for direct and [{}] for owner, including [{}] for the planning)", documents,
+            evaluations, owners, scope, plan.getStrategy(), directCost, ownerCost, planning);
+
+        return plan;
+    }
+
+    private Plan direct(EntityReference scope, long documents, long evaluations)
+    {
+        this.logger.debug("Indexing [{}] documents x [{}] evaluations in [{}]: strategy [DIRECT] (the rights owners"
+            + " can't save more than the cost of finding them)", documents, evaluations, scope);
+
+        return DIRECT;
+    }
+
+    private Plan fallback(EntityReference scope, QueryException e)
+    {
+        this.logger.warn("Failed to plan the indexing of [{}], falling back on direct evaluation", scope, e);
+
+        return DIRECT;
+    }
+
+    private long getRightsDocumentsCost(WikiReference wiki)
+    {
+        Set<String> wikiRightsDocuments = this.rightsDocuments.get(wiki.getName());
+
+        // The number of rights documents is unknown until they are loaded, only count the query
+        return wikiRightsDocuments != null ? 0 : QUERY_COST;
+    }
+
+    private long countSpaces(WikiReference wiki) throws QueryException
+    {
+        Query query = this.queryManager.createQuery("select count(space.reference) from Space space", Query.XWQL);
+        query.setWiki(wiki.getName());
+
+        return ((Number) query.execute().get(0)).longValue();
+    }
+
+    private Object[] countDocuments(EntityReference space) throws QueryException
+    {
+        Query query = this.queryManager.createQuery("select count(distinct doc.fullName), count(distinct doc.space)"
+            + " from Document doc where doc.space = :space or doc.space like :children", Query.XWQL);
+        String spaceString = this.localSerializer.serialize(space);
+        query.bindValue("space", spaceString);
+        query.bindValue("children").literal(spaceString + SPACE_SEPARATOR).anyChars();
+        query.setWiki(space.extractReference(EntityType.WIKI).getName());
+
+        return (Object[]) query.execute().get(0);
+    }
+
+    /**
+     * @param groups the group whose membership changed and its sub groups
+     * @return the groups whose parent groups changed since their rights were last indexed, to pass to
+     *         {@link #commit(GroupDiff)} once indexed
+     * @throws GroupException when failing to resolve the parent groups
+     */
+    public GroupDiff diff(Collection<DocumentReference> groups) throws GroupException
+    {
+        long generation;
+        Map<DocumentReference, BitSet> indexed;
+        synchronized (this.memberships) {
+            generation = this.membershipsGeneration;
+            indexed = new HashMap<>(this.memberships);
+        }
+
+        Map<DocumentReference, BitSet> changed = new HashMap<>();
+        for (DocumentReference group : groups) {
+            BitSet membership = getMembership(group);
+            if (!membership.equals(indexed.get(group))) {
+                changed.put(group, membership);
+            }
+        }
+
+        this.logger.info("Indexing [{}] groups out of [{}]: the others have the same parent groups as when they were"
+            + " last indexed", changed.size(), groups.size());
+
+        return new GroupDiff(generation, changed);
+    }
+
+    /**
+     * Remember the parent groups of the indexed groups.
+     * 
+     * @param diff the groups which were indexed
+     * @throws GroupException when failing to resolve the parent groups
+     */
+    public void commit(GroupDiff diff) throws GroupException
+    {
+        // A group whose parent groups changed again during the indexing is indexed again by the next group job
+        Map<DocumentReference, BitSet> unchanged = new HashMap<>();
+        for (Map.Entry<DocumentReference, BitSet> entry : diff.memberships.entrySet()) {
+            if (entry.getValue().equals(getMembership(entry.getKey()))) {
+                unchanged.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        synchronized (this.memberships) {
+            // Documents indexed in the meantime might reflect other parent groups
+            if (diff.generation == this.membershipsGeneration) {
+                this.memberships.putAll(unchanged);
+            }
+        }
+    }
+
+    /**
+     * Forget the parent groups of the indexed groups, called when documents are indexed for all their groups (which
+     * reflects the current parent groups instead of the ones remembered for the last group indexing).
+     */
+    public void invalidateMemberships()
+    {
+        synchronized (this.memberships) {
+            ++this.membershipsGeneration;
+            this.memberships.clear();
+        }
+    }
+
+    private BitSet getMembership(DocumentReference group) throws GroupException
+    {
+        BitSet membership = new BitSet();
+        for (DocumentReference parent : this.groupManager.getGroups(group, WikiTarget.ALL, true)) {
+            membership.set(this.groupBits.computeIfAbsent(parent, k -> this.nextGroupBit.getAndIncrement()));
+        }
+
+        return membership;
+    }
+
+    /**
+     * Forget the documents containing rights objects found in a wiki.
+     * 
+     * @param wiki the wiki in which rights objects were added or removed
+     */
+    public void invalidate(WikiReference wiki)
+    {
+        this.rightsDocuments.remove(wiki.getName());
+    }
+
+    /**
+     * @param wiki the wiki
+     * @return the serialized references of the documents of the wiki which contain their own rights
+     * @throws QueryException when failing to use execute database request
+     */
+    public Set<String> getRightsDocuments(WikiReference wiki) throws QueryException
+    {
+        Set<String> documents = this.rightsDocuments.get(wiki.getName());
+
+        if (documents == null) {
+            documents = loadRightsDocuments(wiki);
+
+            this.rightsDocuments.put(wiki.getName(), documents);
+        }
+
+        return documents;
+    }
+
+    private Set<String> loadRightsDocuments(WikiReference wiki) throws QueryException
+    {
+        Query query = this.queryManager.createQuery(
+            "select distinct doc.fullName from Document doc, doc.object(XWiki.XWikiRights) as rights", Query.XWQL);
+        query.setWiki(wiki.getName());
+
+        List<String> fullNames = query.execute();
+
+        Set<String> documents = new HashSet<>(fullNames.size());
+        for (String fullName : fullNames) {
+            documents.add(wiki.getName() + ':' + fullName);
+        }
+
+        return documents;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LongBitSet;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.core.PluginBag;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DelegatingCollector;
+import org.apache.solr.search.ExtendedQueryBase;
+import org.apache.solr.search.PostFilter;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+
+/**
+ * A Solr query parser producing a post filter which checks the allowed groups of each candidate document against the
+ * groups of a user, instead of parsing and caching a terms query listing all those groups.
+ * <p>
+ * The query only carries the reference of the user ({@code {!solrsecurity f=allowed user='xwiki:XWiki.User'}}), the
+ * groups are resolved in the same JVM and converted, for each index segment, into a bit set of the term ordinals of the
+ * field. It requires the field to have doc values and only works with the embedded Solr search core.
+ * 
+ * @version $Id$
+ */
+public class SolrSecurityPostFilter extends QParserPlugin
+{
+    /**
+     * The name of the query parser.
+     */
+    public static final String NAME = "solrsecurity";
+
+    /**
+     * The local parameter containing the field holding the allowed groups.
+     */
+    public static final String FIELD = "f";
+
+    /**
+     * The local parameter containing the serialized reference of the user, empty for guest.
+     */
+    public static final String USER = "user";
+
+    /**
+     * The local parameter containing the field holding the allowed users, if any.
+     */
+    public static final String USERS_FIELD = "users";
+
+    /**
+     * The minimum cost for Solr to execute a non cached filter as a post filter.
+     */
+    private static final int POST_FILTER_COST = 100;
+
+    private final Function<String, Collection<String>> groupResolver;
+
+    /**
+     * @param groupResolver resolve the serialized references of the groups of a user
+     */
+    public SolrSecurityPostFilter(Function<String, Collection<String>> groupResolver)
+    {
+        this.groupResolver = groupResolver;
+    }
+
+    /**
+     * Register the query parser in a Solr core.
+     * 
+     * @param core the core in which to register the query parser
+     * @param fields the fields which must have doc values for the post filter to work
+     * @return true if the parser was registered, false if the core does not support it
+     * @throws ReflectiveOperationException when failing to access the query parsers of the core
+     */
+    public boolean register(SolrCore core, String... fields) throws ReflectiveOperationException
+    {
+        if (!hasDocValues(core.getLatestSchema(), fields)) {
+            return false;
+        }
+
+        // Solr does not provide any API to add a query parser to a running core
+        Field pluginsField = SolrCore.class.getDeclaredField("qParserPlugins");
+        pluginsField.setAccessible(true);
+        ((PluginBag<QParserPlugin>) pluginsField.get(core)).put(NAME, this);
+
+        return true;
+    }
+
+    private static boolean hasDocValues(IndexSchema schema, String... fields)
+    {
+        for (String field : fields) {
+            if (field != null) {
+                SchemaField schemaField = schema.getFieldOrNull(field);
+                if (schemaField == null || !schemaField.hasDocValues()) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param field the field holding the allowed groups
+     * @param user the serialized reference of the user, null for guest
+     * @param usersField the field holding the allowed users, null if users are not indexed
+     * @return the filter query using this parser
+     */
+    public static String getFilterQuery(String field, String user, String usersField)
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{!").append(NAME).append(' ').append(FIELD).append('=').append(field);
+        if (user != null) {
+            builder.append(' ').append(USER).append("='")
+                .append(StringUtils.replaceEach(user, new String[] {"\\", "'"}, new String[] {"\\\\", "\\'"}))
+                .append('\'');
+            if (usersField != null) {
+                builder.append(' ').append(USERS_FIELD).append('=').append(usersField);
+            }
+        }
+        builder.append('}');
+
+        return builder.toString();
+    }
+
+    @Override
+    public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req)
+    {
+        return new QParser(qstr, localParams, params, req)
+        {
+            @Override
+            public Query parse()
+            {
+                String user = this.localParams.get(USER);
+                Collection<String> groups =
+                    StringUtils.isEmpty(user) ? null : SolrSecurityPostFilter.this.groupResolver.apply(user);
+
+                String field = this.localParams.get(FIELD);
+                String usersField = user != null ? this.localParams.get(USERS_FIELD) : null;
+
+                // The schema might have changed since the parser was registered (for example after a core reload)
+                if (!hasDocValues(this.req.getSchema(), field, usersField)) {
+                    return createTermsQuery(field, groups, usersField, user);
+                }
+
+                return new AllowedQuery(field, groups, usersField, user);
+            }
+        };
+    }
+
+    private static Query createTermsQuery(String field, Collection<String> groups, String usersField, String user)
+    {
+        // The same as the standard filter query
+        List<BytesRef> terms = new ArrayList<>();
+        if (groups != null) {
+            for (String group : groups) {
+                terms.add(new BytesRef(group));
+            }
+        }
+        Query query = new TermInSetQuery(field, terms);
+
+        if (usersField != null) {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            builder.add(query, BooleanClause.Occur.SHOULD);
+            builder.add(new TermQuery(new Term(usersField, user)), BooleanClause.Occur.SHOULD);
+            query = builder.build();
+        }
+
+        return query;
+    }
+
+    private static final class AllowedQuery extends ExtendedQueryBase implements PostFilter
+    {
+        private final String field;
+
+        private final Collection<String> groups;
+
+        private final String usersField;
+
+        private final String user;
+
+        private AllowedQuery(String field, Collection<String> groups, String usersField, String user)
+        {
+            this.field = field;
+            this.groups = groups;
+            this.usersField = usersField;
+            this.user = user;
+
+            // The result depends on the groups of the user at the time of the search
+            setCache(false);
+        }
+
+        @Override
+        public int getCost()
+        {
+            return Math.max(super.getCost(), POST_FILTER_COST);
+        }
+
+        @Override
+        public DelegatingCollector getFilterCollector(IndexSearcher searcher)
+        {
+            return new DelegatingCollector()
+            {
+                private SortedSetDocValues groupValues;
+
+                private LongBitSet allowedGroups;
+
+                private SortedSetDocValues userValues;
+
+                private long userOrd = -1;
+
+                @Override
+                protected void doSetNextReader(LeafReaderContext context) throws IOException
+                {
+                    super.doSetNextReader(context);
+
+                    // Ordinals are specific to each segment
+                    this.groupValues = DocValues.getSortedSet(context.reader(), field);
+                    this.allowedGroups = new LongBitSet(Math.max(1, this.groupValues.getValueCount()));
+                    if (groups != null) {
+                        for (String group : groups) {
+                            long ord = this.groupValues.lookupTerm(new BytesRef(group));
+                            if (ord >= 0) {
+                                this.allowedGroups.set(ord);
+                            }
+                        }
+                    }
+
+                    if (usersField != null && user != null) {
+                        this.userValues = DocValues.getSortedSet(context.reader(), usersField);
+                        this.userOrd = this.userValues.lookupTerm(new BytesRef(user));
+                    }
+                }
+
+                @Override
+                public void collect(int doc) throws IOException
+                {
+                    if (isAllowed(this.groupValues, this.allowedGroups, doc)
+                        || (this.userOrd >= 0 && isUserAllowed(doc))) {
+                        super.collect(doc);
+                    }
+                }
+
+                private boolean isUserAllowed(int doc) throws IOException
+                {
+                    if (this.userValues.advanceExact(doc)) {
+                        for (long ord = this.userValues.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS;
+                            ord = this.userValues.nextOrd()) {
+                            if (ord == this.userOrd) {
+                                return true;
+                            }
+                        }
+                    }
+
+                    return false;
+                }
+            };
+        }
+
+        private static boolean isAllowed(SortedSetDocValues values, LongBitSet allowed, int doc) throws IOException
+        {
+            if (values.advanceExact(doc)) {
+                for (long ord = values.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = values.nextOrd()) {
+                    if (allowed.get(ord)) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public String toString(String defaultField)
+        {
+            return getFilterQuery(this.field, this.user, this.usersField);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!sameClassAs(other)) {
+                return false;
+            }
+
+            AllowedQuery otherQuery = (AllowedQuery) other;
+
+            return Objects.equals(this.field, otherQuery.field) && Objects.equals(this.groups, otherQuery.groups)
+                && Objects.equals(this.usersField, otherQuery.usersField)
+                && Objects.equals(this.user, otherQuery.user);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(classHash(), this.field, this.groups, this.usersField, this.user);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.QueryException;
+
+/**
+ * Find the entity owning the rights of a document when the groups are stored once per rights owner (see
+ * {@link SolrSecurityConfiguration#isJoinModel()}).
+ * <p>
+ * A document containing its own rights objects is its own rights owner, the other documents share the rights of their
+ * space.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityRightsOwners.class)
+@Singleton
+public class SolrSecurityRightsOwners
+{
+    static final String ID_PREFIX = "solrsecurity.owner.";
+
+    private static final char TYPE_SEPARATOR = ':';
+
+    @Inject
+    private SolrSecurityPlanner planner;
+
+    @Inject
+    private DocumentReferenceResolver<String> documentResolver;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    /**
+     * Forget the documents containing rights objects found in a wiki.
+     * 
+     * @param wiki the wiki in which rights objects were added or removed
+     */
+    public void invalidate(WikiReference wiki)
+    {
+        this.planner.invalidate(wiki);
+    }
+
+    /**
+     * @param document the document
+     * @return the document itself if it contains its own rights, its space otherwise
+     * @throws QueryException when failing to find the documents containing rights objects
+     */
+    public EntityReference getOwner(DocumentReference document) throws QueryException
+    {
+        DocumentReference documentWithoutLocale =
+            document.getLocale() != null ? new DocumentReference(document, (Locale) null) : document;
+
+        Set<String> rightsDocuments = this.planner.getRightsDocuments(document.getWikiReference());
+        if (rightsDocuments.contains(this.serializer.serialize(documentWithoutLocale))) {
+            return documentWithoutLocale;
+        }
+
+        return document.getLastSpaceReference();
+    }
+
+    /**
+     * @param parent the wiki or space
+     * @return the documents containing their own rights located in the passed wiki or space (including sub spaces)
+     * @throws QueryException when failing to find the documents containing rights objects
+     */
+    public List<DocumentReference> getRightsDocuments(EntityReference parent) throws QueryException
+    {
+        List<DocumentReference> documents = new ArrayList<>();
+
+        WikiReference wiki = new WikiReference(parent.extractReference(EntityType.WIKI));
+        for (String document : this.planner.getRightsDocuments(wiki)) {
+            DocumentReference documentReference = this.documentResolver.resolve(document);
+            if (documentReference.hasParent(parent)) {
+                documents.add(documentReference);
+            }
+        }
+
+        return documents;
+    }
+
+    /**
+     * @param owner the rights owner
+     * @return the identifier of the Solr document holding the groups of the rights owner
+     */
+    public String getId(EntityReference owner)
+    {
+        return ID_PREFIX + owner.getType().getLowerCase() + TYPE_SEPARATOR + this.serializer.serialize(owner);
+    }
+
+    /**
+     * @param wiki the wiki
+     * @return the prefixes of the identifiers of the Solr documents of all the rights owners located in the wiki
+     */
+    public static List<String> getIdPrefixes(WikiReference wiki)
+    {
+        return List.of(ID_PREFIX + EntityType.SPACE.getLowerCase() + TYPE_SEPARATOR + wiki.getName() + TYPE_SEPARATOR,
+            ID_PREFIX + EntityType.DOCUMENT.getLowerCase() + TYPE_SEPARATOR + wiki.getName() + TYPE_SEPARATOR);
+    }
+
+    /**
+     * @param id the identifier of a Solr document
+     * @return the wiki of the rights owner, null if the identifier is not the one of a rights owner
+     */
+    public static String getWiki(String id)
+    {
+        if (id.startsWith(ID_PREFIX)) {
+            int typeEnd = id.indexOf(TYPE_SEPARATOR, ID_PREFIX.length());
+            int wikiEnd = typeEnd >= 0 ? id.indexOf(TYPE_SEPARATOR, typeEnd + 1) : -1;
+
+            if (wikiEnd > 0) {
+                return id.substring(typeEnd + 1, wikiEnd);
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The format of the compressed files containing the allowed groups of Solr documents.
+ * <p>
+ * The file starts with the names of the stored fields and then contains one record per Solr document. Each group name
+ * is written only once, the first time it's used, and then referenced by its index.
+ * 
+ * @version $Id$
+ */
+public final class SolrSecuritySnapshot
+{
+    private static final int MAGIC = 0x53534e50;
+
+    private static final int VERSION = 1;
+
+    private SolrSecuritySnapshot()
+    {
+        // Utility class
+    }
+
+    /**
+     * Write a snapshot file.
+     * 
+     * @version $Id$
+     */
+    public static final class Writer implements Closeable
+    {
+        private final DataOutputStream output;
+
+        private final int fields;
+
+        private final Map<String, Integer> dictionary = new HashMap<>();
+
+        /**
+         * @param file the file to write
+         * @param fields the names of the fields to store for each document
+         * @throws IOException when failing to write the file
+         */
+        public Writer(File file, List<String> fields) throws IOException
+        {
+            this.output = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+            this.fields = fields.size();
+
+            this.output.writeInt(MAGIC);
+            this.output.writeByte(VERSION);
+            this.output.writeShort(fields.size());
+            for (String field : fields) {
+                this.output.writeUTF(field);
+            }
+        }
+
+        /**
+         * @param id the identifier of the Solr document
+         * @param values the values of each field, in the order of the fields
+         * @throws IOException when failing to write the file
+         */
+        public void write(String id, List<? extends Collection<String>> values) throws IOException
+        {
+            this.output.writeBoolean(true);
+            this.output.writeUTF(id);
+
+            for (int i = 0; i < this.fields; ++i) {
+                Collection<String> fieldValues = values.get(i);
+
+                this.output.writeInt(fieldValues.size());
+                for (String value : fieldValues) {
+                    Integer index = this.dictionary.get(value);
+                    if (index != null) {
+                        this.output.writeInt(index);
+                    } else {
+                        // New group: define it
+                        this.output.writeInt(this.dictionary.size());
+                        this.output.writeUTF(value);
+                        this.dictionary.put(value, this.dictionary.size());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try {
+                this.output.writeBoolean(false);
+            } finally {
+                this.output.close();
+            }
+        }
+    }
+
+    /**
+     * A document read from a snapshot file.
+     * 
+     * @version $Id$
+     */
+    public static final class Record
+    {
+        private final String id;
+
+        private final List<List<String>> values;
+
+        private Record(String id, List<List<String>> values)
+        {
+            this.id = id;
+            this.values = values;
+        }
+
+        /**
+         * @return the identifier of the Solr document
+         */
+        public String getId()
+        {
+            return this.id;
+        }
+
+        /**
+         * @return the values of each field, in the order of the fields
+         */
+        public List<List<String>> getValues()
+        {
+            return this.values;
+        }
+    }
+
+    /**
+     * Read a snapshot file.
+     * 
+     * @version $Id$
+     */
+    public static final class Reader implements Closeable
+    {
+        private final DataInputStream input;
+
+        private final List<String> fields;
+
+        private final List<String> dictionary = new ArrayList<>();
+
+        /**
+         * @param file the file to read
+         * @throws IOException when failing to read the file
+         */
+        public Reader(File file) throws IOException
+        {
+            this.input =
+                new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+
+            try {
+                if (this.input.readInt() != MAGIC) {
+                    throw new IOException("Not a Solr security snapshot: " + file);
+                }
+                int version = this.input.readByte();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported Solr security snapshot version [" + version + "]: " + file);
+                }
+
+                int size = this.input.readShort();
+                this.fields = new ArrayList<>(size);
+                for (int i = 0; i < size; ++i) {
+                    this.fields.add(this.input.readUTF());
+                }
+            } catch (IOException e) {
+                this.input.close();
+
+                throw e;
+            }
+        }
+
+        /**
+         * @return the names of the fields stored for each document
+         */
+        public List<String> getFields()
+        {
+            return this.fields;
+        }
+
+        /**
+         * @return the next document or null if there is no more documents
+         * @throws IOException when failing to read the file
+         */
+        public Record read() throws IOException
+        {
+            if (!this.input.readBoolean()) {
+                return null;
+            }
+
+            String id = this.input.readUTF();
+
+            List<List<String>> values = new ArrayList<>(this.fields.size());
+            for (int i = 0; i < this.fields.size(); ++i) {
+                int size = this.input.readInt();
+                List<String> fieldValues = new ArrayList<>(size);
+                for (int j = 0; j < size; ++j) {
+                    int index = this.input.readInt();
+                    if (index == this.dictionary.size()) {
+                        this.dictionary.add(this.input.readUTF());
+                    }
+                    fieldValues.add(this.dictionary.get(index));
+                }
+                values.add(fieldValues);
+            }
+
+            return new Record(id, values);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            this.input.close();
+        }
+    }
+}
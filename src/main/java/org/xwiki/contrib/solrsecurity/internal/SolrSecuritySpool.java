@@ -0,0 +1,542 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.environment.Environment;
+
+/**
+ * A local on-disk journal of the Solr updates which could not be sent to the search core, replayed in batches once the
+ * core is reachable again.
+ * <p>
+ * The journal is made of segments files, each containing a sequence of records prefixed by their size so that a record
+ * partially written (for example when the server is killed) is ignored. The position of the last batch sent is saved
+ * so that a replay interrupted in the middle of a segment does not send its beginning again. Deletions are journaled
+ * with the updates so that an update spooled before a deletion does not create the deleted document again.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecuritySpool.class)
+@Singleton
+public class SolrSecuritySpool implements Initializable
+{
+    /**
+     * Send a batch of spooled updates.
+     * 
+     * @version $Id$
+     */
+    public interface Sender
+    {
+        /**
+         * @param solrDocuments the documents to send to Solr
+         * @throws Exception when failing to send the documents
+         */
+        void send(List<SolrInputDocument> solrDocuments) throws Exception;
+
+        /**
+         * @param ids the identifiers of the Solr documents to delete
+         * @throws Exception when failing to delete the documents
+         */
+        void delete(List<String> ids) throws Exception;
+
+        /**
+         * @param query the query matching the Solr documents to delete
+         * @throws Exception when failing to delete the documents
+         */
+        void deleteByQuery(String query) throws Exception;
+    }
+
+    /**
+     * A record read from the journal.
+     * 
+     * @version $Id$
+     */
+    private static final class Update
+    {
+        /**
+         * The identifier of the updated or deleted Solr document, or the query matching the deleted documents.
+         */
+        private final String key;
+
+        private final short kind;
+
+        private final SolrInputDocument solrDocument;
+
+        Update(String key, short kind, SolrInputDocument solrDocument)
+        {
+            this.key = key;
+            this.kind = kind;
+            this.solrDocument = solrDocument;
+        }
+    }
+
+    private static final String ID = "id";
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".bin";
+
+    private static final long SEGMENT_SIZE = 16L * 1024 * 1024;
+
+    private static final int REPLAY_BATCH_SIZE = 100;
+
+    private static final String OFFSET_FILE = "offset";
+
+    private static final int LENGTH_SIZE = Integer.BYTES;
+
+    /**
+     * The field count written in the records of deleted Solr documents.
+     */
+    private static final short DELETE_BY_ID = -1;
+
+    /**
+     * The field count written in the records of deleted queries, whose identifier is the query.
+     */
+    private static final short DELETE_BY_QUERY = -2;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private Logger logger;
+
+    private File directory;
+
+    private long sequence;
+
+    private File currentSegment;
+
+    private DataOutputStream currentOutput;
+
+    private int segments;
+
+    private File offsetFile;
+
+    private long offsetSequence;
+
+    private long offset;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.directory = new File(this.environment.getPermanentDirectory(), "solrsecurity/spool");
+
+        try {
+            FileUtils.forceMkdir(this.directory);
+        } catch (IOException e) {
+            throw new InitializationException("Failed to create the Solr security spool directory", e);
+        }
+
+        this.offsetFile = new File(this.directory, OFFSET_FILE);
+        loadOffset();
+
+        File[] existingSegments = listSegments();
+        this.segments = existingSegments.length;
+        if (existingSegments.length > 0) {
+            this.sequence = getSequence(existingSegments[existingSegments.length - 1]);
+
+            this.logger.info("[{}] segments of Solr security updates are waiting to be sent to the search core",
+                existingSegments.length);
+        }
+    }
+
+    /**
+     * @return true if there is no update waiting in the spool
+     */
+    public synchronized boolean isEmpty()
+    {
+        return this.segments == 0;
+    }
+
+    /**
+     * Add updates at the end of the journal.
+     * 
+     * @param solrDocuments the updates to add
+     * @throws IOException when failing to write the updates
+     */
+    public synchronized void append(Collection<SolrInputDocument> solrDocuments) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(buffer);
+        ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+        DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+        for (SolrInputDocument solrDocument : solrDocuments) {
+            recordBuffer.reset();
+            write(solrDocument, recordOutput);
+            recordOutput.flush();
+
+            records.writeInt(recordBuffer.size());
+            recordBuffer.writeTo(records);
+        }
+        records.flush();
+
+        // The whole batch is serialized first so that an invalid update does not leave part of it in the journal
+        write(buffer);
+    }
+
+    /**
+     * Add deletions at the end of the journal, so that they are replayed after the updates spooled before them.
+     * 
+     * @param ids the identifiers of the Solr documents to delete
+     * @throws IOException when failing to write the deletions
+     */
+    public synchronized void appendDelete(Collection<String> ids) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(buffer);
+        for (String id : ids) {
+            writeDelete(id, DELETE_BY_ID, records);
+        }
+        records.flush();
+
+        write(buffer);
+    }
+
+    /**
+     * Add a deletion by query at the end of the journal, so that it's replayed after the updates spooled before it.
+     * 
+     * @param query the query matching the Solr documents to delete
+     * @throws IOException when failing to write the deletion
+     */
+    public synchronized void appendDeleteByQuery(String query) throws IOException
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(buffer);
+        writeDelete(query, DELETE_BY_QUERY, records);
+        records.flush();
+
+        write(buffer);
+    }
+
+    private void writeDelete(String key, short kind, DataOutputStream records) throws IOException
+    {
+        ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+        DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+        recordOutput.writeUTF(key);
+        recordOutput.writeShort(kind);
+        recordOutput.flush();
+
+        records.writeInt(recordBuffer.size());
+        recordBuffer.writeTo(records);
+    }
+
+    private void write(ByteArrayOutputStream records) throws IOException
+    {
+        if (this.currentOutput == null || this.currentSegment.length() >= SEGMENT_SIZE) {
+            rotate();
+        }
+
+        records.writeTo(this.currentOutput);
+
+        this.currentOutput.flush();
+    }
+
+    /**
+     * Send all the updates of the journal in batches, in the order they were added. Each segment is deleted once all
+     * its updates have been sent.
+     * 
+     * @param sender the function sending the updates to Solr
+     * @throws Exception when failing to send the updates, the remaining segments are kept for the next replay
+     */
+    public synchronized void replay(Sender sender) throws Exception
+    {
+        // Make sure the current segment is complete and not modified anymore
+        close();
+
+        for (File segment : listSegments()) {
+            long segmentSequence = getSequence(segment);
+            long position = segmentSequence == this.offsetSequence ? this.offset : 0;
+            long length = segment.length();
+
+            try (FileInputStream fileInput = new FileInputStream(segment)) {
+                // Skip the updates already sent by a previous replay which failed in the middle of the segment
+                fileInput.getChannel().position(position);
+
+                DataInputStream input = new DataInputStream(new BufferedInputStream(fileInput));
+                List<SolrInputDocument> batch = new ArrayList<>(REPLAY_BATCH_SIZE);
+                List<String> deleted = new ArrayList<>(REPLAY_BATCH_SIZE);
+                for (byte[] record = read(input, length - position, segment); record != null;
+                    record = read(input, length - position, segment)) {
+                    position += LENGTH_SIZE + record.length;
+
+                    Update update = parse(record, segment);
+                    if (update == null) {
+                        continue;
+                    }
+
+                    // Updates and deletions are sent in the order they were added
+                    if (update.kind == DELETE_BY_QUERY) {
+                        flush(sender, batch, deleted);
+                        sender.deleteByQuery(update.key);
+                    } else if (update.kind == DELETE_BY_ID) {
+                        flush(sender, batch, Collections.emptyList());
+                        deleted.add(update.key);
+                    } else {
+                        flush(sender, Collections.emptyList(), deleted);
+                        batch.add(update.solrDocument);
+                    }
+
+                    if (update.kind == DELETE_BY_QUERY || batch.size() + deleted.size() >= REPLAY_BATCH_SIZE) {
+                        flush(sender, batch, deleted);
+
+                        saveOffset(segmentSequence, position);
+                    }
+                }
+                flush(sender, batch, deleted);
+            }
+
+            Files.delete(segment.toPath());
+            --this.segments;
+
+            // The sequence restarts when the spool is empty so the offset must not outlive its segment
+            if (segmentSequence == this.offsetSequence) {
+                Files.deleteIfExists(this.offsetFile.toPath());
+                this.offsetSequence = 0;
+                this.offset = 0;
+            }
+
+            this.logger.info("Replayed spooled Solr security updates from segment [{}]", segment.getName());
+        }
+    }
+
+    private void flush(Sender sender, List<SolrInputDocument> batch, List<String> deleted) throws Exception
+    {
+        if (!batch.isEmpty()) {
+            sender.send(batch);
+            batch.clear();
+        }
+        if (!deleted.isEmpty()) {
+            sender.delete(deleted);
+            deleted.clear();
+        }
+    }
+
+    private void loadOffset()
+    {
+        if (this.offsetFile.exists()) {
+            try (DataInputStream input = new DataInputStream(new FileInputStream(this.offsetFile))) {
+                this.offsetSequence = input.readLong();
+                this.offset = input.readLong();
+            } catch (IOException e) {
+                // Worst case the beginning of a segment is sent again, which is harmless for atomic updates
+                this.logger.warn("Failed to read the Solr security spool replay offset: {}",
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    private void saveOffset(long segmentSequence, long position) throws IOException
+    {
+        File temporaryFile = new File(this.directory, OFFSET_FILE + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temporaryFile))) {
+            output.writeLong(segmentSequence);
+            output.writeLong(position);
+        }
+        Files.move(temporaryFile.toPath(), this.offsetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        this.offsetSequence = segmentSequence;
+        this.offset = position;
+    }
+
+    private void rotate() throws IOException
+    {
+        close();
+
+        this.currentSegment = new File(this.directory, String.format("%s%020d%s", SEGMENT_PREFIX, ++this.sequence,
+            SEGMENT_SUFFIX));
+        this.currentOutput =
+            new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.currentSegment, true)));
+        ++this.segments;
+    }
+
+    private void close() throws IOException
+    {
+        if (this.currentOutput != null) {
+            this.currentOutput.close();
+            this.currentOutput = null;
+            this.currentSegment = null;
+        }
+    }
+
+    private File[] listSegments()
+    {
+        File[] files = this.directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX));
+        if (files == null) {
+            return new File[0];
+        }
+
+        // The sequence is padded so that the alphabetical order is the chronological order
+        Arrays.sort(files);
+
+        return files;
+    }
+
+    private long getSequence(File segment)
+    {
+        String name = segment.getName();
+
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void write(SolrInputDocument solrDocument, DataOutputStream output) throws IOException
+    {
+        String id = (String) solrDocument.getFieldValue(ID);
+        output.writeUTF(id);
+        output.writeShort(solrDocument.size() - 1);
+
+        for (SolrInputField field : solrDocument) {
+            if (!field.getName().equals(ID)) {
+                output.writeUTF(field.getName());
+
+                // Only atomic updates are spooled, a full value would replace the whole document when replayed
+                if (!(field.getValue() instanceof Map)) {
+                    throw new IOException(
+                        "Unsupported value for field [" + field.getName() + "] of Solr document [" + id + "]");
+                }
+
+                Map<String, Collection<String>> value = (Map<String, Collection<String>>) field.getValue();
+                output.writeByte(value.size());
+                for (Map.Entry<String, Collection<String>> modifier : value.entrySet()) {
+                    output.writeUTF(modifier.getKey());
+                    output.writeInt(modifier.getValue().size());
+                    for (String group : modifier.getValue()) {
+                        output.writeUTF(group);
+                    }
+                }
+            }
+        }
+    }
+
+    private byte[] read(DataInputStream input, long remaining, File segment) throws IOException
+    {
+        byte[] record;
+        try {
+            int length = input.readInt();
+
+            // Don't trust a length which does not fit in the segment, it would be corrupted or partially written
+            if (length < 0 || length > remaining - LENGTH_SIZE) {
+                this.logger.warn("Ignoring the end of the spooled Solr security updates segment [{}]: invalid record"
+                    + " length [{}] with [{}] bytes remaining", segment.getName(), length, remaining);
+
+                return null;
+            }
+
+            record = new byte[length];
+            input.readFully(record);
+        } catch (EOFException e) {
+            // End of the segment, or partially written record
+            return null;
+        }
+
+        return record;
+    }
+
+    private Update parse(byte[] record, File segment)
+    {
+        try {
+            return parse(new DataInputStream(new ByteArrayInputStream(record)));
+        } catch (IOException e) {
+            // The length of the record is valid so the next ones can still be read
+            this.logger.warn("Ignoring a corrupted record in the spooled Solr security updates segment [{}]: {}",
+                segment.getName(), ExceptionUtils.getRootCauseMessage(e));
+
+            return null;
+        }
+    }
+
+    private Update parse(DataInputStream recordInput) throws IOException
+    {
+        String key = recordInput.readUTF();
+
+        short fieldCount = recordInput.readShort();
+        if (fieldCount == DELETE_BY_ID || fieldCount == DELETE_BY_QUERY) {
+            return new Update(key, fieldCount, null);
+        } else if (fieldCount < 0) {
+            throw new IOException("Invalid field count [" + fieldCount + "]");
+        }
+
+        SolrInputDocument solrDocument = new SolrInputDocument();
+        solrDocument.setField(ID, key);
+
+        for (int i = 0; i < fieldCount; ++i) {
+            String fieldName = recordInput.readUTF();
+
+            int modifierCount = checkCount(recordInput.readByte(), recordInput);
+            Map<String, List<String>> value = new HashMap<>(modifierCount * 2);
+            for (int j = 0; j < modifierCount; ++j) {
+                String modifier = recordInput.readUTF();
+
+                int groupCount = checkCount(recordInput.readInt(), recordInput);
+                List<String> groups = new ArrayList<>(groupCount);
+                for (int k = 0; k < groupCount; ++k) {
+                    groups.add(recordInput.readUTF());
+                }
+
+                value.put(modifier, groups);
+            }
+
+            solrDocument.setField(fieldName, value);
+        }
+
+        return new Update(key, fieldCount, solrDocument);
+    }
+
+    private int checkCount(int count, DataInputStream recordInput) throws IOException
+    {
+        // Each element takes at least the 2 bytes of an empty string
+        if (count < 0 || count > recordInput.available() / 2) {
+            throw new IOException("Invalid element count [" + count + "]");
+        }
+
+        return count;
+    }
+}
@@ -20,28 +20,51 @@
 package org.xwiki.contrib.solrsecurity.internal;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.request.schema.SchemaRequest;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.schema.FieldType;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.search.solr.Solr;
 import org.xwiki.search.solr.SolrException;
 import org.xwiki.search.solr.SolrUtils;
+import org.xwiki.search.solr.internal.api.FieldUtils;
 import org.xwiki.search.solr.internal.reference.SolrReferenceResolver;
+import org.xwiki.security.authorization.Right;
 
 /**
  * Default implementation of {@link SolrSecurityStore}.
@@ -52,10 +75,22 @@ import org.xwiki.search.solr.internal.reference.SolrReferenceResolver;
 @Singleton
 public class SolrSecurityStore implements Initializable
 {
+    static final String ID = "id";
+
     static final String SOLR_FIELD = "allowed";
 
+    static final String USERS_FIELD = SOLR_FIELD + "_users";
+
+    static final String OWNER_FIELD = "rights_owner";
+
     private static final int BATCH_COMMIT_SIZE = 100;
 
+    private static final int PURGE_BATCH_SIZE = 500;
+
+    private static final long MIN_RETRY_DELAY = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toNanos(1);
+
     @Inject
     private Solr solr;
 
@@ -65,13 +100,44 @@ public class SolrSecurityStore implements Initializable
     @Inject
     private Logger logger;
 
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private SolrSecuritySpool spool;
+
     @Inject
     @Named("document")
     private SolrReferenceResolver solrResolver;
 
     private SolrClient searchClient;
 
-    private int count;
+    private final AtomicInteger count = new AtomicInteger();
+
+    private volatile boolean commitPending;
+
+    /**
+     * The current delay before trying to reach the search core again, 0 when the last request succeeded.
+     */
+    private volatile long retryDelay;
+
+    private long retryTime;
+
+    /**
+     * Shared by the writers sending their updates directly to the search core, and exclusive while the spool is used
+     * (appended, replayed) so that a spooled update is never sent after a newer update of the same document.
+     */
+    private final ReadWriteLock spoolLock = new ReentrantReadWriteLock();
+
+    private final AtomicLong sentDocuments = new AtomicLong();
+
+    private final AtomicLong sentRequests = new AtomicLong();
+
+    private final AtomicLong commits = new AtomicLong();
+
+    private final AtomicLong spooledDocuments = new AtomicLong();
+
+    private final AtomicLong lostDocuments = new AtomicLong();
 
     @Override
     public void initialize() throws InitializationException
@@ -82,69 +148,593 @@ public class SolrSecurityStore implements Initializable
             throw new InitializationException("Failed to get the Solr search core client", e);
         }
 
-        // Make sure the schema contain the required field
+        // Make sure the schema contain the required fields
+        for (Right right : this.configuration.getRights()) {
+            initializeField(getField(right));
+        }
+        if (this.configuration.isIndexingUsers()) {
+            initializeField(USERS_FIELD);
+        }
+        if (this.configuration.isJoinModel()) {
+            initializeField(OWNER_FIELD);
+        }
+
+        // Send the updates which could not be sent before the restart
+        if (!this.spool.isEmpty()) {
+            try {
+                commit();
+            } catch (Exception e) {
+                this.logger.warn("Failed to commit the spooled Solr security updates: {}",
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    /**
+     * Make sure the search core schema contains a multivalued string field.
+     * 
+     * @param field the name of the field
+     * @throws InitializationException when failing to create the field
+     */
+    void initializeField(String field) throws InitializationException
+    {
         try {
-            new SchemaRequest.Field(SOLR_FIELD).process(this.searchClient);
+            new SchemaRequest.Field(field).process(this.searchClient);
         } catch (Exception e) {
             // Try to create it
             Map<String, Object> fieldAttributes = new HashMap<>();
-            fieldAttributes.put("name", SOLR_FIELD);
+            fieldAttributes.put("name", field);
             fieldAttributes.put(FieldType.TYPE, "string");
             fieldAttributes.put("multiValued", true);
+            // Required by the post filter
+            fieldAttributes.put("docValues", true);
 
             try {
                 new SchemaRequest.AddField(fieldAttributes).process(this.searchClient);
 
                 this.searchClient.commit();
             } catch (Exception e1) {
-                throw new InitializationException(
-                    "Failed to add the field [" + SOLR_FIELD + "] in the Solr search core", e);
+                throw new InitializationException("Failed to add the field [" + field + "] in the Solr search core",
+                    e);
             }
         }
     }
 
     /**
-     * @param document the document to update
-     * @param allowedGroups the list of groups allowed to read this document
-     * @param deniedGroups the list of groups denied to read this document
-     * @param locales the locales of the document to update
+     * @param right the right
+     * @return the name of the Solr field containing the groups having the passed right
      */
-    public void update(String document, List<String> locales, List<String> allowedGroups, List<String> deniedGroups)
+    public static String getField(Right right)
     {
-        this.logger.debug(
-            "Updating allowed property for document [{}] and locales {} with allowed groups {} and denied groups {}",
-            document, locales, allowedGroups, deniedGroups);
+        return right == Right.VIEW ? SOLR_FIELD : SOLR_FIELD + '_' + right.getName();
+    }
+
+    /**
+     * Update the allowed groups of several documents at once.
+     * 
+     * @param entries the documents to update
+     */
+    public void update(Collection<SolrSecurityEntry> entries)
+    {
+        List<SolrInputDocument> solrDocuments = new ArrayList<>(entries.size());
+
+        // Documents sharing the same rights owner are usually sent together
+        Set<String> owners = new HashSet<>();
+        for (SolrSecurityEntry entry : entries) {
+            addDocuments(entry, solrDocuments, owners);
+        }
+
+        add(solrDocuments);
+    }
 
+    /**
+     * @param id the identifier of the Solr document to update
+     * @param rights the rights to update
+     * @param allowedGroups for each right, the list of groups having it on this document
+     * @param deniedGroups for each right, the list of groups not having it on this document
+     */
+    public void update(String id, List<Right> rights, List<? extends Collection<String>> allowedGroups,
+        List<? extends Collection<String>> deniedGroups)
+    {
         SolrInputDocument solrDocument = new SolrInputDocument();
 
-        for (String locale : locales) {
-            this.solrUtils.set("id", document + '_' + (StringUtils.isEmpty(locale) ? "" : locale), solrDocument);
+        this.solrUtils.set(ID, id, solrDocument);
+        for (int i = 0; i < rights.size(); ++i) {
+            solrDocument.setField(getField(rights.get(i)), createValue(allowedGroups.get(i), deniedGroups.get(i)));
+        }
+
+        add(Collections.singletonList(solrDocument));
+    }
+
+    private void addDocuments(SolrSecurityEntry entry, List<SolrInputDocument> solrDocuments, Set<String> owners)
+    {
+        this.logger.debug("Updating allowed properties for document [{}] and locales {} for rights {}",
+            entry.getDocument(), entry.getLocales(), entry.getRights());
+
+        // The same values are shared by all the locales of the document
+        List<Right> rights = entry.getRights();
+        List<Map<String, Collection<String>>> values = new ArrayList<>(rights.size());
+        for (int i = 0; i < rights.size(); ++i) {
+            values.add(createValue(entry.getAllowedGroups(i), entry.getDeniedGroups(i)));
+        }
+
+        for (String locale : entry.getLocales()) {
+            SolrInputDocument solrDocument = new SolrInputDocument();
 
-            Map<String, List<String>> value = new HashMap<>();
-            if (!allowedGroups.isEmpty()) {
-                value.put(SolrUtils.ATOMIC_UPDATE_MODIFIER_ADD_DISTINCT, allowedGroups);
+            this.solrUtils.set(ID, entry.getDocument() + '_' + (StringUtils.isEmpty(locale) ? "" : locale),
+                solrDocument);
+            if (entry.getOwner() != null) {
+                solrDocument.setField(OWNER_FIELD, Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_SET,
+                    Collections.singletonList(entry.getOwner())));
+            } else {
+                setFields(solrDocument, rights, values);
             }
-            if (!deniedGroups.isEmpty()) {
-                value.put(SolrUtils.ATOMIC_UPDATE_MODIFIER_REMOVE, deniedGroups);
+            if (entry.getAllowedUsers() != null) {
+                solrDocument.setField(USERS_FIELD,
+                    Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_SET, entry.getAllowedUsers()));
             }
-            solrDocument.setField(SOLR_FIELD, value);
 
-            try {
-                this.logger.debug("Adding Solr document [{}]", solrDocument.toString());
+            solrDocuments.add(solrDocument);
+        }
+
+        // The groups are stored only once in the Solr document of the rights owner
+        if (entry.getOwner() != null && owners.add(entry.getOwner())) {
+            SolrInputDocument solrDocument = new SolrInputDocument();
+
+            this.solrUtils.set(ID, entry.getOwner(), solrDocument);
+            setOwnerWiki(entry.getOwner(), solrDocument);
+            setFields(solrDocument, rights, values);
+
+            solrDocuments.add(solrDocument);
+        }
+    }
 
-                this.searchClient.add(solrDocument);
+    private void setOwnerWiki(String id, SolrInputDocument solrDocument)
+    {
+        // Make the rights owners visible to what filters the documents by wiki (export, purge of a wiki)
+        String wiki = SolrSecurityRightsOwners.getWiki(id);
+        if (wiki != null) {
+            solrDocument.setField(FieldUtils.WIKI,
+                Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_SET, Collections.singletonList(wiki)));
+        }
+    }
 
-                ++this.count;
+    private void setFields(SolrInputDocument solrDocument, List<Right> rights,
+        List<Map<String, Collection<String>>> values)
+    {
+        for (int i = 0; i < rights.size(); ++i) {
+            solrDocument.setField(getField(rights.get(i)), values.get(i));
+        }
+    }
 
-                if (this.count >= BATCH_COMMIT_SIZE) {
-                    this.commit();
+    private Map<String, Collection<String>> createValue(Collection<String> allowedGroups,
+        Collection<String> deniedGroups)
+    {
+        Map<String, Collection<String>> value = new HashMap<>(4);
+        if (!allowedGroups.isEmpty()) {
+            value.put(SolrUtils.ATOMIC_UPDATE_MODIFIER_ADD_DISTINCT, allowedGroups);
+        }
+        if (!deniedGroups.isEmpty()) {
+            value.put(SolrUtils.ATOMIC_UPDATE_MODIFIER_REMOVE, deniedGroups);
+        }
+
+        return value;
+    }
+
+    /**
+     * Replace the whole list of allowed groups of a Solr document.
+     * 
+     * @param id the identifier of the Solr document to update
+     * @param rights the rights to replace
+     * @param allowedGroups for each right, the list of groups having it on this document
+     */
+    public void replace(String id, List<Right> rights, List<? extends Collection<String>> allowedGroups)
+    {
+        this.logger.debug("Replacing allowed properties {} for Solr document [{}] with allowed groups {}", rights, id,
+            allowedGroups);
+
+        SolrInputDocument solrDocument = new SolrInputDocument();
+
+        this.solrUtils.set(ID, id, solrDocument);
+        for (int i = 0; i < rights.size(); ++i) {
+            solrDocument.setField(getField(rights.get(i)),
+                Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_SET, allowedGroups.get(i)));
+        }
+
+        add(Collections.singletonList(solrDocument));
+    }
+
+    /**
+     * Replace the whole list of users explicitly allowed to view a Solr document.
+     * 
+     * @param id the identifier of the Solr document to update
+     * @param allowedUsers the users having the view right on this document
+     */
+    public void replaceUsers(String id, Collection<String> allowedUsers)
+    {
+        this.logger.debug("Replacing allowed users for Solr document [{}] with {}", id, allowedUsers);
+
+        SolrInputDocument solrDocument = new SolrInputDocument();
+
+        this.solrUtils.set(ID, id, solrDocument);
+        solrDocument.setField(USERS_FIELD,
+            Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_SET, new ArrayList<>(allowedUsers)));
+
+        add(Collections.singletonList(solrDocument));
+    }
+
+    /**
+     * Replace the whole list of groups of several Solr documents and fields.
+     * 
+     * @param fields the names of the fields to replace
+     * @param records the Solr documents and the new values of their fields, in the order of the fields
+     */
+    public void replace(List<String> fields, Collection<SolrSecuritySnapshot.Record> records)
+    {
+        List<SolrInputDocument> solrDocuments = new ArrayList<>(records.size());
+
+        for (SolrSecuritySnapshot.Record snapshotRecord : records) {
+            SolrInputDocument solrDocument = new SolrInputDocument();
+
+            this.solrUtils.set(ID, snapshotRecord.getId(), solrDocument);
+            setOwnerWiki(snapshotRecord.getId(), solrDocument);
+            for (int i = 0; i < fields.size(); ++i) {
+                solrDocument.setField(fields.get(i),
+                    Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_SET, snapshotRecord.getValues().get(i)));
+            }
+
+            solrDocuments.add(solrDocument);
+        }
+
+        add(solrDocuments);
+    }
+
+    private void add(List<SolrInputDocument> solrDocuments)
+    {
+        if (solrDocuments.isEmpty()) {
+            return;
+        }
+
+        this.logger.debug("Adding Solr documents {}", solrDocuments);
+
+        if (!sendDirectly(solrDocuments)) {
+            Lock lock = this.spoolLock.writeLock();
+            lock.lock();
+            try {
+                // Older updates waiting in the spool must be sent first so that they don't overwrite the new ones
+                if (replay() && isReachable()) {
+                    try {
+                        this.searchClient.add(solrDocuments);
+
+                        sent(solrDocuments.size());
+                    } catch (Exception e) {
+                        failed(e);
+
+                        spool(solrDocuments);
+                    }
+                } else {
+                    spool(solrDocuments);
                 }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        commitIfNeeded();
+    }
+
+    private boolean sendDirectly(List<SolrInputDocument> solrDocuments)
+    {
+        // Several writers can send their updates at the same time as long as nothing is waiting in the spool
+        Lock lock = this.spoolLock.readLock();
+        lock.lock();
+        try {
+            if (this.retryDelay != 0 || !this.spool.isEmpty()) {
+                return false;
+            }
+
+            try {
+                this.searchClient.add(solrDocuments);
             } catch (Exception e) {
-                this.logger.error("Failed to update solr document", e);
+                // The updates are spooled once the concurrent writers are done
+                failed(e);
+
+                return false;
+            }
+
+            sent(solrDocuments.size());
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commitIfNeeded()
+    {
+        if (this.count.get() >= BATCH_COMMIT_SIZE || (this.commitPending && this.retryDelay == 0)) {
+            try {
+                commit();
+            } catch (Exception e) {
+                this.logger.error("Failed to commit the Solr search core", e);
             }
         }
     }
 
+    private synchronized void sent(int size)
+    {
+        this.count.addAndGet(size);
+
+        this.sentDocuments.addAndGet(size);
+        this.sentRequests.incrementAndGet();
+
+        if (this.retryDelay != 0) {
+            this.logger.info("The Solr search core is reachable again");
+
+            this.retryDelay = 0;
+        }
+    }
+
+    private synchronized void failed(Exception e)
+    {
+        // Back off exponentially so that writers don't wait for a connection timeout on each update
+        this.retryDelay = this.retryDelay == 0 ? MIN_RETRY_DELAY : Math.min(this.retryDelay * 2, MAX_RETRY_DELAY);
+        this.retryTime = System.nanoTime() + this.retryDelay;
+
+        this.logger.warn("Failed to update Solr documents, keeping them in the spool for at least [{}] seconds: {}",
+            TimeUnit.NANOSECONDS.toSeconds(this.retryDelay), ExceptionUtils.getRootCauseMessage(e));
+    }
+
+    private synchronized boolean isReachable()
+    {
+        return this.retryDelay == 0 || System.nanoTime() - this.retryTime >= 0;
+    }
+
+    private void spool(List<SolrInputDocument> solrDocuments)
+    {
+        try {
+            this.spool.append(solrDocuments);
+
+            this.spooledDocuments.addAndGet(solrDocuments.size());
+        } catch (IOException e) {
+            this.lostDocuments.addAndGet(solrDocuments.size());
+
+            this.logger.error("Failed to update solr document", e);
+        }
+    }
+
+    private void spoolDelete(Collection<String> ids, String query)
+    {
+        try {
+            if (query != null) {
+                this.spool.appendDeleteByQuery(query);
+            } else {
+                this.spool.appendDelete(ids);
+            }
+        } catch (IOException e) {
+            this.logger.error("Failed to delete Solr documents {}", query != null ? query : ids, e);
+        }
+    }
+
+    /**
+     * Must be called with the write lock of {@link #spoolLock}.
+     * 
+     * @return true if the spool is empty
+     */
+    private boolean replay()
+    {
+        if (this.spool.isEmpty()) {
+            return true;
+        }
+
+        if (!isReachable()) {
+            return false;
+        }
+
+        try {
+            SolrClient client = this.searchClient;
+            this.spool.replay(new SolrSecuritySpool.Sender()
+            {
+                @Override
+                public void send(List<SolrInputDocument> solrDocuments) throws Exception
+                {
+                    client.add(solrDocuments);
+
+                    sent(solrDocuments.size());
+                }
+
+                @Override
+                public void delete(List<String> ids) throws Exception
+                {
+                    client.deleteById(ids);
+
+                    sent(ids.size());
+                }
+
+                @Override
+                public void deleteByQuery(String query) throws Exception
+                {
+                    client.deleteByQuery(query);
+
+                    sent(1);
+                }
+            });
+
+            return true;
+        } catch (Exception e) {
+            failed(e);
+
+            return false;
+        }
+    }
+
+    /**
+     * @param prefix the prefix of the groups to find
+     * @param excludedWiki the wiki whose documents should be ignored, null to search the whole index
+     * @return the groups with the passed prefix referenced by at least one document, whatever the right
+     * @throws IOException If there is a low-level I/O error.
+     * @throws SolrServerException if there is an error on the server
+     */
+    public Set<String> findGroups(String prefix, String excludedWiki) throws SolrServerException, IOException
+    {
+        SolrQuery query = new SolrQuery("*:*");
+        if (excludedWiki != null) {
+            query.addFilterQuery('-' + FieldUtils.WIKI + ':' + ClientUtils.escapeQueryChars(excludedWiki));
+        }
+        query.setRows(0);
+        query.setFacet(true);
+        query.setFacetPrefix(prefix);
+        query.setFacetLimit(-1);
+        query.setFacetMinCount(1);
+        for (Right right : this.configuration.getRights()) {
+            query.addFacetField(getField(right));
+        }
+
+        Set<String> groups = new HashSet<>();
+        for (FacetField facetField : query(query).getFacetFields()) {
+            for (FacetField.Count count : facetField.getValues()) {
+                groups.add(count.getName());
+            }
+        }
+
+        return groups;
+    }
+
+    /**
+     * Remove groups from all the documents which reference them, whatever the right.
+     * 
+     * @param groups the serialized references of the groups to remove
+     * @return the number of updated documents
+     * @throws IOException If there is a low-level I/O error.
+     * @throws SolrServerException if there is an error on the server
+     */
+    public long purge(Collection<String> groups) throws SolrServerException, IOException
+    {
+        if (groups.isEmpty()) {
+            return 0;
+        }
+
+        List<String> fields = new ArrayList<>();
+        for (Right right : this.configuration.getRights()) {
+            fields.add(getField(right));
+        }
+
+        // Only the documents which actually reference the groups are updated
+        String values = groups.stream().map(ClientUtils::escapeQueryChars).collect(Collectors.joining(" OR "));
+        SolrQuery query = new SolrQuery(
+            fields.stream().map(field -> field + ":(" + values + ')').collect(Collectors.joining(" OR ")));
+        query.setFields(ID);
+        query.setRows(PURGE_BATCH_SIZE);
+        query.setSort(ID, SolrQuery.ORDER.asc);
+
+        long purged = 0;
+
+        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        while (true) {
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+
+            QueryResponse response = query(query);
+
+            List<SolrInputDocument> solrDocuments = new ArrayList<>(response.getResults().size());
+            for (SolrDocument solrDocument : response.getResults()) {
+                SolrInputDocument solrInputDocument = new SolrInputDocument();
+
+                this.solrUtils.set(ID, (String) solrDocument.getFieldValue(ID), solrInputDocument);
+                for (String field : fields) {
+                    solrInputDocument.setField(field,
+                        Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_REMOVE, groups));
+                }
+
+                solrDocuments.add(solrInputDocument);
+            }
+            add(solrDocuments);
+            purged += solrDocuments.size();
+
+            String nextCursorMark = response.getNextCursorMark();
+            if (cursorMark.equals(nextCursorMark)) {
+                break;
+            }
+            cursorMark = nextCursorMark;
+        }
+
+        return purged;
+    }
+
+    /**
+     * Delete Solr documents, for example the ones of rights owners which don't exist anymore. The deletion is spooled
+     * when the search core cannot be reached.
+     * 
+     * @param ids the identifiers of the Solr documents to delete
+     */
+    public void delete(Collection<String> ids)
+    {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        this.logger.debug("Deleting Solr documents {}", ids);
+
+        delete(ids, null);
+    }
+
+    /**
+     * Delete the Solr documents of all the rights owners of a wiki. The deletion is spooled when the search core cannot
+     * be reached.
+     * 
+     * @param wiki the deleted wiki
+     */
+    public void deleteOwners(WikiReference wiki)
+    {
+        // The rights owners indexed before they got a wiki field are matched by their identifier
+        String query = SolrSecurityRightsOwners.getIdPrefixes(wiki).stream()
+            .map(prefix -> ID + ':' + ClientUtils.escapeQueryChars(prefix) + '*').collect(Collectors.joining(" OR "));
+
+        delete(null, query);
+    }
+
+    private void delete(Collection<String> ids, String query)
+    {
+        Lock lock = this.spoolLock.writeLock();
+        lock.lock();
+        try {
+            // Spooled updates sent after the delete would create the documents again
+            if (replay() && isReachable()) {
+                try {
+                    if (query != null) {
+                        this.searchClient.deleteByQuery(query);
+                    } else {
+                        this.searchClient.deleteById(new ArrayList<>(ids));
+                    }
+
+                    sent(query != null ? 1 : ids.size());
+                } catch (Exception e) {
+                    failed(e);
+
+                    spoolDelete(ids, query);
+                }
+            } else {
+                spoolDelete(ids, query);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        commitIfNeeded();
+    }
+
+    /**
+     * Performs a query against the Solr search core.
+     * 
+     * @param params the query parameters
+     * @return the response of the query
+     * @throws IOException If there is a low-level I/O error.
+     * @throws SolrServerException if there is an error on the server
+     */
+    public QueryResponse query(SolrParams params) throws SolrServerException, IOException
+    {
+        return this.searchClient.query(params);
+    }
+
     /**
      * Performs an explicit commit, causing pending documents to be committed for indexing.
      * 
@@ -153,8 +743,66 @@ public class SolrSecurityStore implements Initializable
      */
     public void commit() throws SolrServerException, IOException
     {
-        this.count = 0;
+        Lock lock = this.spoolLock.writeLock();
+        lock.lock();
+        try {
+            if (!replay() && !isReachable()) {
+                // Don't wait for a timeout, the commit will be done once the spooled updates have been sent
+                this.commitPending = true;
+
+                return;
+            }
+
+            this.count.set(0);
+            this.commitPending = false;
+
+            this.searchClient.commit();
+
+            this.commits.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of documents sent to the Solr search core since the store was initialized
+     */
+    public long getSentDocuments()
+    {
+        return this.sentDocuments.get();
+    }
+
+    /**
+     * @return the number of update requests sent to the Solr search core since the store was initialized
+     */
+    public long getSentRequests()
+    {
+        return this.sentRequests.get();
+    }
+
+    /**
+     * @return the number of commits of the Solr search core since the store was initialized
+     */
+    public long getCommits()
+    {
+        return this.commits.get();
+    }
 
-        this.searchClient.commit();
+    /**
+     * @return the number of documents which could not be sent to the Solr search core and were spooled to be sent
+     *         later, since the store was initialized
+     */
+    public long getSpooledDocuments()
+    {
+        return this.spooledDocuments.get();
+    }
+
+    /**
+     * @return the number of documents which could neither be sent to the Solr search core nor spooled, since the store
+     *         was initialized
+     */
+    public long getLostDocuments()
+    {
+        return this.lostDocuments.get();
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+/**
+ * Create low priority daemon threads (or virtual threads when requested and supported by the JVM), and the execution
+ * context the tasks they run need to access the XWiki APIs.
+ * 
+ * @version $Id$
+ */
+public class SolrSecurityThreadFactory implements ThreadFactory
+{
+    /**
+     * The reflective access to the virtual threads API (the project targets a JVM which does not know about it),
+     * resolved and checked only once.
+     */
+    private static final class VirtualThreads
+    {
+        private static final Method OF_VIRTUAL;
+
+        private static final Method NAME;
+
+        private static final Method UNSTARTED;
+
+        private static final boolean SUPPORTED;
+
+        static {
+            Method ofVirtual = null;
+            Method name = null;
+            Method unstarted = null;
+            boolean supported;
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                name = builderClass.getMethod("name", String.class);
+                unstarted = builderClass.getMethod("unstarted", Runnable.class);
+
+                // The API might exist without being usable (preview feature not enabled, restricted environment)
+                supported = unstarted.invoke(ofVirtual.invoke(null), (Runnable) () -> { }) instanceof Thread;
+            } catch (Exception | LinkageError e) {
+                supported = false;
+            }
+
+            OF_VIRTUAL = ofVirtual;
+            NAME = name;
+            UNSTARTED = unstarted;
+            SUPPORTED = supported;
+        }
+
+        private VirtualThreads()
+        {
+        }
+
+        private static Thread newThread(Runnable runnable, String threadName) throws ReflectiveOperationException
+        {
+            return (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), threadName), runnable);
+        }
+    }
+
+    private final String name;
+
+    private final ExecutionContextManager contextManager;
+
+    private final Execution execution;
+
+    private volatile boolean virtual;
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * @param name the prefix of the name of the threads
+     * @param contextManager used to initialize the execution context of the tasks
+     * @param execution used to cleanup the execution context of the tasks
+     */
+    public SolrSecurityThreadFactory(String name, ExecutionContextManager contextManager, Execution execution)
+    {
+        this(name, contextManager, execution, false);
+    }
+
+    /**
+     * @param name the prefix of the name of the threads
+     * @param contextManager used to initialize the execution context of the tasks
+     * @param execution used to cleanup the execution context of the tasks
+     * @param virtual true to create virtual threads when supported by the JVM
+     */
+    public SolrSecurityThreadFactory(String name, ExecutionContextManager contextManager, Execution execution,
+        boolean virtual)
+    {
+        this.name = name;
+        this.contextManager = contextManager;
+        this.execution = execution;
+        this.virtual = virtual && isVirtualSupported();
+    }
+
+    /**
+     * @return true if the JVM is able to create virtual threads
+     */
+    public static boolean isVirtualSupported()
+    {
+        return VirtualThreads.SUPPORTED;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable)
+    {
+        String threadName = this.name + '-' + this.counter.incrementAndGet();
+
+        if (this.virtual) {
+            try {
+                return VirtualThreads.newThread(runnable, threadName);
+            } catch (Exception | LinkageError e) {
+                // Don't fail the indexing because of an optional optimization, keep using platform threads
+                this.virtual = false;
+            }
+        }
+
+        Thread thread = new Thread(runnable, threadName);
+
+        thread.setDaemon(true);
+        // Use a lower priority for the thread to not impact the rest of the farm
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+
+        return thread;
+    }
+
+    /**
+     * The execution context is initialized by the task itself and not by the thread, so that the caller of the task is
+     * able to see the failure and the threads can be reused by several tasks.
+     * 
+     * @param runnable the task to run
+     * @return a task running the passed one in a new execution context
+     */
+    public Runnable withContext(Runnable runnable)
+    {
+        return () -> {
+            try {
+                this.contextManager.initialize(new ExecutionContext());
+            } catch (ExecutionContextException e) {
+                throw new IllegalStateException("Failed to initialize the execution context of the task", e);
+            }
+
+            try {
+                runnable.run();
+            } finally {
+                this.execution.removeContext();
+            }
+        };
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.environment.Environment;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.logging.LoggerManager;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * A lightweight in-memory queue of documents to index, processed in batches by a single worker thread, without the
+ * cost of a job (status, store, logs) for each right change.
+ * <p>
+ * Spaces and wikis (for example restored from an older list) are handed to a {@link SolrSecurityJob} so that the
+ * worker never indexes a whole scope inline while documents are waiting.
+ * <p>
+ * The entities still waiting when the component is disposed are saved in the permanent directory and queued again by
+ * {@link #restore()} at the next startup.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityUpdateQueue.class)
+@Singleton
+public class SolrSecurityUpdateQueue implements Initializable, Disposable
+{
+    private static final int BATCH_SIZE = 100;
+
+    private static final long STOP_TIMEOUT = 10000L;
+
+    private static final char TYPE_SEPARATOR = ':';
+
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toNanos(10);
+
+    @Inject
+    private SolrSecurityIndexer indexer;
+
+    @Inject
+    private SolrSecurityStore solrStore;
+
+    @Inject
+    private SolrSecurityLocaleResolver localeResolver;
+
+    @Inject
+    private ExecutionContextManager contextManager;
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private Provider<SolrSecurityDispatcher> dispatcherProvider;
+
+    @Inject
+    @Named("context")
+    private Provider<ComponentManager> componentManagerProvider;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private EntityReferenceResolver<String> resolver;
+
+    @Inject
+    private Environment environment;
+
+    @Inject
+    private ObservationManager observationManager;
+
+    @Inject
+    private LoggerManager loggerManager;
+
+    @Inject
+    private Logger logger;
+
+    private final Set<EntityReference> pending = new LinkedHashSet<>();
+
+    /**
+     * The entities which were already being indexed by another node, with the time at which to try again.
+     */
+    private final Map<EntityReference, Long> deferred = new LinkedHashMap<>();
+
+    private List<EntityReference> current = Collections.emptyList();
+
+    private File file;
+
+    private boolean busy;
+
+    private long batches;
+
+    private Thread worker;
+
+    private volatile SolrSecurityJobStatus status;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.file = new File(this.environment.getPermanentDirectory(), "solrsecurity/queue.txt");
+
+        this.worker = new Thread(this::run, "solrsecurity-updater");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.worker.interrupt();
+
+        try {
+            this.worker.join(STOP_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Indexing an entity twice is harmless, forgetting it is not
+        List<EntityReference> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(this.current);
+            remaining.addAll(this.pending);
+            remaining.addAll(this.deferred.keySet());
+        }
+
+        if (!remaining.isEmpty()) {
+            save(remaining);
+        }
+    }
+
+    /**
+     * Queue again the entities which were still waiting to be indexed when the server was stopped.
+     */
+    public void restore()
+    {
+        if (!this.file.exists()) {
+            return;
+        }
+
+        List<EntityReference> references = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(this.file.toPath(), StandardCharsets.UTF_8)) {
+                int index = line.indexOf(TYPE_SEPARATOR);
+                if (index > 0) {
+                    references.add(this.resolver.resolve(line.substring(index + 1),
+                        EntityType.valueOf(line.substring(0, index))));
+                }
+            }
+
+            Files.delete(this.file.toPath());
+        } catch (Exception e) {
+            this.logger.error("Failed to read the entities waiting to be indexed from [{}]", this.file, e);
+        }
+
+        this.logger.info("Indexing [{}] entities which were waiting when the server was stopped", references.size());
+
+        addAll(references);
+    }
+
+    private void save(List<EntityReference> references)
+    {
+        List<String> lines = new ArrayList<>(references.size());
+        for (EntityReference reference : references) {
+            lines.add(reference.getType().name() + TYPE_SEPARATOR + this.serializer.serialize(reference));
+        }
+
+        try {
+            Files.createDirectories(this.file.getParentFile().toPath());
+
+            // The entities restored at startup but not indexed yet are part of the new list
+            File tmpFile = new File(this.file.getParentFile(), this.file.getName() + ".tmp");
+            Files.write(tmpFile.toPath(), lines, StandardCharsets.UTF_8);
+            Files.move(tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.logger.error("Failed to save the entities waiting to be indexed: {}", references, e);
+        }
+    }
+
+    /**
+     * @param reference the document to index
+     */
+    public synchronized void add(EntityReference reference)
+    {
+        // The same entity modified several times before being indexed is only indexed once
+        this.pending.add(reference);
+
+        notifyAll();
+    }
+
+    /**
+     * @param references the documents to index
+     */
+    public synchronized void addAll(Collection<? extends EntityReference> references)
+    {
+        this.pending.addAll(references);
+
+        notifyAll();
+    }
+
+    /**
+     * @return the progress of the batch being indexed, or of the last indexed batch, null if none
+     */
+    public SolrSecurityJobStatus getStatus()
+    {
+        return this.status;
+    }
+
+    /**
+     * Wait for the batch being indexed, if any, to be finished.
+     * 
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public synchronized void yieldTo() throws InterruptedException
+    {
+        long current = this.batches;
+        while (this.busy && this.batches == current) {
+            wait();
+        }
+    }
+
+    private void run()
+    {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                index(next());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized List<EntityReference> next() throws InterruptedException
+    {
+        if (this.busy) {
+            this.busy = false;
+            this.current = Collections.emptyList();
+            ++this.batches;
+
+            notifyAll();
+        }
+
+        for (long delay = undefer(); this.pending.isEmpty(); delay = undefer()) {
+            if (delay < 0) {
+                wait();
+            } else {
+                TimeUnit.NANOSECONDS.timedWait(this, delay);
+            }
+        }
+
+        List<EntityReference> batch = new ArrayList<>(Math.min(this.pending.size(), BATCH_SIZE));
+        for (Iterator<EntityReference> it = this.pending.iterator(); it.hasNext() && batch.size() < BATCH_SIZE;) {
+            batch.add(it.next());
+            it.remove();
+        }
+
+        this.busy = true;
+        this.current = batch;
+
+        return batch;
+    }
+
+    /**
+     * Queue again the deferred entities whose retry time is reached.
+     * 
+     * @return the number of nanoseconds before the next retry, -1 if no entity is deferred
+     */
+    private long undefer()
+    {
+        long now = System.nanoTime();
+        long delay = -1;
+        for (Iterator<Map.Entry<EntityReference, Long>> it = this.deferred.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<EntityReference, Long> entry = it.next();
+            long remaining = entry.getValue() - now;
+            if (remaining <= 0) {
+                this.pending.add(entry.getKey());
+                it.remove();
+            } else if (delay < 0 || remaining < delay) {
+                delay = remaining;
+            }
+        }
+
+        return delay;
+    }
+
+    private synchronized void defer(List<EntityReference> references)
+    {
+        long retryTime = System.nanoTime() + RETRY_DELAY;
+        for (EntityReference reference : references) {
+            this.deferred.putIfAbsent(reference, retryTime);
+        }
+    }
+
+    private void index(List<EntityReference> references) throws InterruptedException
+    {
+        List<EntityReference> batch = new ArrayList<>(references.size());
+        for (EntityReference reference : references) {
+            if (reference.getType() == EntityType.DOCUMENT) {
+                batch.add(reference);
+            } else {
+                // Whole spaces and wikis are indexed by a job in the same group as the other bulk jobs
+                this.dispatcherProvider.get().indexEntity(reference, true);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<List<String>> acquired = new ArrayList<>(batch.size());
+        SolrSecurityJobCoordinator coordinator = null;
+
+        try {
+            this.contextManager.initialize(new ExecutionContext());
+
+            // Several nodes sharing the same Solr index should not do the same work
+            coordinator = this.componentManagerProvider.get().getInstance(SolrSecurityJobCoordinator.class,
+                this.configuration.getCoordinator());
+            List<EntityReference> entities = new ArrayList<>(batch.size());
+            List<EntityReference> busyEntities = new ArrayList<>();
+            for (EntityReference reference : batch) {
+                List<String> id = SolrSecurityJobRequest.getIdForEntity(reference);
+                if (coordinator.acquire(id)) {
+                    acquired.add(id);
+                    entities.add(reference);
+                } else {
+                    // The other node might have read the rights before they changed
+                    this.logger.debug("Deferring security indexing [{}] since it's already handled elsewhere", id);
+
+                    busyEntities.add(reference);
+                }
+            }
+            defer(busyEntities);
+
+            if (!entities.isEmpty()) {
+                // The queue is not a job but its batches report their progress the same way
+                SolrSecurityJobStatus batchStatus = createStatus(entities);
+                this.status = batchStatus;
+
+                try {
+                    this.indexer.index(entities, null, this.localeResolver.createCache(), batchStatus);
+
+                    this.solrStore.commit();
+                } finally {
+                    batchStatus.setEndDate(new Date());
+                    batchStatus.setState(JobStatus.State.FINISHED);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            this.logger.error("Failed to index entities {}", batch, e);
+        } finally {
+            if (coordinator != null) {
+                for (List<String> id : acquired) {
+                    coordinator.release(id);
+                }
+            }
+
+            this.execution.removeContext();
+        }
+    }
+
+    private SolrSecurityJobStatus createStatus(List<EntityReference> entities)
+    {
+        SolrSecurityJobRequest request = new SolrSecurityJobRequest();
+        request.setId(SolrSecurityJobRequest.getIdForEntities());
+        request.setEntities(entities);
+
+        SolrSecurityJobStatus batchStatus =
+            new SolrSecurityJobStatus(request, null, this.observationManager, this.loggerManager);
+
+        batchStatus.setTotalDocuments(entities.size());
+
+        batchStatus.setStartDate(new Date());
+        batchStatus.setState(JobStatus.State.RUNNING);
+
+        return batchStatus;
+    }
+}
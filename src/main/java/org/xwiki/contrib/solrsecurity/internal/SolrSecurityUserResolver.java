@@ -0,0 +1,264 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+/**
+ * Find the users explicitly allowed to view a document. Only the users named in the rights objects of the document,
+ * its spaces and its wiki (and the main wiki) are evaluated.
+ * <p>
+ * The result is cached per rights owner: a document containing its own rights objects is its own rights owner, the
+ * other documents share the allowed users of their space.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityUserResolver.class)
+@Singleton
+public class SolrSecurityUserResolver
+{
+    private static final String USERS_SEPARATOR = ",";
+
+    private static final int CACHE_SIZE = 1000;
+
+    private static final class WikiUsers
+    {
+        private final Map<String, Set<DocumentReference>> documents = new HashMap<>();
+
+        private final Map<String, Set<DocumentReference>> spaces = new HashMap<>();
+
+        private final Set<DocumentReference> wiki = new LinkedHashSet<>();
+    }
+
+    private final Map<String, WikiUsers> cache = new ConcurrentHashMap<>();
+
+    private final Map<EntityReference, List<String>> allowedCache =
+        Collections.synchronizedMap(new LinkedHashMap<EntityReference, List<String>>(16, 0.75F, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<EntityReference, List<String>> eldest)
+            {
+                return size() > CACHE_SIZE;
+            }
+        });
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private DocumentReferenceResolver<String> documentResolver;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
+    @Inject
+    private AuthorizationManager authorization;
+
+    @Inject
+    private WikiDescriptorManager wikis;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Forget the users found in the rights objects of a wiki.
+     * 
+     * @param wiki the wiki in which rights objects changed
+     */
+    public void invalidate(WikiReference wiki)
+    {
+        this.cache.remove(wiki.getName());
+
+        // The rights of the main wiki also apply to the other wikis
+        this.allowedCache.clear();
+    }
+
+    /**
+     * Forget the allowed users evaluated so far, for example because the members of a group changed.
+     */
+    public void invalidateAllowedUsers()
+    {
+        this.allowedCache.clear();
+    }
+
+    /**
+     * @param document the document
+     * @return the serialized references of the users named in rights objects which are allowed to view the document
+     */
+    public List<String> getAllowedUsers(DocumentReference document)
+    {
+        WikiUsers wikiUsers = getWikiUsers(document.getWikiReference());
+        if (wikiUsers == null) {
+            // Don't cache a partial result
+            return evaluate(document, null);
+        }
+
+        EntityReference owner = getOwner(document, wikiUsers);
+
+        List<String> users = this.allowedCache.get(owner);
+        if (users == null) {
+            users = Collections.unmodifiableList(evaluate(document, wikiUsers));
+
+            this.allowedCache.put(owner, users);
+        }
+
+        return users;
+    }
+
+    private EntityReference getOwner(DocumentReference document, WikiUsers wikiUsers)
+    {
+        DocumentReference documentWithoutLocale =
+            document.getLocale() != null ? new DocumentReference(document, (Locale) null) : document;
+
+        // All the documents with rights objects are listed, even when the objects don't name any user
+        if (wikiUsers.documents.containsKey(this.localSerializer.serialize(documentWithoutLocale))) {
+            return documentWithoutLocale;
+        }
+
+        return document.getLastSpaceReference();
+    }
+
+    private List<String> evaluate(DocumentReference document, WikiUsers wikiUsers)
+    {
+        Set<DocumentReference> candidates = new LinkedHashSet<>();
+
+        if (wikiUsers != null) {
+            candidates.addAll(wikiUsers.documents.getOrDefault(this.localSerializer.serialize(document), Set.of()));
+            for (SpaceReference space : document.getSpaceReferences()) {
+                candidates.addAll(wikiUsers.spaces.getOrDefault(this.localSerializer.serialize(space), Set.of()));
+            }
+            candidates.addAll(wikiUsers.wiki);
+        }
+
+        if (!this.wikis.getMainWikiId().equals(document.getWikiReference().getName())) {
+            WikiUsers mainUsers = getWikiUsers(new WikiReference(this.wikis.getMainWikiId()));
+            if (mainUsers != null) {
+                candidates.addAll(mainUsers.wiki);
+            }
+        }
+
+        List<String> users = new ArrayList<>(candidates.size());
+        for (DocumentReference candidate : candidates) {
+            if (this.authorization.hasAccess(Right.VIEW, candidate, document)) {
+                users.add(this.serializer.serialize(candidate));
+            }
+        }
+
+        return users;
+    }
+
+    private WikiUsers getWikiUsers(WikiReference wiki)
+    {
+        WikiUsers wikiUsers = this.cache.get(wiki.getName());
+
+        if (wikiUsers == null) {
+            try {
+                wikiUsers = loadWikiUsers(wiki);
+
+                this.cache.put(wiki.getName(), wikiUsers);
+            } catch (QueryException e) {
+                this.logger.error("Failed to find the users named in the rights of wiki [{}]", wiki.getName(), e);
+            }
+        }
+
+        return wikiUsers;
+    }
+
+    private WikiUsers loadWikiUsers(WikiReference wiki) throws QueryException
+    {
+        WikiUsers wikiUsers = new WikiUsers();
+
+        // Document rights
+        for (Object[] row : this.<Object[]>execute(
+            "select doc.fullName, obj.users from Document doc, doc.object(XWiki.XWikiRights) as obj", wiki)) {
+            addUsers((String) row[1], wiki, wikiUsers.documents.computeIfAbsent((String) row[0], k -> new HashSet<>()));
+        }
+
+        // Space rights
+        for (Object[] row : this.<Object[]>execute("select doc.space, obj.users from Document doc,"
+            + " doc.object(XWiki.XWikiGlobalRights) as obj where doc.name = 'WebPreferences'", wiki)) {
+            addUsers((String) row[1], wiki, wikiUsers.spaces.computeIfAbsent((String) row[0], k -> new HashSet<>()));
+        }
+
+        // Wiki rights
+        for (String users : this.<String>execute("select obj.users from Document doc,"
+            + " doc.object(XWiki.XWikiGlobalRights) as obj where doc.fullName = 'XWiki.XWikiPreferences'", wiki)) {
+            addUsers(users, wiki, wikiUsers.wiki);
+        }
+
+        return wikiUsers;
+    }
+
+    private <T> List<T> execute(String statement, WikiReference wiki) throws QueryException
+    {
+        Query query = this.queryManager.createQuery(statement, Query.XWQL);
+        query.setWiki(wiki.getName());
+
+        return query.execute();
+    }
+
+    private void addUsers(String users, WikiReference wiki, Collection<DocumentReference> references)
+    {
+        if (users != null) {
+            for (String user : StringUtils.split(users, USERS_SEPARATOR)) {
+                if (StringUtils.isNotBlank(user)) {
+                    references.add(this.documentResolver.resolve(user.trim(), wiki));
+                }
+            }
+        }
+    }
+}
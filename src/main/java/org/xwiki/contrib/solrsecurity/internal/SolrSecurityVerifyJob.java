@@ -0,0 +1,340 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CursorMarkParams;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.job.AbstractJob;
+import org.xwiki.job.GroupedJob;
+import org.xwiki.job.Job;
+import org.xwiki.job.JobGroupPath;
+import org.xwiki.job.Request;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.search.solr.internal.api.FieldUtils;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+/**
+ * A job in charge of comparing the allowed groups stored in the Solr index with the current rights and fixing only the
+ * documents which differ.
+ * 
+ * @version $Id$
+ */
+@Component
+@Named(SolrSecurityVerifyJob.JOBTYPE)
+public class SolrSecurityVerifyJob extends AbstractJob<SolrSecurityJobRequest, SolrSecurityVerifyJobStatus>
+    implements GroupedJob
+{
+    /**
+     * The type of the job.
+     */
+    public static final String JOBTYPE = "solrsecurity.verify";
+
+    private static final int BATCH_SIZE = 100;
+
+    @Inject
+    private WikiDescriptorManager wikis;
+
+    @Inject
+    private DocumentReferenceResolver<String> documentResolver;
+
+    @Inject
+    private EntityReferenceSerializer<String> serializer;
+
+    @Inject
+    private SolrSecurityGroupManager groupManager;
+
+    @Inject
+    private SolrSecurityIndexer indexer;
+
+    @Inject
+    private SolrSecurityStore solrStore;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private SolrSecurityUserResolver userResolver;
+
+    @Inject
+    private SolrSecurityPlanner planner;
+
+    private long startTime;
+
+    @Override
+    protected SolrSecurityJobRequest castRequest(Request request)
+    {
+        SolrSecurityJobRequest indexerRequest;
+        if (request instanceof SolrSecurityJobRequest) {
+            indexerRequest = (SolrSecurityJobRequest) request;
+        } else {
+            indexerRequest = new SolrSecurityJobRequest(request);
+        }
+
+        return indexerRequest;
+    }
+
+    @Override
+    protected SolrSecurityVerifyJobStatus createNewStatus(SolrSecurityJobRequest request)
+    {
+        Job currentJob = this.jobContext.getCurrentJob();
+        JobStatus currentJobStatus = currentJob != null ? currentJob.getStatus() : null;
+
+        return new SolrSecurityVerifyJobStatus(request, currentJobStatus, this.observationManager,
+            this.loggerManager);
+    }
+
+    @Override
+    public String getType()
+    {
+        return JOBTYPE;
+    }
+
+    @Override
+    public JobGroupPath getGroupPath()
+    {
+        // Don't verify the index while it's being modified by another job
+        return SolrSecurityJob.GROUP_PATH;
+    }
+
+    @Override
+    protected void runInternal() throws Exception
+    {
+        if (this.configuration.isJoinModel()) {
+            // The groups are not stored on the documents but on their rights owners
+            this.logger.warn("Verifying the index is not supported when the groups are stored per rights owner");
+
+            return;
+        }
+
+        Collection<String> wikiIds;
+        if (getRequest().getEntity() != null) {
+            wikiIds = Collections.singletonList(getRequest().getEntity().extractReference(EntityType.WIKI).getName());
+        } else {
+            wikiIds = this.wikis.getAllIds();
+        }
+
+        this.startTime = System.nanoTime();
+
+        this.progressManager.pushLevelProgress(wikiIds.size(), this);
+
+        // The fixed documents reflect the current parent groups
+        this.planner.invalidateMemberships();
+
+        try {
+            for (String wiki : wikiIds) {
+                this.progressManager.startStep(this);
+
+                try {
+                    verify(new WikiReference(wiki));
+                } catch (Exception e) {
+                    this.logger.error("Failed to verify entities in wiki [{}]", wiki, e);
+                }
+
+                this.progressManager.endStep(this);
+            }
+        } finally {
+            this.progressManager.popLevelProgress(this);
+
+            this.planner.invalidateMemberships();
+
+            this.solrStore.commit();
+        }
+
+        this.logger.info("Verified [{}] Solr documents: [{}] were fixed ([{}] missing and [{}] extra groups)",
+            getStatus().getCheckedDocuments(), getStatus().getDriftedDocuments(), getStatus().getAddedGroups(),
+            getStatus().getRemovedGroups());
+    }
+
+    private void verify(WikiReference wiki) throws Exception
+    {
+        // When a group is provided only its (sub)groups are checked, otherwise the whole allowed fields are checked
+        Collection<DocumentReference> groups;
+        Set<String> checkedGroups;
+        if (getRequest().getGroupReference() != null) {
+            groups = this.groupManager.getGroups(getRequest().getGroupReference());
+            checkedGroups = serialize(groups);
+        } else {
+            groups = this.groupManager.getGroups(wiki);
+            checkedGroups = null;
+        }
+
+        // The same groups are checked for all the documents of the wiki
+        SolrSecurityGroupTable table = this.indexer.createGroupTable(groups);
+
+        SolrQuery query = new SolrQuery("*:*");
+        query.addFilterQuery(FieldUtils.TYPE + ':' + EntityType.DOCUMENT.name());
+        query.addFilterQuery(FieldUtils.WIKI + ':' + ClientUtils.escapeQueryChars(wiki.getName()));
+        // All the indexed rights are checked at once
+        List<Right> rights = this.configuration.getRights();
+        query.setFields(FieldUtils.ID, FieldUtils.FULLNAME);
+        for (Right right : rights) {
+            query.addField(SolrSecurityStore.getField(right));
+        }
+        boolean users = this.configuration.isIndexingUsers();
+        if (users) {
+            query.addField(SolrSecurityStore.USERS_FIELD);
+        }
+        query.setRows(BATCH_SIZE);
+        query.setSort(FieldUtils.ID, SolrQuery.ORDER.asc);
+
+        String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        while (true) {
+            query.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+
+            QueryResponse response = this.solrStore.query(query);
+
+            for (SolrDocument solrDocument : response.getResults()) {
+                verify(solrDocument, wiki, table, checkedGroups, rights, users);
+            }
+
+            throttle();
+
+            String nextCursorMark = response.getNextCursorMark();
+            if (cursorMark.equals(nextCursorMark)) {
+                break;
+            }
+            cursorMark = nextCursorMark;
+        }
+    }
+
+    private void verify(SolrDocument solrDocument, WikiReference wiki, SolrSecurityGroupTable table,
+        Set<String> checkedGroups, List<Right> rights, boolean users)
+    {
+        String id = (String) solrDocument.getFieldValue(FieldUtils.ID);
+        DocumentReference document =
+            this.documentResolver.resolve(wiki.getName() + ':' + solrDocument.getFieldValue(FieldUtils.FULLNAME));
+
+        List<List<String>> allowedGroups = this.indexer.getAllowedGroups(document, table, rights);
+
+        int added = 0;
+        int removed = 0;
+        List<Set<String>> deniedGroups = new ArrayList<>(rights.size());
+        for (int i = 0; i < rights.size(); ++i) {
+            Set<String> stored = getValues(solrDocument, SolrSecurityStore.getField(rights.get(i)));
+
+            for (String allowedGroup : allowedGroups.get(i)) {
+                if (!stored.remove(allowedGroup)) {
+                    ++added;
+                }
+            }
+
+            // What remains in the stored groups is not allowed anymore (or not a group anymore)
+            if (checkedGroups != null) {
+                stored.retainAll(checkedGroups);
+            }
+            removed += stored.size();
+
+            deniedGroups.add(stored);
+        }
+
+        // The users explicitly allowed don't depend on the checked groups
+        List<String> allowedUsers = null;
+        int usersAdded = 0;
+        int usersRemoved = 0;
+        if (users) {
+            allowedUsers = this.userResolver.getAllowedUsers(document);
+
+            Set<String> stored = getValues(solrDocument, SolrSecurityStore.USERS_FIELD);
+            for (String allowedUser : allowedUsers) {
+                if (!stored.remove(allowedUser)) {
+                    ++usersAdded;
+                }
+            }
+            usersRemoved = stored.size();
+        }
+
+        getStatus().checked(added + usersAdded, removed + usersRemoved);
+
+        if (added > 0 || removed > 0) {
+            this.logger.debug("Fixing Solr document [{}]: [{}] missing and [{}] extra groups", id, added, removed);
+
+            if (checkedGroups != null) {
+                this.solrStore.update(id, rights, allowedGroups, deniedGroups);
+            } else {
+                this.solrStore.replace(id, rights, allowedGroups);
+            }
+        }
+
+        if (usersAdded > 0 || usersRemoved > 0) {
+            this.logger.debug("Fixing Solr document [{}]: [{}] missing and [{}] extra users", id, usersAdded,
+                usersRemoved);
+
+            this.solrStore.replaceUsers(id, allowedUsers);
+        }
+    }
+
+    private Set<String> getValues(SolrDocument solrDocument, String field)
+    {
+        Set<String> values = new HashSet<>();
+        Collection<Object> storedValues = solrDocument.getFieldValues(field);
+        if (storedValues != null) {
+            for (Object storedValue : storedValues) {
+                values.add((String) storedValue);
+            }
+        }
+
+        return values;
+    }
+
+    private Set<String> serialize(Collection<DocumentReference> groups)
+    {
+        Set<String> serializedGroups = new HashSet<>(groups.size());
+        for (DocumentReference group : groups) {
+            serializedGroups.add(this.serializer.serialize(group));
+        }
+
+        return serializedGroups;
+    }
+
+    private void throttle() throws InterruptedException
+    {
+        int rate = this.configuration.getVerifyRate();
+
+        if (rate > 0) {
+            long expected = this.startTime + TimeUnit.SECONDS.toNanos(getStatus().getCheckedDocuments()) / rate;
+            long wait = expected - System.nanoTime();
+
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
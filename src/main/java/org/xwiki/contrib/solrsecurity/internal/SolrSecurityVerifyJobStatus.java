@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import org.xwiki.job.DefaultJobStatus;
+import org.xwiki.job.event.status.JobStatus;
+import org.xwiki.logging.LoggerManager;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * The status of the {@link SolrSecurityVerifyJob}, exposing drift statistics.
+ * 
+ * @version $Id$
+ */
+public class SolrSecurityVerifyJobStatus extends DefaultJobStatus<SolrSecurityJobRequest>
+{
+    private long checkedDocuments;
+
+    private long driftedDocuments;
+
+    private long addedGroups;
+
+    private long removedGroups;
+
+    /**
+     * @param request the request provided when started the job
+     * @param parentJobStatus the status of the parent job (i.e. the status of the job that started this one); pass
+     *            {@code null} if this job hasn't been started by another job (i.e. if this is not a sub-job)
+     * @param observationManager the observation manager component
+     * @param loggerManager the logger manager component
+     */
+    public SolrSecurityVerifyJobStatus(SolrSecurityJobRequest request, JobStatus parentJobStatus,
+        ObservationManager observationManager, LoggerManager loggerManager)
+    {
+        super(SolrSecurityVerifyJob.JOBTYPE, request, parentJobStatus, observationManager, loggerManager);
+    }
+
+    /**
+     * @return the number of Solr documents which have been compared with the current rights
+     */
+    public long getCheckedDocuments()
+    {
+        return this.checkedDocuments;
+    }
+
+    /**
+     * @return the number of Solr documents which did not match the current rights and have been fixed
+     */
+    public long getDriftedDocuments()
+    {
+        return this.driftedDocuments;
+    }
+
+    /**
+     * @return the number of groups which were missing in the index
+     */
+    public long getAddedGroups()
+    {
+        return this.addedGroups;
+    }
+
+    /**
+     * @return the number of groups which should not have been in the index
+     */
+    public long getRemovedGroups()
+    {
+        return this.removedGroups;
+    }
+
+    /**
+     * @param added the number of groups (or users) missing in the Solr document
+     * @param removed the number of groups (or users) which should not be in the Solr document
+     */
+    void checked(int added, int removed)
+    {
+        ++this.checkedDocuments;
+
+        if (added > 0 || removed > 0) {
+            ++this.driftedDocuments;
+            this.addedGroups += added;
+            this.removedGroups += removed;
+        }
+    }
+}
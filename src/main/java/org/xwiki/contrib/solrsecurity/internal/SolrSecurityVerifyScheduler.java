@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+
+/**
+ * Periodically verify and repair the whole index when {@link SolrSecurityConfiguration#getVerifyInterval()} is set.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityVerifyScheduler.class)
+@Singleton
+public class SolrSecurityVerifyScheduler implements Disposable
+{
+    @Inject
+    private SolrSecurityDispatcher dispatcher;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Start the periodic verification, if enabled.
+     */
+    public synchronized void start()
+    {
+        long interval = this.configuration.getVerifyInterval();
+
+        if (interval > 0 && this.executor == null) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "solrsecurity-verify-scheduler");
+                thread.setDaemon(true);
+
+                return thread;
+            });
+
+            // The dispatcher doesn't start a verification while another one is running for the same scope
+            this.executor.scheduleWithFixedDelay(() -> this.dispatcher.verify(null), interval, interval,
+                TimeUnit.HOURS);
+        }
+    }
+
+    @Override
+    public synchronized void dispose() throws ComponentLifecycleException
+    {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.job.Job;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+/**
+ * Schedule the indexing of the wikis at startup one at a time, starting with the most important ones.
+ * 
+ * @version $Id$
+ */
+@Component(roles = SolrSecurityWarmup.class)
+@Singleton
+public class SolrSecurityWarmup
+{
+    /**
+     * The order in which the wikis are warmed up.
+     * 
+     * @version $Id$
+     */
+    public enum Order
+    {
+        /**
+         * The wikis containing the most recently modified documents first.
+         */
+        ACTIVITY,
+
+        /**
+         * The wikis containing the fewer documents first.
+         */
+        SIZE,
+
+        /**
+         * The order in which the wikis are ready.
+         */
+        NONE
+    }
+
+    private final Map<WikiReference, Long> pending = new LinkedHashMap<>();
+
+    // Lower than any priority computed from the wiki statistics
+    private long boost = Long.MIN_VALUE / 2;
+
+    private List<String> currentJob;
+
+    /**
+     * True while some wikis are waiting to be indexed, checked without locking by each search.
+     */
+    private volatile boolean waiting;
+
+    @Inject
+    private QueryManager queryManager;
+
+    @Inject
+    private SolrSecurityDispatcher dispatcher;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * Add a wiki to the list of wikis to index.
+     * 
+     * @param wiki the reference of the wiki which is ready
+     */
+    public void schedule(WikiReference wiki)
+    {
+        // Don't even bother calculating a priority if the index is already known to be current
+        if (!this.dispatcher.needsIndexing(wiki)) {
+            return;
+        }
+
+        long priority = getPriority(wiki);
+
+        synchronized (this) {
+            this.pending.putIfAbsent(wiki, priority);
+            this.waiting = true;
+
+            if (this.currentJob == null) {
+                startNext();
+            }
+        }
+    }
+
+    /**
+     * Make sure a wiki waiting to be indexed is indexed before all others (the wiki being indexed is not interrupted
+     * since its indexing could not be resumed).
+     * 
+     * @param wiki the reference of the wiki which should be indexed first
+     */
+    public void prioritize(WikiReference wiki)
+    {
+        if (!this.waiting) {
+            return;
+        }
+
+        synchronized (this) {
+            if (this.pending.containsKey(wiki)) {
+                this.logger.debug("Indexing wiki [{}] next since it's being searched", wiki);
+
+                this.pending.put(wiki, --this.boost);
+            }
+        }
+    }
+
+    /**
+     * @param jobId the identifier of the job which just finished
+     */
+    public synchronized void onJobFinished(List<String> jobId)
+    {
+        if (jobId != null && jobId.equals(this.currentJob)) {
+            this.currentJob = null;
+
+            startNext();
+        }
+    }
+
+    private void startNext()
+    {
+        while (!this.pending.isEmpty()) {
+            WikiReference wiki = null;
+            long priority = Long.MAX_VALUE;
+            for (Map.Entry<WikiReference, Long> entry : this.pending.entrySet()) {
+                if (wiki == null || entry.getValue() < priority) {
+                    wiki = entry.getKey();
+                    priority = entry.getValue();
+                }
+            }
+
+            this.pending.remove(wiki);
+            this.waiting = !this.pending.isEmpty();
+
+            Job job = this.dispatcher.indexEntity(wiki, false);
+
+            if (job != null) {
+                this.currentJob = job.getRequest().getId();
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the priority of the wiki, the lowest first
+     */
+    private long getPriority(WikiReference wiki)
+    {
+        Order order = this.configuration.getWarmupOrder();
+
+        if (order != Order.NONE) {
+            try {
+                Query query = this.queryManager
+                    .createQuery("select count(doc.id), max(doc.date) from XWikiDocument doc", Query.HQL);
+                query.setWiki(wiki.getName());
+
+                List<Object[]> rows = query.execute();
+                if (!rows.isEmpty()) {
+                    Object[] row = rows.get(0);
+                    if (order == Order.SIZE) {
+                        return ((Number) row[0]).longValue();
+                    } else if (row[1] != null) {
+                        return -((Date) row[1]).getTime();
+                    }
+                }
+            } catch (QueryException e) {
+                this.logger.warn("Failed to get statistics for wiki [{}]: {}", wiki, e.getMessage());
+            }
+        }
+
+        // Wikis without statistics are indexed last, in the order they are ready
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.search.solr.Solr;
+import org.xwiki.search.solr.SolrException;
+
+/**
+ * A {@link SolrSecurityJobCoordinator} shared by all the nodes of a cluster using the same Solr search core.
+ * <p>
+ * Each acquired scope is a lock document in the search core, created with Solr optimistic concurrency so that only one
+ * node can create or take over it. The lock expires after {@link SolrSecurityConfiguration#getCoordinatorTimeout()}
+ * unless the node holding it renews it, so a node which crashed does not block the scope forever.
+ * 
+ * @version $Id$
+ */
+@Component
+@Named(SolrSolrSecurityJobCoordinator.HINT)
+@Singleton
+public class SolrSolrSecurityJobCoordinator implements SolrSecurityJobCoordinator, Initializable, Disposable
+{
+    /**
+     * The hint of the component.
+     */
+    public static final String HINT = "solr";
+
+    static final String OWNER_FIELD = "solrsecurity_lock_owner";
+
+    static final String EXPIRATION_FIELD = "solrsecurity_lock_expiration";
+
+    private static final String LOCK_PREFIX = "solrsecurity.lock.";
+
+    private static final String VERSION_FIELD = "_version_";
+
+    /**
+     * Ask Solr to reject the update if the document already exists.
+     */
+    private static final long VERSION_NOT_EXISTS = -1L;
+
+    @Inject
+    private Solr solr;
+
+    @Inject
+    private SolrSecurityStore solrStore;
+
+    @Inject
+    private SolrSecurityConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private SolrClient searchClient;
+
+    private final String node = UUID.randomUUID().toString();
+
+    private final Map<String, List<String>> locks = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService renewer;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        try {
+            this.searchClient = this.solr.getClient("search");
+        } catch (SolrException e) {
+            throw new InitializationException("Failed to get the Solr search core client", e);
+        }
+
+        this.solrStore.initializeField(OWNER_FIELD);
+        this.solrStore.initializeField(EXPIRATION_FIELD);
+
+        // Renew the locks well before they expire
+        long period = Math.max(1, this.configuration.getCoordinatorTimeout() / 3);
+        this.renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "solrsecurity-lock-renewer");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        this.renewer.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.renewer.shutdownNow();
+
+        // Let the other nodes take over the scopes immediately
+        for (List<String> jobId : this.locks.values()) {
+            release(jobId);
+        }
+    }
+
+    @Override
+    public boolean acquire(List<String> jobId)
+    {
+        String lockId = getLockId(jobId);
+
+        try {
+            if (!lock(lockId, VERSION_NOT_EXISTS)) {
+                // Take over the lock of a node which did not release it in time
+                SolrDocument lock = this.searchClient.getById(lockId);
+                if (lock == null) {
+                    // Released in the meantime
+                    if (!lock(lockId, VERSION_NOT_EXISTS)) {
+                        return false;
+                    }
+                } else if (isExpired(lock)) {
+                    this.logger.warn("Taking over the expired security indexing lock of node [{}] for [{}]",
+                        lock.getFirstValue(OWNER_FIELD), jobId);
+
+                    if (!lock(lockId, (Long) lock.getFieldValue(VERSION_FIELD))) {
+                        return false;
+                    }
+                } else {
+                    return false;
+                }
+            }
+        } catch (Exception e) {
+            // Doing the same work twice is better than not doing it at all
+            this.logger.warn("Failed to acquire the security indexing lock for [{}], proceeding anyway: {}", jobId,
+                ExceptionUtils.getRootCauseMessage(e));
+
+            return true;
+        }
+
+        this.locks.put(lockId, jobId);
+
+        return true;
+    }
+
+    @Override
+    public void release(List<String> jobId)
+    {
+        String lockId = getLockId(jobId);
+
+        if (this.locks.remove(lockId) != null) {
+            try {
+                // Make sure the lock was not taken over by another node in the meantime
+                SolrDocument lock = this.searchClient.getById(lockId);
+                if (lock != null && this.node.equals(lock.getFirstValue(OWNER_FIELD))) {
+                    this.searchClient.deleteById(lockId);
+                }
+            } catch (Exception e) {
+                this.logger.warn("Failed to release the security indexing lock for [{}], it will expire: {}", jobId,
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    private void renew()
+    {
+        for (Map.Entry<String, List<String>> entry : this.locks.entrySet()) {
+            try {
+                SolrDocument lock = this.searchClient.getById(entry.getKey());
+                if (lock == null || !this.node.equals(lock.getFirstValue(OWNER_FIELD))
+                    || !lock(entry.getKey(), (Long) lock.getFieldValue(VERSION_FIELD))) {
+                    // Ignore locks released while being renewed
+                    if (this.locks.remove(entry.getKey()) != null) {
+                        this.logger.warn("Lost the security indexing lock for [{}]", entry.getValue());
+                    }
+                }
+            } catch (Exception e) {
+                this.logger.warn("Failed to renew the security indexing lock for [{}]: {}", entry.getValue(),
+                    ExceptionUtils.getRootCauseMessage(e));
+            }
+        }
+    }
+
+    /**
+     * @return true if the lock was written, false if its version did not match
+     */
+    private boolean lock(String lockId, long version) throws Exception
+    {
+        SolrInputDocument lock = new SolrInputDocument();
+        lock.setField(SolrSecurityStore.ID, lockId);
+        lock.setField(OWNER_FIELD, this.node);
+        lock.setField(EXPIRATION_FIELD, String.valueOf(System.currentTimeMillis()
+            + TimeUnit.SECONDS.toMillis(this.configuration.getCoordinatorTimeout())));
+        lock.setField(VERSION_FIELD, version);
+
+        try {
+            this.searchClient.add(lock);
+        } catch (org.apache.solr.common.SolrException e) {
+            if (e.code() == ErrorCode.CONFLICT.code) {
+                return false;
+            }
+
+            throw e;
+        }
+
+        return true;
+    }
+
+    private boolean isExpired(SolrDocument lock)
+    {
+        Object expiration = lock.getFirstValue(EXPIRATION_FIELD);
+
+        return expiration == null || !StringUtils.isNumeric(expiration.toString())
+            || Long.parseLong(expiration.toString()) < System.currentTimeMillis();
+    }
+
+    private String getLockId(List<String> jobId)
+    {
+        return LOCK_PREFIX + StringUtils.join(jobId, '/');
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.script;
+
+import java.io.File;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.solrsecurity.internal.SolrSecurityDispatcher;
+import org.xwiki.contrib.solrsecurity.internal.SolrSecurityFilterQueryBuilder;
+import org.xwiki.job.Job;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.user.group.GroupException;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Expose Solr security APIs to scripts.
+ * 
+ * @version $Id$
+ */
+@Component
+@Named("solrsecurity")
+@Singleton
+public class SolrSecurityScriptService implements ScriptService
+{
+    @Inject
+    private SolrSecurityFilterQueryBuilder filterQueryBuilder;
+
+    @Inject
+    private SolrSecurityDispatcher dispatcher;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * @return the filter query restricting the search results to the documents the current user is allowed to view,
+     *         null if it could not be computed
+     */
+    public String getFilterQuery()
+    {
+        return getFilterQuery(Right.VIEW);
+    }
+
+    /**
+     * @param right the right to check, it must be one of the indexed rights
+     * @return the filter query restricting the search results to the documents on which the current user has the
+     *         passed right, null if it could not be computed
+     */
+    public String getFilterQuery(Right right)
+    {
+        try {
+            return this.filterQueryBuilder.getFilterQuery(this.xcontextProvider.get().getUserReference(), right);
+        } catch (GroupException e) {
+            this.logger.error("Failed to compute the security filter query", e);
+
+            return null;
+        }
+    }
+
+    /**
+     * Compare the allowed groups stored in the index of the whole farm with the current rights and fix the documents
+     * which differ. Require programming right.
+     * 
+     * @return the job in charge of the verification, null if the current user is not allowed to start it or if it
+     *         could not be started
+     */
+    public Job verify()
+    {
+        return verify(null);
+    }
+
+    /**
+     * Compare the allowed groups stored in the index of a wiki with the current rights and fix the documents which
+     * differ. Require programming right.
+     * 
+     * @param wiki the identifier of the wiki to verify, null for the whole farm
+     * @return the job in charge of the verification, null if the current user is not allowed to start it or if it
+     *         could not be started
+     */
+    public Job verify(String wiki)
+    {
+        if (!this.authorization.hasAccess(Right.PROGRAMMING)) {
+            return null;
+        }
+
+        return this.dispatcher.verify(wiki != null ? new WikiReference(wiki) : null);
+    }
+
+    /**
+     * Write the allowed groups stored in the index to a compressed file. Require programming right.
+     * 
+     * @param wiki the identifier of the wiki to export, null for the whole farm
+     * @param path the path of the file to write on the server
+     * @return the job in charge of the export, null if the current user is not allowed to start it or if it could not
+     *         be started
+     */
+    public Job exportSnapshot(String wiki, String path)
+    {
+        if (!this.authorization.hasAccess(Right.PROGRAMMING)) {
+            return null;
+        }
+
+        return this.dispatcher.exportSnapshot(wiki != null ? new WikiReference(wiki) : null, new File(path));
+    }
+
+    /**
+     * Restore the allowed groups stored in a file produced by {@link #exportSnapshot(String, String)}, without
+     * evaluating any right. Require programming right.
+     * 
+     * @param path the path of the file to read on the server
+     * @return the job in charge of the import, null if the current user is not allowed to start it or if it could not
+     *         be started
+     */
+    public Job importSnapshot(String path)
+    {
+        if (!this.authorization.hasAccess(Right.PROGRAMMING)) {
+            return null;
+        }
+
+        return this.dispatcher.importSnapshot(new File(path));
+    }
+}
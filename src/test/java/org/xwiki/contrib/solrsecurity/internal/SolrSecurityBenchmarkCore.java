@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+
+/**
+ * An embedded Solr search core with the fields used by the extension, started in a temporary directory for the
+ * benchmarks.
+ * 
+ * @version $Id$
+ */
+public class SolrSecurityBenchmarkCore implements AutoCloseable
+{
+    /**
+     * The name of the core.
+     */
+    public static final String NAME = "search";
+
+    private static final String[] RESOURCES =
+        {"solr.xml", "search/core.properties", "search/conf/solrconfig.xml", "search/conf/schema.xml"};
+
+    private final Path home;
+
+    private final CoreContainer container;
+
+    private final EmbeddedSolrServer client;
+
+    /**
+     * Start the core.
+     * 
+     * @throws IOException when failing to create the Solr home
+     */
+    public SolrSecurityBenchmarkCore() throws IOException
+    {
+        this.home = Files.createTempDirectory("solrsecurity-benchmark");
+
+        for (String resource : RESOURCES) {
+            Path file = this.home.resolve(resource);
+            Files.createDirectories(file.getParent());
+            try (InputStream stream = getClass().getResourceAsStream("/benchmark/" + resource)) {
+                Files.copy(stream, file);
+            }
+        }
+
+        this.container = CoreContainer.createAndLoad(this.home);
+        this.client = new EmbeddedSolrServer(this.container, NAME);
+    }
+
+    /**
+     * @return the client of the core
+     */
+    public SolrClient getClient()
+    {
+        return this.client;
+    }
+
+    /**
+     * @return the core, to release with {@link SolrCore#close()}
+     */
+    public SolrCore getCore()
+    {
+        return this.container.getCore(NAME);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.client.close();
+
+        FileUtils.deleteDirectory(this.home.toFile());
+    }
+}
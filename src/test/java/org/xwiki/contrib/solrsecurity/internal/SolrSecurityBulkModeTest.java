@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.SpaceReference;
+import org.xwiki.model.reference.WikiReference;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link SolrSecurityBulkMode}.
+ * 
+ * @version $Id$
+ */
+class SolrSecurityBulkModeTest
+{
+    private static final WikiReference WIKI = new WikiReference("wiki");
+
+    private static final SpaceReference SPACE = new SpaceReference("Space", WIKI);
+
+    private static final DocumentReference DOCUMENT = new DocumentReference("Page", SPACE);
+
+    private final SolrSecurityDispatcher dispatcher = mock(SolrSecurityDispatcher.class);
+
+    private final SolrSecurityGroupManager groupManager = mock(SolrSecurityGroupManager.class);
+
+    private final SolrSecurityConfiguration configuration = mock(SolrSecurityConfiguration.class);
+
+    private final SolrSecurityBulkMode bulkMode = new SolrSecurityBulkMode();
+
+    @BeforeEach
+    void beforeEach()
+    {
+        when(this.configuration.getBulkTimeout()).thenReturn(3600L);
+
+        ReflectionUtils.setFieldValue(this.bulkMode, "dispatcher", this.dispatcher);
+        ReflectionUtils.setFieldValue(this.bulkMode, "groupManager", this.groupManager);
+        ReflectionUtils.setFieldValue(this.bulkMode, "configuration", this.configuration);
+        ReflectionUtils.setFieldValue(this.bulkMode, "logger", mock(Logger.class));
+    }
+
+    @Test
+    void recordWhenInactive()
+    {
+        assertFalse(this.bulkMode.isActive());
+        assertFalse(this.bulkMode.recordEntity(DOCUMENT));
+        assertFalse(this.bulkMode.recordGroupChange(WIKI));
+    }
+
+    @Test
+    void nested()
+    {
+        this.bulkMode.begin();
+        this.bulkMode.begin();
+
+        assertTrue(this.bulkMode.recordEntity(DOCUMENT));
+
+        this.bulkMode.end();
+
+        // Still inside the outer operation
+        assertTrue(this.bulkMode.isActive());
+        assertTrue(this.bulkMode.recordEntity(SPACE));
+        verify(this.dispatcher, never()).indexEntity(any(), anyBoolean());
+
+        this.bulkMode.end();
+
+        assertFalse(this.bulkMode.isActive());
+        // The document is indexed with its space
+        verify(this.dispatcher).indexEntity(SPACE, true);
+        verify(this.dispatcher, never()).indexEntity(DOCUMENT, true);
+
+        // Nothing left to flush
+        this.bulkMode.end();
+        verify(this.dispatcher).indexEntity(any(), anyBoolean());
+    }
+
+    @Test
+    void endWithoutBegin()
+    {
+        this.bulkMode.end();
+
+        assertFalse(this.bulkMode.isActive());
+        assertFalse(this.bulkMode.recordEntity(DOCUMENT));
+    }
+
+    @Test
+    void otherThread() throws InterruptedException
+    {
+        this.bulkMode.begin();
+
+        AtomicBoolean recorded = new AtomicBoolean(true);
+        Thread thread = new Thread(() -> recorded.set(this.bulkMode.recordEntity(DOCUMENT)));
+        thread.start();
+        thread.join();
+
+        // The changes made by other threads are not delayed
+        assertFalse(recorded.get());
+        assertTrue(this.bulkMode.isActive());
+
+        this.bulkMode.end();
+
+        verify(this.dispatcher, never()).indexEntity(any(), anyBoolean());
+    }
+
+    @Test
+    void abort()
+    {
+        when(this.groupManager.isGroup(DOCUMENT)).thenReturn(true);
+
+        this.bulkMode.begin();
+        this.bulkMode.begin();
+
+        assertTrue(this.bulkMode.recordMember(DOCUMENT));
+        assertTrue(this.bulkMode.recordGroupChange(WIKI));
+
+        this.bulkMode.abort();
+
+        assertFalse(this.bulkMode.isActive());
+        verify(this.groupManager).invalidate(WIKI);
+        verify(this.dispatcher).indexGroup(DOCUMENT);
+
+        // The unbalanced end of the nested operation does nothing
+        this.bulkMode.end();
+        assertFalse(this.bulkMode.recordEntity(DOCUMENT));
+    }
+
+    @Test
+    void timeout() throws InterruptedException
+    {
+        when(this.configuration.getBulkTimeout()).thenReturn(1L);
+
+        this.bulkMode.begin();
+
+        assertTrue(this.bulkMode.recordEntity(DOCUMENT));
+
+        Thread.sleep(1100);
+
+        // The operation never ended: its changes are indexed and the new ones are handled right away
+        assertFalse(this.bulkMode.recordEntity(SPACE));
+        verify(this.dispatcher).indexEntity(DOCUMENT, true);
+        assertFalse(this.bulkMode.isActive());
+    }
+}
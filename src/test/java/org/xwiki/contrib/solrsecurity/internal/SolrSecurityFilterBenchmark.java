@@ -0,0 +1,146 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.SolrCore;
+
+/**
+ * Compare the search latency of the standard terms filter query with the {@link SolrSecurityPostFilter} for users
+ * member of many groups, on an embedded Solr core.
+ * <p>
+ * The size of the generated index can be changed with system properties, for example
+ * {@code -Ddocuments=100000 -Dgroups=2000 -DuserGroups=500 -DdocumentGroups=5 -Dusers=20 -Drounds=10}.
+ * 
+ * @version $Id$
+ */
+public final class SolrSecurityFilterBenchmark
+{
+    private static final String GROUP_PREFIX = "xwiki:XWiki.Group";
+
+    private static final int BATCH_SIZE = 1000;
+
+    private SolrSecurityFilterBenchmark()
+    {
+    }
+
+    /**
+     * @param args not used
+     * @throws Exception when failing to run the benchmark
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int documents = Integer.getInteger("documents", 100000);
+        int groups = Integer.getInteger("groups", 2000);
+        int userGroups = Integer.getInteger("userGroups", 500);
+        int documentGroups = Integer.getInteger("documentGroups", 5);
+        int users = Integer.getInteger("users", 20);
+        int rounds = Integer.getInteger("rounds", 10);
+
+        Random random = new Random(42);
+
+        try (SolrSecurityBenchmarkCore core = new SolrSecurityBenchmarkCore()) {
+            SolrClient client = core.getClient();
+
+            List<SolrInputDocument> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < documents; ++i) {
+                SolrInputDocument solrDocument = new SolrInputDocument();
+                solrDocument.setField(SolrSecurityStore.ID, "xwiki:Space" + (i / 1000) + ".Page" + i + '_');
+                for (int j = 0; j < documentGroups; ++j) {
+                    solrDocument.addField(SolrSecurityStore.SOLR_FIELD, GROUP_PREFIX + random.nextInt(groups));
+                }
+                batch.add(solrDocument);
+
+                if (batch.size() == BATCH_SIZE) {
+                    client.add(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                client.add(batch);
+            }
+            client.commit();
+
+            Map<String, Set<String>> memberships = new HashMap<>();
+            for (int i = 0; i < users; ++i) {
+                Set<String> names = new TreeSet<>();
+                while (names.size() < userGroups) {
+                    names.add(GROUP_PREFIX + random.nextInt(groups));
+                }
+                memberships.put("xwiki:XWiki.User" + i, names);
+            }
+
+            try (SolrCore solrCore = core.getCore()) {
+                new SolrSecurityPostFilter(memberships::get).register(solrCore, SolrSecurityStore.SOLR_FIELD);
+            }
+
+            System.out.format("%d documents, %d groups, %d groups per user, %d groups per document%n", documents,
+                groups, userGroups, documentGroups);
+
+            for (int round = 0; round < rounds; ++round) {
+                long termsTime = 0;
+                long postFilterTime = 0;
+                for (Map.Entry<String, Set<String>> user : memberships.entrySet()) {
+                    String terms = "{!terms f=" + SolrSecurityStore.SOLR_FIELD + '}'
+                        + StringUtils.join(user.getValue(), ',');
+                    String postFilter =
+                        SolrSecurityPostFilter.getFilterQuery(SolrSecurityStore.SOLR_FIELD, user.getKey(), null);
+
+                    long start = System.nanoTime();
+                    long termsFound = search(client, terms);
+                    termsTime += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    long postFilterFound = search(client, postFilter);
+                    postFilterTime += System.nanoTime() - start;
+
+                    if (termsFound != postFilterFound) {
+                        throw new IllegalStateException(String.format("Got [%d] results with the terms filter and"
+                            + " [%d] with the post filter for user [%s]", termsFound, postFilterFound, user.getKey()));
+                    }
+                }
+
+                // The first round includes the filter cache misses
+                System.out.format("round %d: terms filter %.2f ms, post filter %.2f ms%n", round,
+                    termsTime / 1e6 / users, postFilterTime / 1e6 / users);
+            }
+        }
+    }
+
+    private static long search(SolrClient client, String filter) throws Exception
+    {
+        SolrQuery query = new SolrQuery("*:*");
+        query.addFilterQuery(filter);
+        query.setRows(10);
+
+        return client.query(query).getResults().getNumFound();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.Arrays;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.search.solr.Solr;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.user.group.GroupException;
+import org.xwiki.user.group.GroupManager;
+import org.xwiki.user.group.WikiTarget;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link SolrSecurityFilterQueryBuilder}.
+ * 
+ * @version $Id$
+ */
+class SolrSecurityFilterQueryBuilderTest
+{
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "User");
+
+    private final GroupManager groupManager = mock(GroupManager.class);
+
+    private final SolrSecurityConfiguration configuration = mock(SolrSecurityConfiguration.class);
+
+    private final Solr solr = mock(Solr.class);
+
+    private final SolrSecurityWarmup warmup = mock(SolrSecurityWarmup.class);
+
+    private final EntityReferenceSerializer<String> serializer =
+        (reference, parameters) -> ((DocumentReference) reference).getWikiReference().getName() + ':'
+            + reference.getParent().getName() + '.' + reference.getName();
+
+    private SolrSecurityFilterQueryBuilder builder;
+
+    @BeforeEach
+    void beforeEach()
+    {
+        this.builder = new SolrSecurityFilterQueryBuilder();
+        ReflectionUtils.setFieldValue(this.builder, "groupManager", this.groupManager);
+        ReflectionUtils.setFieldValue(this.builder, "serializer", this.serializer);
+        ReflectionUtils.setFieldValue(this.builder, "documentResolver", mock(DocumentReferenceResolver.class));
+        ReflectionUtils.setFieldValue(this.builder, "configuration", this.configuration);
+        ReflectionUtils.setFieldValue(this.builder, "solr", this.solr);
+        ReflectionUtils.setFieldValue(this.builder, "logger", mock(Logger.class));
+
+        WikiDescriptorManager wikis = mock(WikiDescriptorManager.class);
+        when(wikis.getCurrentWikiId()).thenReturn("subwiki");
+        ReflectionUtils.setFieldValue(this.builder, "wikis", wikis);
+        Provider<SolrSecurityWarmup> warmupProvider = () -> this.warmup;
+        ReflectionUtils.setFieldValue(this.builder, "warmupProvider", warmupProvider);
+    }
+
+    private void setGroups(String... names) throws GroupException
+    {
+        DocumentReference[] groups = new DocumentReference[names.length];
+        for (int i = 0; i < names.length; ++i) {
+            groups[i] = new DocumentReference("xwiki", "XWiki", names[i]);
+        }
+
+        when(this.groupManager.getGroups(USER, WikiTarget.ALL, true)).thenReturn(Arrays.asList(groups));
+    }
+
+    @Test
+    void guest() throws GroupException
+    {
+        assertEquals("{!terms f=allowed}", this.builder.getFilterQuery(null, Right.VIEW));
+        assertEquals("{!terms f=allowed_edit}", this.builder.getFilterQuery(null, Right.EDIT));
+    }
+
+    @Test
+    void sortedTerms() throws GroupException
+    {
+        setGroups("GroupB", "GroupA");
+
+        assertEquals("{!terms f=allowed}xwiki:XWiki.GroupA,xwiki:XWiki.GroupB",
+            this.builder.getFilterQuery(USER, Right.VIEW));
+        assertEquals("{!terms f=allowed_edit}xwiki:XWiki.GroupA,xwiki:XWiki.GroupB",
+            this.builder.getFilterQuery(USER, Right.EDIT));
+    }
+
+    @Test
+    void separatorInGroupName() throws GroupException
+    {
+        // The terms query parser does not support escaping its separator
+        setGroups("Group A", "Group,B");
+
+        assertEquals("allowed:(xwiki\\:XWiki.Group\\ A OR xwiki\\:XWiki.Group,B)",
+            this.builder.getFilterQuery(USER, Right.VIEW));
+    }
+
+    @Test
+    void join() throws GroupException
+    {
+        when(this.configuration.isJoinModel()).thenReturn(true);
+        setGroups("O'Brien", "Back\\slash");
+
+        assertEquals("{!join from=id to=rights_owner v='{!terms f=allowed}xwiki:XWiki.Back\\\\slash,"
+            + "xwiki:XWiki.O\\'Brien'}", this.builder.getFilterQuery(USER, Right.VIEW));
+    }
+
+    @Test
+    void users() throws GroupException
+    {
+        when(this.configuration.isIndexingUsers()).thenReturn(true);
+        setGroups("Quote\"Group");
+
+        assertEquals("_query_:\"{!terms f=allowed}xwiki:XWiki.Quote\\\"Group\" OR allowed_users:xwiki\\:XWiki.User",
+            this.builder.getFilterQuery(USER, Right.VIEW));
+
+        // Users are only indexed for the view right
+        assertEquals("{!terms f=allowed_edit}xwiki:XWiki.Quote\"Group", this.builder.getFilterQuery(USER, Right.EDIT));
+    }
+
+    @Test
+    void joinAndUsers() throws GroupException
+    {
+        when(this.configuration.isJoinModel()).thenReturn(true);
+        when(this.configuration.isIndexingUsers()).thenReturn(true);
+        setGroups("O'Brien");
+
+        // Each level of nesting escapes the previous one
+        assertEquals("_query_:\"{!join from=id to=rights_owner v='{!terms f=allowed}xwiki:XWiki.O\\\\'Brien'}\""
+            + " OR allowed_users:xwiki\\:XWiki.User", this.builder.getFilterQuery(USER, Right.VIEW));
+    }
+
+    @Test
+    void cache() throws GroupException
+    {
+        setGroups("GroupA");
+
+        this.builder.getFilterQuery(USER, Right.VIEW);
+        this.builder.getFilterQuery(USER, Right.VIEW);
+
+        verify(this.groupManager, times(1)).getGroups(USER, WikiTarget.ALL, true);
+
+        this.builder.invalidate();
+        setGroups("GroupB");
+
+        assertEquals("{!terms f=allowed}xwiki:XWiki.GroupB", this.builder.getFilterQuery(USER, Right.VIEW));
+    }
+
+    @Test
+    void postFilterNotSupported() throws Exception
+    {
+        when(this.configuration.isPostFilter()).thenReturn(true);
+        when(this.solr.getClient("search")).thenReturn(mock(org.apache.solr.client.solrj.SolrClient.class));
+        setGroups("GroupA");
+
+        // Only the embedded search core supports the post filter
+        assertEquals("{!terms f=allowed}xwiki:XWiki.GroupA", this.builder.getFilterQuery(USER, Right.VIEW));
+    }
+
+    @Test
+    void postFilterQuery()
+    {
+        assertEquals("{!solrsecurity f=allowed}", SolrSecurityPostFilter.getFilterQuery("allowed", null, null));
+        assertEquals("{!solrsecurity f=allowed user='xwiki:XWiki.O\\'Brien' users=allowed_users}",
+            SolrSecurityPostFilter.getFilterQuery("allowed", "xwiki:XWiki.O'Brien", "allowed_users"));
+        assertEquals("{!solrsecurity f=allowed_edit user='xwiki:XWiki.User'}",
+            SolrSecurityPostFilter.getFilterQuery("allowed_edit", "xwiki:XWiki.User", null));
+    }
+
+    @Test
+    void searchPrioritizesTheCurrentWiki() throws GroupException
+    {
+        this.builder.getFilterQuery(null, Right.VIEW);
+
+        verify(this.warmup).prioritize(new WikiReference("subwiki"));
+    }
+}
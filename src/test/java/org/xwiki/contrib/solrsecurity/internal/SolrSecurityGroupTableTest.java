@@ -0,0 +1,152 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link SolrSecurityGroupTable}.
+ * 
+ * @version $Id$
+ */
+class SolrSecurityGroupTableTest
+{
+    private static final DocumentReference GROUP1 = new DocumentReference("wiki", "XWiki", "Group1");
+
+    private static final DocumentReference GROUP2 = new DocumentReference("wiki", "XWiki", "Group2");
+
+    private static final DocumentReference GROUP3 = new DocumentReference("wiki", "XWiki", "Group3");
+
+    private final AtomicInteger serializations = new AtomicInteger();
+
+    private final EntityReferenceSerializer<String> serializer = (reference, parameters) -> {
+        this.serializations.incrementAndGet();
+
+        return reference.extractReference(EntityType.WIKI).getName() + ':' + reference.getName();
+    };
+
+    private SolrSecurityGroupTable createTable()
+    {
+        return new SolrSecurityGroupTable(Arrays.asList(GROUP1, GROUP2, GROUP3), this.serializer);
+    }
+
+    private static BitSet bits(int... indexes)
+    {
+        BitSet bits = new BitSet();
+        for (int index : indexes) {
+            bits.set(index);
+        }
+
+        return bits;
+    }
+
+    private static List<String> list(Iterable<String> names)
+    {
+        List<String> list = new ArrayList<>();
+        names.forEach(list::add);
+
+        return list;
+    }
+
+    @Test
+    void groups()
+    {
+        List<DocumentReference> groups = Arrays.asList(GROUP1, GROUP2, GROUP3);
+        SolrSecurityGroupTable table = new SolrSecurityGroupTable(groups, this.serializer);
+
+        assertSame(groups, table.getSource());
+        assertEquals(3, table.size());
+        assertEquals(GROUP2, table.getGroup(1));
+        assertEquals("wiki:Group2", table.getName(1));
+
+        // The names are serialized once, when the table is created
+        table.getAllowed(bits(0, 1, 2)).forEach(name -> { });
+        table.getDenied(bits()).forEach(name -> { });
+        assertEquals(3, this.serializations.get());
+    }
+
+    @Test
+    void allowed()
+    {
+        SolrSecurityGroupTable table = createTable();
+
+        assertEquals(Arrays.asList("wiki:Group1", "wiki:Group3"), list(table.getAllowed(bits(0, 2))));
+        assertEquals(2, table.getAllowed(bits(0, 2)).size());
+
+        assertEquals(Collections.emptyList(), list(table.getAllowed(bits())));
+        assertTrue(table.getAllowed(bits()).isEmpty());
+
+        assertEquals(Arrays.asList("wiki:Group1", "wiki:Group2", "wiki:Group3"), list(table.getAllowed(bits(0, 1, 2))));
+    }
+
+    @Test
+    void denied()
+    {
+        SolrSecurityGroupTable table = createTable();
+
+        assertEquals(Collections.singletonList("wiki:Group2"), list(table.getDenied(bits(0, 2))));
+        assertEquals(1, table.getDenied(bits(0, 2)).size());
+
+        assertEquals(Arrays.asList("wiki:Group1", "wiki:Group2", "wiki:Group3"), list(table.getDenied(bits())));
+        assertEquals(3, table.getDenied(bits()).size());
+
+        assertTrue(table.getDenied(bits(0, 1, 2)).isEmpty());
+    }
+
+    @Test
+    void iteratorEnd()
+    {
+        Iterator<String> iterator = createTable().getAllowed(bits(1)).iterator();
+
+        assertTrue(iterator.hasNext());
+        assertEquals("wiki:Group2", iterator.next());
+        assertFalse(iterator.hasNext());
+        assertThrows(NoSuchElementException.class, iterator::next);
+    }
+
+    @Test
+    void emptyTable()
+    {
+        SolrSecurityGroupTable table = new SolrSecurityGroupTable(Collections.emptyList(), this.serializer);
+
+        assertEquals(0, table.size());
+        assertTrue(table.getAllowed(bits()).isEmpty());
+        assertTrue(table.getDenied(bits()).isEmpty());
+        assertFalse(table.getDenied(bits()).iterator().hasNext());
+    }
+}
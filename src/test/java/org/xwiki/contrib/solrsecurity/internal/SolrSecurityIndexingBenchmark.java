@@ -0,0 +1,222 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.search.solr.Solr;
+import org.xwiki.search.solr.SolrUtils;
+import org.xwiki.security.authorization.Right;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measure the throughput of a full indexing of a synthetic wiki through the {@link SolrSecurityPipeline} and the
+ * {@link SolrSecurityStore}, on an embedded Solr core, with a stub authorization layer.
+ * <p>
+ * The size of the synthetic wiki can be changed with system properties, for example
+ * {@code -Ddocuments=100000 -Dlocales=2 -DspaceDepth=3 -Dspaces=100 -Dgroups=500 -Devaluators=4 -DbatchSize=100}.
+ * The benchmark should run in its own JVM since it resets the peak usage of the heap memory pools.
+ * 
+ * @version $Id$
+ */
+public final class SolrSecurityIndexingBenchmark
+{
+    private static final long MB = 1024L * 1024L;
+
+    private static final int QUEUE_SIZE = 1000;
+
+    private SolrSecurityIndexingBenchmark()
+    {
+    }
+
+    /**
+     * @param args not used
+     * @throws Exception when failing to run the benchmark
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int documents = Integer.getInteger("documents", 100000);
+        int locales = Integer.getInteger("locales", 2);
+        int spaceDepth = Integer.getInteger("spaceDepth", 3);
+        int spaces = Integer.getInteger("spaces", 100);
+        int groups = Integer.getInteger("groups", 500);
+        int evaluators = Integer.getInteger("evaluators", 4);
+        int batchSize = Integer.getInteger("batchSize", 100);
+
+        Random random = new Random(42);
+
+        // The spaces and the groups allowed in each of them
+        List<String> spaceNames = new ArrayList<>(spaces);
+        List<BitSet> spaceRights = new ArrayList<>(spaces);
+        for (int i = 0; i < spaces; ++i) {
+            StringBuilder space = new StringBuilder("Space" + i);
+            for (int depth = 1; depth < spaceDepth; ++depth) {
+                space.append(".Sub").append(depth);
+            }
+            spaceNames.add(space.toString());
+
+            BitSet allowed = new BitSet(groups);
+            for (int j = 0; j < groups; ++j) {
+                if (random.nextInt(10) == 0) {
+                    allowed.set(j);
+                }
+            }
+            spaceRights.add(allowed);
+        }
+
+        List<DocumentReference> groupReferences = new ArrayList<>(groups);
+        for (int i = 0; i < groups; ++i) {
+            groupReferences.add(new DocumentReference("xwiki", "XWiki", "Group" + i));
+        }
+        EntityReferenceSerializer<String> serializer =
+            (reference, parameters) -> "xwiki:XWiki." + reference.getName();
+        SolrSecurityGroupTable table = new SolrSecurityGroupTable(groupReferences, serializer);
+
+        List<String> documentLocales = new ArrayList<>(locales);
+        documentLocales.add("");
+        for (int i = 1; i < locales; ++i) {
+            documentLocales.add("locale" + i);
+        }
+
+        List<Right> rights = Collections.singletonList(Right.VIEW);
+
+        File permanentDirectory = Files.createTempDirectory("solrsecurity-benchmark-permdir").toFile();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (SolrSecurityBenchmarkCore core = new SolrSecurityBenchmarkCore()) {
+            SolrSecurityStore store = createStore(core, permanentDirectory, rights);
+
+            resetPeakHeap();
+
+            SolrSecurityIndexingMetrics metrics = new SolrSecurityIndexingMetrics(store);
+
+            try (SolrSecurityPipeline<Integer, SolrSecurityEntry> pipeline = new SolrSecurityPipeline<>(index -> {
+                // The stub authorization layer: each group is checked against the rules of the space
+                BitSet spaceAllowed = spaceRights.get(index % spaces);
+                BitSet allowed = new BitSet(table.size());
+                for (int i = 0; i < table.size(); ++i) {
+                    if (spaceAllowed.get(i)) {
+                        allowed.set(i);
+                    }
+                }
+
+                return new SolrSecurityEntry("xwiki:" + spaceNames.get(index % spaces) + ".Page" + index,
+                    documentLocales, table, rights, new BitSet[] {allowed});
+            }, store::update, executor, UnaryOperator.identity(), evaluators, QUEUE_SIZE, batchSize)) {
+                for (int i = 0; i < documents; ++i) {
+                    pipeline.submit(i);
+                }
+                pipeline.close();
+
+                System.out.format("%s%n%s%n%s%n", pipeline.getScanStage(), pipeline.getEvaluationStage(),
+                    pipeline.getWriteStage());
+            }
+
+            store.commit();
+
+            System.out.format("%d documents, %d locales, %d spaces of depth %d, %d groups, %d evaluators%n",
+                documents, locales, spaces, spaceDepth, groups, evaluators);
+            System.out.format("%s, %d MB peak heap%n", metrics, getPeakHeap());
+        } finally {
+            executor.shutdownNow();
+
+            FileUtils.deleteDirectory(permanentDirectory);
+        }
+    }
+
+    private static SolrSecurityStore createStore(SolrSecurityBenchmarkCore core, File permanentDirectory,
+        List<Right> rights) throws Exception
+    {
+        Environment environment = mock(Environment.class);
+        when(environment.getPermanentDirectory()).thenReturn(permanentDirectory);
+        SolrSecuritySpool spool = new SolrSecuritySpool();
+        ReflectionUtils.setFieldValue(spool, "environment", environment);
+        ReflectionUtils.setFieldValue(spool, "logger", mock(Logger.class));
+        spool.initialize();
+
+        Solr solr = mock(Solr.class);
+        when(solr.getClient(SolrSecurityBenchmarkCore.NAME)).thenReturn(core.getClient());
+
+        SolrUtils solrUtils = mock(SolrUtils.class);
+        doAnswer(invocation -> {
+            ((SolrInputDocument) invocation.getArgument(2)).setField(invocation.getArgument(0),
+                invocation.getArgument(1));
+
+            return null;
+        }).when(solrUtils).set(anyString(), anyString(), any(SolrInputDocument.class));
+
+        SolrSecurityConfiguration configuration = mock(SolrSecurityConfiguration.class);
+        when(configuration.getRights()).thenReturn(rights);
+
+        SolrSecurityStore store = new SolrSecurityStore();
+        ReflectionUtils.setFieldValue(store, "solr", solr);
+        ReflectionUtils.setFieldValue(store, "solrUtils", solrUtils);
+        ReflectionUtils.setFieldValue(store, "logger", mock(Logger.class));
+        ReflectionUtils.setFieldValue(store, "configuration", configuration);
+        ReflectionUtils.setFieldValue(store, "spool", spool);
+        store.initialize();
+
+        return store;
+    }
+
+    private static void resetPeakHeap()
+    {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap()
+    {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak / MB;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.SolrInputDocument;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.search.solr.internal.api.FieldUtils;
+
+/**
+ * Compare the search latency of the groups stored on each document with the join on the Solr documents of the rights
+ * owners ({@code solrsecurity.join}), on an embedded Solr core.
+ * <p>
+ * Each document is indexed twice: once with its allowed groups and once with a reference to its rights owner (its
+ * space, or the document itself for one document out of {@code documentOwnerRatio}). The size of the generated index
+ * can be changed with system properties, for example
+ * {@code -Ddocuments=100000 -Dspaces=1000 -DdocumentOwnerRatio=10 -Dgroups=2000 -DuserGroups=50 -DdocumentGroups=5
+ * -Dusers=20 -Drounds=10}.
+ * 
+ * @version $Id$
+ */
+public final class SolrSecurityJoinBenchmark
+{
+    private static final String GROUP_PREFIX = "xwiki:XWiki.Group";
+
+    private static final String DENORMALIZED = "denormalized";
+
+    private static final String JOINED = "joined";
+
+    private static final int BATCH_SIZE = 1000;
+
+    private SolrSecurityJoinBenchmark()
+    {
+    }
+
+    /**
+     * @param args not used
+     * @throws Exception when failing to run the benchmark
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int documents = Integer.getInteger("documents", 100000);
+        int spaces = Integer.getInteger("spaces", 1000);
+        int documentOwnerRatio = Integer.getInteger("documentOwnerRatio", 10);
+        int groups = Integer.getInteger("groups", 2000);
+        int userGroups = Integer.getInteger("userGroups", 50);
+        int documentGroups = Integer.getInteger("documentGroups", 5);
+        int users = Integer.getInteger("users", 20);
+        int rounds = Integer.getInteger("rounds", 10);
+
+        Random random = new Random(42);
+
+        List<String> prefixes = SolrSecurityRightsOwners.getIdPrefixes(new WikiReference("xwiki"));
+        String spaceOwnerPrefix = prefixes.get(0);
+        String documentOwnerPrefix = prefixes.get(1);
+
+        try (SolrSecurityBenchmarkCore core = new SolrSecurityBenchmarkCore()) {
+            SolrClient client = core.getClient();
+
+            List<SolrInputDocument> batch = new ArrayList<>(BATCH_SIZE);
+
+            List<List<String>> spaceGroups = new ArrayList<>(spaces);
+            for (int i = 0; i < spaces; ++i) {
+                List<String> allowed = createGroups(random, groups, documentGroups);
+                spaceGroups.add(allowed);
+                batch.add(createOwner(spaceOwnerPrefix + "Space" + i, allowed));
+            }
+
+            int owners = spaces;
+            for (int i = 0; i < documents; ++i) {
+                int space = i % spaces;
+                String fullName = "Space" + space + ".Page" + i;
+
+                String owner;
+                List<String> allowed;
+                if (i % documentOwnerRatio == 0) {
+                    owner = documentOwnerPrefix + fullName;
+                    allowed = createGroups(random, groups, documentGroups);
+                    batch.add(createOwner(owner, allowed));
+                    ++owners;
+                } else {
+                    owner = spaceOwnerPrefix + "Space" + space;
+                    allowed = spaceGroups.get(space);
+                }
+
+                SolrInputDocument denormalized = new SolrInputDocument();
+                denormalized.setField(SolrSecurityStore.ID, "xwiki:" + fullName + '_');
+                denormalized.setField(FieldUtils.TYPE, DENORMALIZED);
+                for (String group : allowed) {
+                    denormalized.addField(SolrSecurityStore.SOLR_FIELD, group);
+                }
+                batch.add(denormalized);
+
+                SolrInputDocument joined = new SolrInputDocument();
+                joined.setField(SolrSecurityStore.ID, "joined:" + fullName + '_');
+                joined.setField(FieldUtils.TYPE, JOINED);
+                joined.setField(SolrSecurityStore.OWNER_FIELD, owner);
+                batch.add(joined);
+
+                if (batch.size() >= BATCH_SIZE) {
+                    client.add(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                client.add(batch);
+            }
+            client.commit();
+
+            List<String> filters = new ArrayList<>(users);
+            for (int i = 0; i < users; ++i) {
+                Set<String> names = new TreeSet<>();
+                while (names.size() < userGroups) {
+                    names.add(GROUP_PREFIX + random.nextInt(groups));
+                }
+                filters.add("{!terms f=" + SolrSecurityStore.SOLR_FIELD + '}' + StringUtils.join(names, ','));
+            }
+
+            System.out.format("%d documents, %d rights owners, %d groups, %d groups per user, %d groups per owner%n",
+                documents, owners, groups, userGroups, documentGroups);
+
+            for (int round = 0; round < rounds; ++round) {
+                long denormalizedTime = 0;
+                long joinTime = 0;
+                for (String filter : filters) {
+                    String join = "{!join from=" + SolrSecurityStore.ID + " to=" + SolrSecurityStore.OWNER_FIELD
+                        + " v='" + filter.replace("\\", "\\\\").replace("'", "\\'") + "'}";
+
+                    long start = System.nanoTime();
+                    long denormalizedFound = search(client, DENORMALIZED, filter);
+                    denormalizedTime += System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    long joinFound = search(client, JOINED, join);
+                    joinTime += System.nanoTime() - start;
+
+                    if (denormalizedFound != joinFound) {
+                        throw new IllegalStateException(String.format("Got [%d] results with the groups stored on"
+                            + " the documents and [%d] with the join for filter [%s]", denormalizedFound, joinFound,
+                            filter));
+                    }
+                }
+
+                // The first round includes the filter cache misses
+                System.out.format("round %d: denormalized %.2f ms, join %.2f ms%n", round,
+                    denormalizedTime / 1e6 / users, joinTime / 1e6 / users);
+            }
+        }
+    }
+
+    private static List<String> createGroups(Random random, int groups, int documentGroups)
+    {
+        List<String> allowed = new ArrayList<>(documentGroups);
+        for (int i = 0; i < documentGroups; ++i) {
+            allowed.add(GROUP_PREFIX + random.nextInt(groups));
+        }
+
+        return allowed;
+    }
+
+    private static SolrInputDocument createOwner(String id, List<String> allowed)
+    {
+        SolrInputDocument solrDocument = new SolrInputDocument();
+        solrDocument.setField(SolrSecurityStore.ID, id);
+        solrDocument.setField(FieldUtils.WIKI, "xwiki");
+        for (String group : allowed) {
+            solrDocument.addField(SolrSecurityStore.SOLR_FIELD, group);
+        }
+
+        return solrDocument;
+    }
+
+    private static long search(SolrClient client, String type, String filter) throws Exception
+    {
+        SolrQuery query = new SolrQuery(FieldUtils.TYPE + ':' + type);
+        query.addFilterQuery(filter);
+        query.setRows(10);
+
+        return client.query(query).getResults().getNumFound();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.UnaryOperator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link SolrSecurityPipeline}.
+ * 
+ * @version $Id$
+ */
+class SolrSecurityPipelineTest
+{
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private static final UnaryOperator<Runnable> NO_WRAPPER = UnaryOperator.identity();
+
+    private ExecutorService executor;
+
+    private final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void beforeEach()
+    {
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void afterEach()
+    {
+        this.executor.shutdownNow();
+    }
+
+    private void write(List<Integer> batch)
+    {
+        this.batches.add(new ArrayList<>(batch));
+    }
+
+    private int getWritten()
+    {
+        synchronized (this.batches) {
+            return this.batches.stream().mapToInt(List::size).sum();
+        }
+    }
+
+    @Test
+    void evaluateAndWriteAllItems()
+    {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SolrSecurityPipeline<Integer, Integer> pipeline =
+                new SolrSecurityPipeline<>(item -> item * 2, this::write, this.executor, NO_WRAPPER, 4, 10, 7);
+
+            for (int i = 0; i < 1000; ++i) {
+                pipeline.submit(i);
+            }
+            pipeline.close();
+
+            assertEquals(1000, getWritten());
+            assertEquals(1000, pipeline.getWriteStage().getItems());
+            synchronized (this.batches) {
+                assertTrue(this.batches.stream().allMatch(batch -> batch.size() <= 7));
+                assertEquals(999 * 1000, this.batches.stream().flatMap(List::stream).mapToInt(i -> i).sum());
+            }
+        });
+    }
+
+    @Test
+    void skipNullAndFailedEvaluations()
+    {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SolrSecurityPipeline<Integer, Integer> pipeline = new SolrSecurityPipeline<>(item -> {
+                if (item % 3 == 0) {
+                    return null;
+                }
+                if (item % 3 == 1) {
+                    throw new IllegalArgumentException();
+                }
+
+                return item;
+            }, this::write, this.executor, NO_WRAPPER, 2, 5, 5);
+
+            for (int i = 0; i < 30; ++i) {
+                pipeline.submit(i);
+            }
+            pipeline.close();
+
+            assertEquals(10, getWritten());
+            assertEquals(10, pipeline.getEvaluationStage().getFailures());
+        });
+    }
+
+    @Test
+    void countOnlyWrittenItems()
+    {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SolrSecurityPipeline<Integer, Integer> pipeline = new SolrSecurityPipeline<>(item -> item, batch -> {
+                if (batch.contains(0)) {
+                    throw new IllegalStateException("write");
+                }
+
+                write(batch);
+            }, this.executor, NO_WRAPPER, 1, 10, 5);
+
+            for (int i = 0; i < 20; ++i) {
+                pipeline.submit(i);
+            }
+            pipeline.close();
+
+            // The batch containing the item 0 failed
+            assertEquals(getWritten(), pipeline.getWriteStage().getItems());
+            assertEquals(20, getWritten() + pipeline.getWriteStage().getFailures());
+            assertTrue(pipeline.getWriteStage().getFailures() > 0);
+        });
+    }
+
+    @Test
+    void scanConcurrently()
+    {
+        ExecutorService ioExecutor = Executors.newCachedThreadPool();
+
+        try {
+            assertTimeoutPreemptively(TIMEOUT, () -> {
+                SolrSecurityPipeline<Integer, Integer> pipeline = new SolrSecurityPipeline<>(item -> item,
+                    this::write, this.executor, ioExecutor, NO_WRAPPER, 2, 3, 2, 10, 7);
+
+                for (int chunk = 0; chunk < 10; ++chunk) {
+                    int first = chunk * 100;
+                    pipeline.scan(() -> {
+                        for (int i = first; i < first + 100; ++i) {
+                            pipeline.submit(i);
+                        }
+                    });
+                }
+                pipeline.close();
+
+                // The close waits for the scans which are still running
+                assertEquals(1000, getWritten());
+                assertEquals(1000, pipeline.getScanStage().getItems());
+                assertEquals(1000, pipeline.getWriteStage().getItems());
+                synchronized (this.batches) {
+                    assertEquals(999 * 1000 / 2, this.batches.stream().flatMap(List::stream).mapToInt(i -> i).sum());
+                }
+            });
+        } finally {
+            ioExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failWhenAScanFails()
+    {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SolrSecurityPipeline<Integer, Integer> pipeline = new SolrSecurityPipeline<>(item -> item, this::write,
+                this.executor, this.executor, NO_WRAPPER, 1, 1, 1, 1, 1);
+
+            pipeline.scan(() -> {
+                throw new IllegalArgumentException("scan");
+            });
+
+            IllegalStateException exception = assertThrows(IllegalStateException.class, pipeline::close);
+            assertEquals("scan", exception.getCause().getMessage());
+        });
+    }
+
+    @Test
+    void closeTwice()
+    {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SolrSecurityPipeline<Integer, Integer> pipeline =
+                new SolrSecurityPipeline<>(item -> item, this::write, this.executor, NO_WRAPPER, 1, 1, 1);
+
+            pipeline.submit(1);
+            pipeline.close();
+            pipeline.close();
+
+            assertEquals(1, getWritten());
+        });
+    }
+
+    @Test
+    void failWhenWorkersCannotStart()
+    {
+        // Simulate the failure of the initialization of the execution context of the workers
+        UnaryOperator<Runnable> failingWrapper = worker -> () -> {
+            throw new IllegalStateException("context");
+        };
+
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SolrSecurityPipeline<Integer, Integer> pipeline =
+                new SolrSecurityPipeline<>(item -> item, this::write, this.executor, failingWrapper, 2, 1, 1);
+
+            IllegalStateException exception = assertThrows(IllegalStateException.class, () -> {
+                for (int i = 0; i < 1000; ++i) {
+                    pipeline.submit(i);
+                }
+            });
+            assertEquals("context", exception.getCause().getMessage());
+
+            assertThrows(IllegalStateException.class, pipeline::close);
+        });
+    }
+
+    @Test
+    void failWhenTheWriterDies()
+    {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            SolrSecurityPipeline<Integer, Integer> pipeline = new SolrSecurityPipeline<>(item -> item, batch -> {
+                throw new OutOfMemoryError("writer");
+            }, this.executor, NO_WRAPPER, 2, 1, 1);
+
+            // The evaluators are interrupted and the scanner fails instead of blocking on the full queues
+            assertThrows(IllegalStateException.class, () -> {
+                for (int i = 0; i < 1000; ++i) {
+                    pipeline.submit(i);
+                }
+            });
+            assertThrows(IllegalStateException.class, pipeline::close);
+        });
+    }
+
+    @Test
+    void failWhenWorkersAreRejected()
+    {
+        assertThrows(RejectedExecutionException.class, () -> new SolrSecurityPipeline<Integer, Integer>(item -> item,
+            this::write, task -> {
+                throw new RejectedExecutionException();
+            }, NO_WRAPPER, 2, 1, 1));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.user.group.GroupException;
+import org.xwiki.user.group.GroupManager;
+import org.xwiki.user.group.WikiTarget;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link SolrSecurityPlanner}.
+ * 
+ * @version $Id$
+ */
+class SolrSecurityPlannerTest
+{
+    private static final WikiReference WIKI = new WikiReference("wiki");
+
+    private static final DocumentReference PARENT = new DocumentReference("wiki", "XWiki", "Parent");
+
+    private static final DocumentReference OTHER = new DocumentReference("wiki", "XWiki", "Other");
+
+    private static final DocumentReference GROUP = new DocumentReference("wiki", "XWiki", "Group");
+
+    private static final DocumentReference SUBGROUP = new DocumentReference("wiki", "XWiki", "SubGroup");
+
+    private final QueryManager queryManager = mock(QueryManager.class);
+
+    private final Query countQuery = mock(Query.class);
+
+    private final Query rightsQuery = mock(Query.class);
+
+    private final GroupManager groupManager = mock(GroupManager.class);
+
+    private final SolrSecurityPlanner planner = new SolrSecurityPlanner();
+
+    @BeforeEach
+    void beforeEach() throws QueryException
+    {
+        when(this.queryManager.createQuery(eq("select count(space.reference) from Space space"), anyString()))
+            .thenReturn(this.countQuery);
+        when(this.queryManager.createQuery(
+            eq("select distinct doc.fullName from Document doc, doc.object(XWiki.XWikiRights) as rights"),
+            anyString())).thenReturn(this.rightsQuery);
+        when(this.rightsQuery.execute()).thenReturn(Arrays.asList("Space1.Page", "Space2.Page"));
+
+        ReflectionUtils.setFieldValue(this.planner, "queryManager", this.queryManager);
+        ReflectionUtils.setFieldValue(this.planner, "localSerializer", mock(EntityReferenceSerializer.class));
+        ReflectionUtils.setFieldValue(this.planner, "serializer", mock(EntityReferenceSerializer.class));
+        ReflectionUtils.setFieldValue(this.planner, "groupManager", this.groupManager);
+        ReflectionUtils.setFieldValue(this.planner, "logger", mock(Logger.class));
+    }
+
+    @Test
+    void smallWikiIsNotWorthQuerying() throws QueryException
+    {
+        // 10 documents x 10 evaluations can't pay for the queries
+        SolrSecurityPlanner.Plan plan = this.planner.plan(WIKI, 10, 10, 1);
+
+        assertEquals(SolrSecurityPlanner.Strategy.DIRECT, plan.getStrategy());
+        verify(this.queryManager, never()).createQuery(anyString(), anyString());
+    }
+
+    @Test
+    void largeWikiWithFewSpaces() throws QueryException
+    {
+        when(this.countQuery.execute()).thenReturn(Collections.singletonList(10L));
+
+        SolrSecurityPlanner.Plan plan = this.planner.plan(WIKI, 10000, 100, 2);
+
+        assertEquals(SolrSecurityPlanner.Strategy.OWNER, plan.getStrategy());
+        assertTrue(plan.hasRights("wiki:Space1.Page"));
+        assertFalse(plan.hasRights("wiki:Space1.Other"));
+    }
+
+    @Test
+    void largeWikiWithOneDocumentPerSpace() throws QueryException
+    {
+        when(this.countQuery.execute()).thenReturn(Collections.singletonList(10000L));
+
+        SolrSecurityPlanner.Plan plan = this.planner.plan(WIKI, 10000, 100, 2);
+
+        // Nothing to share so the rights documents are not even loaded
+        assertEquals(SolrSecurityPlanner.Strategy.DIRECT, plan.getStrategy());
+        verify(this.rightsQuery, never()).execute();
+    }
+
+    @Test
+    void singleDocument() throws QueryException
+    {
+        SolrSecurityPlanner.Plan plan =
+            this.planner.plan(WIKI, Collections.singletonList("wiki:Space.Page"), 1, 1000, 1);
+
+        assertEquals(SolrSecurityPlanner.Strategy.DIRECT, plan.getStrategy());
+        verify(this.queryManager, never()).createQuery(anyString(), anyString());
+    }
+
+    @Test
+    void documentsWithCachedRightsDocuments() throws QueryException
+    {
+        this.planner.getRightsDocuments(WIKI);
+
+        // The rights documents are already known so sharing the evaluation of a space is free
+        SolrSecurityPlanner.Plan plan =
+            this.planner.plan(WIKI, Arrays.asList("wiki:Space1.Page", "wiki:Space1.Other", "wiki:Space1.Third"), 1,
+                10, 1);
+
+        assertEquals(SolrSecurityPlanner.Strategy.OWNER, plan.getStrategy());
+        verify(this.rightsQuery, times(1)).execute();
+
+        this.planner.invalidate(WIKI);
+        this.planner.getRightsDocuments(WIKI);
+        verify(this.rightsQuery, times(2)).execute();
+    }
+
+    @Test
+    void onlyGroupsWithChangedParents() throws GroupException
+    {
+        setParents(GROUP, PARENT);
+        setParents(SUBGROUP, GROUP, PARENT);
+
+        // Nothing is known before the first indexing of the groups
+        SolrSecurityPlanner.GroupDiff diff = this.planner.diff(Arrays.asList(GROUP, SUBGROUP));
+        assertEquals(2, diff.getGroups().size());
+        this.planner.commit(diff);
+
+        // Nothing changed for the groups (for example a user was added to one of them)
+        assertTrue(this.planner.diff(Arrays.asList(GROUP, SUBGROUP)).getGroups().isEmpty());
+
+        // The group is now also member of another group
+        setParents(GROUP, PARENT, OTHER);
+        setParents(SUBGROUP, GROUP, PARENT, OTHER);
+        diff = this.planner.diff(Collections.singletonList(SUBGROUP));
+        assertEquals(Collections.singleton(SUBGROUP), diff.getGroups());
+        this.planner.commit(diff);
+
+        assertEquals(Collections.singleton(GROUP), this.planner.diff(Arrays.asList(GROUP, SUBGROUP)).getGroups());
+    }
+
+    @Test
+    void documentsIndexedDuringGroupIndexing() throws GroupException
+    {
+        setParents(GROUP, PARENT);
+
+        SolrSecurityPlanner.GroupDiff diff = this.planner.diff(Collections.singletonList(GROUP));
+        this.planner.invalidateMemberships();
+        this.planner.commit(diff);
+
+        // Documents indexed in the meantime might reflect other parent groups
+        assertEquals(Collections.singleton(GROUP), this.planner.diff(Collections.singletonList(GROUP)).getGroups());
+    }
+
+    private void setParents(DocumentReference group, DocumentReference... parents) throws GroupException
+    {
+        when(this.groupManager.getGroups(group, WikiTarget.ALL, true)).thenReturn(Arrays.asList(parents));
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.environment.Environment;
+import org.xwiki.search.solr.SolrUtils;
+import org.xwiki.search.solr.internal.api.FieldUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link SolrSecuritySpool}.
+ * 
+ * @version $Id$
+ */
+class SolrSecuritySpoolTest
+{
+    private static final String ID = "id";
+
+    private static final String FIELD = "allowed";
+
+    @TempDir
+    File permanentDirectory;
+
+    private final Environment environment = mock(Environment.class);
+
+    private SolrSecuritySpool spool;
+
+    @BeforeEach
+    void beforeEach() throws InitializationException
+    {
+        when(this.environment.getPermanentDirectory()).thenReturn(this.permanentDirectory);
+
+        this.spool = createSpool();
+    }
+
+    private SolrSecuritySpool createSpool() throws InitializationException
+    {
+        SolrSecuritySpool newSpool = new SolrSecuritySpool();
+        ReflectionUtils.setFieldValue(newSpool, "environment", this.environment);
+        ReflectionUtils.setFieldValue(newSpool, "logger", mock(Logger.class));
+        newSpool.initialize();
+
+        return newSpool;
+    }
+
+    private static SolrInputDocument document(int index)
+    {
+        SolrInputDocument solrDocument = new SolrInputDocument();
+        solrDocument.setField(ID, "wiki:Space.Page" + index + '_');
+        solrDocument.setField(FIELD, Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_ADD_DISTINCT,
+            Arrays.asList("wiki:XWiki.Group" + index, "xwiki:XWiki.XWikiAllGroup")));
+
+        return solrDocument;
+    }
+
+    private static List<SolrInputDocument> documents(int from, int to)
+    {
+        List<SolrInputDocument> solrDocuments = new ArrayList<>();
+        for (int i = from; i < to; ++i) {
+            solrDocuments.add(document(i));
+        }
+
+        return solrDocuments;
+    }
+
+    /**
+     * Record the replayed updates, and the deletions as Solr documents only containing an identifier (the query for a
+     * deletion by query).
+     */
+    private static class RecordingSender implements SolrSecuritySpool.Sender
+    {
+        private final List<SolrInputDocument> replayed = new ArrayList<>();
+
+        private int failAfter = Integer.MAX_VALUE;
+
+        @Override
+        public void send(List<SolrInputDocument> solrDocuments) throws Exception
+        {
+            check();
+
+            this.replayed.addAll(solrDocuments);
+        }
+
+        @Override
+        public void delete(List<String> ids) throws Exception
+        {
+            check();
+
+            ids.forEach(id -> this.replayed.add(deletion(id)));
+        }
+
+        @Override
+        public void deleteByQuery(String query) throws Exception
+        {
+            check();
+
+            this.replayed.add(deletion(query));
+        }
+
+        private void check() throws IOException
+        {
+            if (this.replayed.size() >= this.failAfter) {
+                throw new IOException("Solr is down");
+            }
+        }
+    }
+
+    private static SolrInputDocument deletion(String key)
+    {
+        SolrInputDocument solrDocument = new SolrInputDocument();
+        solrDocument.setField(ID, key);
+
+        return solrDocument;
+    }
+
+    private List<SolrInputDocument> replay() throws Exception
+    {
+        RecordingSender sender = new RecordingSender();
+        this.spool.replay(sender);
+
+        return sender.replayed;
+    }
+
+    private static void assertDocuments(List<SolrInputDocument> expected, List<SolrInputDocument> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).getFieldValue(ID), actual.get(i).getFieldValue(ID));
+            assertEquals(expected.get(i).getFieldValue(FIELD), actual.get(i).getFieldValue(FIELD));
+        }
+    }
+
+    private File getSegment()
+    {
+        File[] segments = new File(this.permanentDirectory, "solrsecurity/spool")
+            .listFiles((dir, name) -> name.startsWith("segment-"));
+
+        assertEquals(1, segments.length);
+
+        return segments[0];
+    }
+
+    private void appendRaw(int length, byte[] content) throws IOException
+    {
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(getSegment(), true))) {
+            output.writeInt(length);
+            output.write(content);
+        }
+    }
+
+    @Test
+    void roundTrip() throws Exception
+    {
+        assertTrue(this.spool.isEmpty());
+
+        this.spool.append(documents(0, 3));
+        this.spool.append(documents(3, 5));
+
+        assertFalse(this.spool.isEmpty());
+
+        List<SolrInputDocument> replayed = replay();
+
+        assertDocuments(documents(0, 5), replayed);
+        assertEquals(Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_ADD_DISTINCT,
+            Arrays.asList("wiki:XWiki.Group0", "xwiki:XWiki.XWikiAllGroup")), replayed.get(0).getFieldValue(FIELD));
+        assertTrue(this.spool.isEmpty());
+        assertTrue(replay().isEmpty());
+    }
+
+    @Test
+    void replayAfterRestart() throws Exception
+    {
+        this.spool.append(documents(0, 3));
+
+        this.spool = createSpool();
+
+        assertFalse(this.spool.isEmpty());
+        assertDocuments(documents(0, 3), replay());
+        assertTrue(this.spool.isEmpty());
+
+        // The sequence restarts from the beginning once the spool is empty
+        this.spool = createSpool();
+        this.spool.append(documents(3, 4));
+
+        assertDocuments(documents(3, 4), replay());
+    }
+
+    @Test
+    void resumeFailedReplay() throws Exception
+    {
+        this.spool.append(documents(0, 250));
+
+        RecordingSender sender = new RecordingSender();
+        sender.failAfter = 1;
+        assertThrows(IOException.class, () -> this.spool.replay(sender));
+
+        assertDocuments(documents(0, 100), sender.replayed);
+        assertFalse(this.spool.isEmpty());
+
+        // Only the updates which were not sent are replayed, even after a restart
+        this.spool = createSpool();
+
+        assertDocuments(documents(100, 250), replay());
+        assertTrue(this.spool.isEmpty());
+    }
+
+    @Test
+    void corruptedLength() throws Exception
+    {
+        this.spool.append(documents(0, 2));
+
+        // A length larger than the segment must not be allocated
+        appendRaw(Integer.MAX_VALUE, new byte[] {1, 2, 3});
+
+        this.spool = createSpool();
+
+        assertDocuments(documents(0, 2), replay());
+        assertTrue(this.spool.isEmpty());
+    }
+
+    @Test
+    void negativeLength() throws Exception
+    {
+        this.spool.append(documents(0, 2));
+
+        appendRaw(-1, new byte[0]);
+
+        this.spool = createSpool();
+
+        assertDocuments(documents(0, 2), replay());
+        assertTrue(this.spool.isEmpty());
+    }
+
+    @Test
+    void corruptedRecord() throws Exception
+    {
+        this.spool.append(documents(0, 2));
+
+        // A record with a valid length but an invalid content is skipped
+        appendRaw(4, new byte[] {0, 1, 'a', 0x7F});
+
+        this.spool = createSpool();
+        this.spool.append(documents(2, 3));
+
+        List<SolrInputDocument> replayed = replay();
+
+        assertDocuments(documents(0, 3), replayed);
+        assertTrue(this.spool.isEmpty());
+    }
+
+    @Test
+    void truncatedRecord() throws Exception
+    {
+        this.spool.append(documents(0, 2));
+
+        // A record partially written when the server was killed
+        appendRaw(100, new byte[] {0, 1});
+
+        this.spool = createSpool();
+
+        assertDocuments(documents(0, 2), replay());
+        assertTrue(this.spool.isEmpty());
+    }
+
+    @Test
+    void ownerDocument() throws Exception
+    {
+        // The Solr document of a rights owner, as written by the store in the join model
+        SolrInputDocument owner = new SolrInputDocument();
+        owner.setField(ID, "solrsecurity.owner.space:wiki:Space");
+        owner.setField(FieldUtils.WIKI,
+            Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_SET, Collections.singletonList("wiki")));
+        owner.setField(FIELD, Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_ADD_DISTINCT,
+            Arrays.asList("wiki:XWiki.Group", "xwiki:XWiki.XWikiAllGroup")));
+
+        this.spool.append(Collections.singletonList(owner));
+
+        this.spool = createSpool();
+
+        List<SolrInputDocument> replayed = replay();
+
+        assertDocuments(Collections.singletonList(owner), replayed);
+        assertEquals(Collections.singletonMap(SolrUtils.ATOMIC_UPDATE_MODIFIER_SET, Collections.singletonList("wiki")),
+            replayed.get(0).getFieldValue(FieldUtils.WIKI));
+        assertTrue(this.spool.isEmpty());
+    }
+
+    @Test
+    void invalidValue() throws Exception
+    {
+        SolrInputDocument invalid = new SolrInputDocument();
+        invalid.setField(ID, "wiki:Space.Invalid_");
+        invalid.setField(FIELD, "wiki:XWiki.Group");
+
+        List<SolrInputDocument> solrDocuments = documents(0, 2);
+        solrDocuments.add(invalid);
+
+        // Nothing is written when one of the updates cannot be spooled
+        assertThrows(IOException.class, () -> this.spool.append(solrDocuments));
+
+        this.spool.append(documents(2, 3));
+
+        assertDocuments(documents(2, 3), replay());
+    }
+
+    @Test
+    void deletions() throws Exception
+    {
+        this.spool.append(documents(0, 2));
+        this.spool.appendDelete(Arrays.asList("wiki:Space.Page0_", "wiki:Space.Page1_"));
+        this.spool.append(documents(2, 3));
+        this.spool.appendDeleteByQuery("id:solrsecurity.owner.space\\:wiki\\:*");
+        this.spool.append(documents(3, 4));
+
+        this.spool = createSpool();
+
+        // The updates and deletions are replayed in the order they were added
+        List<SolrInputDocument> expected = documents(0, 2);
+        expected.add(deletion("wiki:Space.Page0_"));
+        expected.add(deletion("wiki:Space.Page1_"));
+        expected.add(document(2));
+        expected.add(deletion("id:solrsecurity.owner.space\\:wiki\\:*"));
+        expected.add(document(3));
+
+        assertDocuments(expected, replay());
+        assertTrue(this.spool.isEmpty());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContextManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Validate {@link SolrSecurityThreadFactory}.
+ * 
+ * @version $Id$
+ */
+class SolrSecurityThreadFactoryTest
+{
+    private static boolean isVirtual(Thread thread) throws ReflectiveOperationException
+    {
+        return SolrSecurityThreadFactory.isVirtualSupported()
+            && (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    }
+
+    @Test
+    void newThread() throws Exception
+    {
+        // Virtual threads are only used when the JVM is actually able to create them
+        SolrSecurityThreadFactory factory = new SolrSecurityThreadFactory("test", mock(ExecutionContextManager.class),
+            mock(Execution.class), true);
+
+        AtomicBoolean ran = new AtomicBoolean();
+        Thread thread = factory.newThread(() -> ran.set(true));
+        thread.start();
+        thread.join();
+
+        assertTrue(ran.get());
+        assertEquals("test-1", thread.getName());
+        assertEquals(SolrSecurityThreadFactory.isVirtualSupported(), isVirtual(thread));
+    }
+
+    @Test
+    void newPlatformThread() throws Exception
+    {
+        SolrSecurityThreadFactory factory = new SolrSecurityThreadFactory("test", mock(ExecutionContextManager.class),
+            mock(Execution.class), false);
+
+        Thread thread = factory.newThread(() -> { });
+
+        assertTrue(thread.isDaemon());
+        assertEquals(Thread.NORM_PRIORITY - 1, thread.getPriority());
+        assertFalse(isVirtual(thread));
+    }
+}
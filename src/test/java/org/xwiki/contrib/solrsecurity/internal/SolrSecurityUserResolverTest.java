@@ -0,0 +1,153 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.solrsecurity.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.security.authorization.AuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.wiki.descriptor.WikiDescriptorManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link SolrSecurityUserResolver}.
+ * 
+ * @version $Id$
+ */
+class SolrSecurityUserResolverTest
+{
+    private static final WikiReference WIKI = new WikiReference("xwiki");
+
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "User");
+
+    private static final DocumentReference PAGE1 = new DocumentReference("xwiki", "Space", "Page1");
+
+    private static final DocumentReference PAGE2 = new DocumentReference("xwiki", "Space", "Page2");
+
+    private static final DocumentReference PROTECTED = new DocumentReference("xwiki", "Space", "Protected");
+
+    private final AuthorizationManager authorization = mock(AuthorizationManager.class);
+
+    private final QueryManager queryManager = mock(QueryManager.class);
+
+    private final SolrSecurityUserResolver resolver = new SolrSecurityUserResolver();
+
+    private static String serialize(EntityReference reference)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (EntityReference element : reference.getReversedReferenceChain()) {
+            if (element.getType() != EntityType.WIKI) {
+                if (builder.length() > 0) {
+                    builder.append('.');
+                }
+                builder.append(element.getName());
+            }
+        }
+
+        return builder.toString();
+    }
+
+    private void mockQuery(String statementStart, List<?> result) throws QueryException
+    {
+        Query query = mock(Query.class);
+        when(query.execute()).thenReturn((List) result);
+        when(this.queryManager.createQuery(startsWith(statementStart), anyString())).thenReturn(query);
+    }
+
+    @BeforeEach
+    void beforeEach() throws QueryException
+    {
+        // The document rights
+        mockQuery("select doc.fullName", Collections.singletonList(new Object[] { "Space.Protected", null }));
+        // The space rights
+        mockQuery("select doc.space", Collections.emptyList());
+        // The wiki rights
+        mockQuery("select obj.users", Collections.singletonList("XWiki.User"));
+
+        DocumentReferenceResolver<String> documentResolver = mock(DocumentReferenceResolver.class);
+        when(documentResolver.resolve(eq("XWiki.User"), any())).thenReturn(USER);
+
+        WikiDescriptorManager wikis = mock(WikiDescriptorManager.class);
+        when(wikis.getMainWikiId()).thenReturn(WIKI.getName());
+
+        when(this.authorization.hasAccess(Right.VIEW, USER, PAGE1)).thenReturn(true);
+        when(this.authorization.hasAccess(Right.VIEW, USER, PAGE2)).thenReturn(true);
+
+        ReflectionUtils.setFieldValue(this.resolver, "queryManager", this.queryManager);
+        ReflectionUtils.setFieldValue(this.resolver, "documentResolver", documentResolver);
+        ReflectionUtils.setFieldValue(this.resolver, "serializer",
+            (EntityReferenceSerializer<String>) (reference, parameters) -> WIKI.getName() + ':' + serialize(reference));
+        ReflectionUtils.setFieldValue(this.resolver, "localSerializer",
+            (EntityReferenceSerializer<String>) (reference, parameters) -> serialize(reference));
+        ReflectionUtils.setFieldValue(this.resolver, "authorization", this.authorization);
+        ReflectionUtils.setFieldValue(this.resolver, "wikis", wikis);
+        ReflectionUtils.setFieldValue(this.resolver, "logger", mock(Logger.class));
+    }
+
+    @Test
+    void sharedPerRightsOwner()
+    {
+        assertEquals(Arrays.asList("xwiki:XWiki.User"), this.resolver.getAllowedUsers(PAGE1));
+        // Same space without rights objects: not evaluated again
+        assertEquals(Arrays.asList("xwiki:XWiki.User"), this.resolver.getAllowedUsers(PAGE2));
+
+        verify(this.authorization).hasAccess(Right.VIEW, USER, PAGE1);
+        verify(this.authorization, never()).hasAccess(Right.VIEW, USER, PAGE2);
+
+        // A document with its own rights objects is its own rights owner
+        assertEquals(Collections.emptyList(), this.resolver.getAllowedUsers(PROTECTED));
+        verify(this.authorization).hasAccess(Right.VIEW, USER, PROTECTED);
+    }
+
+    @Test
+    void invalidateAllowedUsers()
+    {
+        this.resolver.getAllowedUsers(PAGE1);
+        this.resolver.invalidateAllowedUsers();
+        this.resolver.getAllowedUsers(PAGE2);
+
+        verify(this.authorization).hasAccess(Right.VIEW, USER, PAGE1);
+        verify(this.authorization).hasAccess(Right.VIEW, USER, PAGE2);
+    }
+}